@@ -57,6 +57,30 @@ public abstract class AbstractWindowedCursor extends AbstractCursor {
         mWindow.copyStringToBuffer(mPos, columnIndex, buffer);
     }
 
+    /**
+     * Copies the text of the requested column as UTF-8 into a byte array, without
+     * allocating.  See {@link CursorWindow#copyStringUtf8(int, int, byte[], int)}.
+     *
+     * @return The length of the text in bytes, or -1 if the value is null.
+     * @hide
+     */
+    public int copyStringUtf8(int columnIndex, byte[] buffer, int offset) {
+        checkPosition();
+        return mWindow.copyStringUtf8(mPos, columnIndex, buffer, offset);
+    }
+
+    /**
+     * Decodes the text of the requested column into a char array, without
+     * allocating.  See {@link CursorWindow#copyStringChars}.
+     *
+     * @return The length of the text in chars, or -1 if the value is null.
+     * @hide
+     */
+    public int copyStringChars(int columnIndex, char[] buffer, int offset) {
+        checkPosition();
+        return mWindow.copyStringChars(mPos, columnIndex, buffer, offset);
+    }
+
     @Override
     public short getShort(int columnIndex) {
         checkPosition();
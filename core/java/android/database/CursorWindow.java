@@ -27,9 +27,12 @@ import android.os.Parcelable;
 //import android.os.Process;
 import android.system.Os;
 import android.util.Log;
+import android.util.Printer;
 import android.util.SparseIntArray;
 import android.util.LongSparseArray;
 
+import java.nio.ByteBuffer;
+
 /**
  * A buffer containing multiple cursor rows.
  * <p>
@@ -46,6 +49,9 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     // This static member will be evaluated when first used.
     private static int sCursorWindowSize = -1;
 
+    // Native windows that have been closed, kept for reuse by new windows.
+    private static final WindowPool sWindowPool = new WindowPool();
+
     /**
      * The native CursorWindow object pointer.  (FOR INTERNAL USE ONLY)
      * @hide
@@ -55,6 +61,12 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     private int mStartPos;
     private final String mName;
 
+    // The size of the native window, or 0 if it was created from a parcel.
+    private final int mSize;
+
+    // True if the native window may be returned to the pool when this window is disposed.
+    private boolean mPoolable;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private static native long nativeCreate(String name, int cursorWindowSize);
@@ -65,6 +77,7 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     private static native void nativeClear(long windowPtr);
 
     private static native int nativeGetNumRows(long windowPtr);
+    private static native int nativeGetFreeSpace(long windowPtr);
     private static native boolean nativeSetNumColumns(long windowPtr, int columnNum);
     private static native boolean nativeAllocRow(long windowPtr);
     private static native void nativeFreeLastRow(long windowPtr);
@@ -74,8 +87,20 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     private static native String nativeGetString(long windowPtr, int row, int column);
     private static native long nativeGetLong(long windowPtr, int row, int column);
     private static native double nativeGetDouble(long windowPtr, int row, int column);
+    private static native int nativeCopyLongs(long windowPtr, int row, int column, int count,
+            long[] values, int offset, byte[] types);
+    private static native int nativeCopyInts(long windowPtr, int row, int column, int count,
+            int[] values, int offset, byte[] types);
+    private static native int nativeCopyDoubles(long windowPtr, int row, int column, int count,
+            double[] values, int offset, byte[] types);
     private static native void nativeCopyStringToBuffer(long windowPtr, int row, int column,
             CharArrayBuffer buffer);
+    private static native int nativeCopyStringUtf8(long windowPtr, int row, int column,
+            byte[] buffer, int offset, int capacity);
+    private static native int nativeCopyStringUtf8Direct(long windowPtr, int row, int column,
+            ByteBuffer buffer, int offset, int capacity);
+    private static native int nativeCopyStringChars(long windowPtr, int row, int column,
+            char[] buffer, int offset);
 
     private static native boolean nativePutBlob(long windowPtr, byte[] value, int row, int column);
     private static native boolean nativePutString(long windowPtr, String value, int row, int column);
@@ -95,8 +120,45 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
      * @param name The name of the cursor window, or null if none.
      */
     public CursorWindow(String name) {
+        this(name, getDefaultCursorWindowSize());
+    }
+
+    /**
+     * Creates a new empty cursor window of the given size and gives it a name.
+     * <p>
+     * The size is rounded up to a power of two so that windows of similar sizes
+     * can reuse each other's memory through the window pool.
+     * </p>
+     *
+     * @param name The name of the cursor window, or null if none.
+     * @param windowSizeBytes The minimum size of the window in bytes.
+     * @hide
+     */
+    public CursorWindow(String name, int windowSizeBytes) {
+        if (windowSizeBytes <= 0) {
+            throw new IllegalArgumentException("windowSizeBytes must be positive.");
+        }
         mStartPos = 0;
         mName = name != null && name.length() != 0 ? name : "<unnamed>";
+        mSize = WindowPool.sizeClassFor(windowSizeBytes);
+        mWindowPtr = sWindowPool.obtain(mSize);
+        if (mWindowPtr == 0) {
+            mWindowPtr = nativeCreate(mName, mSize);
+        }
+        if (mWindowPtr == 0) {
+            throw new CursorWindowAllocationException("Cursor window allocation of " +
+                    (mSize / 1024) + " kb failed. " + printStats());
+        }
+        mPoolable = true;
+        mCloseGuard.open("close");
+        recordNewWindow(/*Binder.getCallingPid()*/0, mWindowPtr);
+    }
+
+    /**
+     * Returns the default size of a cursor window in bytes.
+     * @hide
+     */
+    public static int getDefaultCursorWindowSize() {
         if (sCursorWindowSize < 0) {
             /** The cursor window size. resource xml file specifies the value in kB.
              * convert it to bytes here by multiplying with 1024.
@@ -104,13 +166,7 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
             sCursorWindowSize = /*Resources.getSystem().getInteger(
                 com.android.internal.R.integer.config_cursorWindowSize)*/2048 * 1024;
         }
-        mWindowPtr = nativeCreate(mName, sCursorWindowSize);
-        if (mWindowPtr == 0) {
-            throw new CursorWindowAllocationException("Cursor window allocation of " +
-                    (sCursorWindowSize / 1024) + " kb failed. " + printStats());
-        }
-        mCloseGuard.open("close");
-        recordNewWindow(/*Binder.getCallingPid()*/0, mWindowPtr);
+        return sCursorWindowSize;
     }
 
     /**
@@ -133,6 +189,7 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
 
     private CursorWindow(Parcel source) {
         mStartPos = source.readInt();
+        mSize = 0;
         mWindowPtr = nativeCreateFromParcel(source);
         if (mWindowPtr == 0) {
             throw new CursorWindowAllocationException("Cursor window could not be "
@@ -160,7 +217,9 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         }
         if (mWindowPtr != 0) {
             recordClosingOfWindow(mWindowPtr);
-            nativeDispose(mWindowPtr);
+            if (!mPoolable || !sWindowPool.recycle(mWindowPtr, mSize)) {
+                nativeDispose(mWindowPtr);
+            }
             mWindowPtr = 0;
         }
     }
@@ -231,6 +290,27 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         }
     }
 
+    /**
+     * Gets the size of this window in bytes, or 0 if it was received from a parcel.
+     * @hide
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Gets the number of bytes of this window that are not used by rows yet.
+     * @hide
+     */
+    public int getFreeSpace() {
+        acquireReference();
+        try {
+            return nativeGetFreeSpace(mWindowPtr);
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Sets the number of columns in this window.
      * <p>
@@ -484,6 +564,117 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         }
     }
 
+    /**
+     * Copies the text of the field at the specified row and column index into a
+     * byte array as UTF-8, without allocating.
+     * <p>
+     * The field is converted to text as by {@link #copyStringToBuffer}.  The text
+     * is only copied if it fits in the rest of the buffer; otherwise the buffer is
+     * left untouched and the caller can retry with a buffer of the returned length.
+     * The bytes are a copy, so they remain valid after the window is cleared or
+     * closed.
+     * </p>
+     *
+     * @param row The zero-based row index.
+     * @param column The zero-based column index.
+     * @param buffer The array to copy the text into.
+     * @param offset The index in <code>buffer</code> of the first byte of the text.
+     * @return The length of the text in bytes, or -1 if the field is null.
+     * @throws SQLiteException if the field is a blob.
+     * @hide
+     */
+    public int copyStringUtf8(int row, int column, byte[] buffer, int offset) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer should not be null");
+        }
+        if (offset < 0 || offset > buffer.length) {
+            throw new IllegalArgumentException("offset is out of range");
+        }
+        acquireReference();
+        try {
+            return nativeCopyStringUtf8(mWindowPtr, row - mStartPos, column, buffer, offset,
+                    buffer.length - offset);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Copies the text of the field at the specified row and column index into a
+     * byte buffer as UTF-8, without allocating.
+     * <p>
+     * The text is written at the buffer's position, which is advanced past it, if
+     * it fits in the buffer's remaining space.  Otherwise the buffer is left
+     * untouched.  See {@link #copyStringUtf8(int, int, byte[], int)} for details.
+     * </p>
+     *
+     * @param row The zero-based row index.
+     * @param column The zero-based column index.
+     * @param buffer The buffer to copy the text into, heap or direct.
+     * @return The length of the text in bytes, or -1 if the field is null.
+     * @throws SQLiteException if the field is a blob.
+     * @hide
+     */
+    public int copyStringUtf8(int row, int column, ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer should not be null");
+        }
+        if (buffer.isReadOnly()) {
+            throw new IllegalArgumentException("buffer should not be read-only");
+        }
+        final int length;
+        acquireReference();
+        try {
+            if (buffer.hasArray()) {
+                length = nativeCopyStringUtf8(mWindowPtr, row - mStartPos, column,
+                        buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+            } else {
+                length = nativeCopyStringUtf8Direct(mWindowPtr, row - mStartPos, column,
+                        buffer, buffer.position(), buffer.remaining());
+            }
+        } finally {
+            releaseReference();
+        }
+        if (length > 0 && length <= buffer.remaining()) {
+            buffer.position(buffer.position() + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the text of the field at the specified row and column index into a
+     * char array, without allocating.
+     * <p>
+     * Unlike {@link #copyStringToBuffer}, which replaces the array of a
+     * {@link CharArrayBuffer} that is too small, this never allocates: the text is
+     * only copied if it fits in the rest of the buffer, and the caller can retry
+     * with a buffer of the returned length otherwise.
+     * </p>
+     *
+     * @param row The zero-based row index.
+     * @param column The zero-based column index.
+     * @param buffer The array to decode the text into.
+     * @param offset The index in <code>buffer</code> of the first char of the text.
+     * @return The length of the text in chars, or -1 if the field is null.
+     * @throws SQLiteException if the field is a blob.
+     * @hide
+     */
+    public int copyStringChars(int row, int column, char[] buffer, int offset) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer should not be null");
+        }
+        if (offset < 0 || offset > buffer.length) {
+            throw new IllegalArgumentException("offset is out of range");
+        }
+        acquireReference();
+        try {
+            return nativeCopyStringChars(mWindowPtr, row - mStartPos, column, buffer, offset);
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Gets the value of the field at the specified row and column index as a <code>long</code>.
      * <p>
@@ -595,6 +786,85 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         return (float) getDouble(row, column);
     }
 
+    /**
+     * Copies the values of a column in a range of rows as <code>long</code> values.
+     * <p>
+     * Each value is converted as by {@link #getLong}, but the whole range is copied
+     * with a single native call.  The copy stops at the last row of the window.
+     * </p>
+     *
+     * @param row The zero-based index of the first row to copy.
+     * @param column The zero-based column index.
+     * @param count The maximum number of rows to copy.
+     * @param values The array to copy the values into.
+     * @param offset The index in <code>values</code> of the value of the first row.
+     * @param types An array to receive the type of each field, one of the
+     * <code>FIELD_TYPE</code> constants of {@link Cursor}, at the same indices as
+     * the values, or null if not needed.  Null fields are copied as 0.
+     * @return The number of rows copied.
+     * @throws SQLiteException if a field is a blob.
+     * @hide
+     */
+    public int copyLongs(int row, int column, int count, long[] values, int offset,
+            byte[] types) {
+        checkCopyArguments(count, values.length, offset, types);
+        acquireReference();
+        try {
+            return nativeCopyLongs(mWindowPtr, row - mStartPos, column, count,
+                    values, offset, types);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Copies the values of a column in a range of rows as <code>int</code> values.
+     * <p>
+     * Each value is converted as by {@link #getInt}.
+     * See {@link #copyLongs} for details.
+     * </p>
+     * @hide
+     */
+    public int copyInts(int row, int column, int count, int[] values, int offset,
+            byte[] types) {
+        checkCopyArguments(count, values.length, offset, types);
+        acquireReference();
+        try {
+            return nativeCopyInts(mWindowPtr, row - mStartPos, column, count,
+                    values, offset, types);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Copies the values of a column in a range of rows as <code>double</code> values.
+     * <p>
+     * Each value is converted as by {@link #getDouble}.
+     * See {@link #copyLongs} for details.
+     * </p>
+     * @hide
+     */
+    public int copyDoubles(int row, int column, int count, double[] values, int offset,
+            byte[] types) {
+        checkCopyArguments(count, values.length, offset, types);
+        acquireReference();
+        try {
+            return nativeCopyDoubles(mWindowPtr, row - mStartPos, column, count,
+                    values, offset, types);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    private static void checkCopyArguments(int count, int length, int offset, byte[] types) {
+        if (count < 0 || offset < 0 || offset > length - count
+                || (types != null && offset > types.length - count)) {
+            throw new IllegalArgumentException("Cannot copy " + count + " values at offset "
+                    + offset + " into an array of length " + length + ".");
+        }
+    }
+
     /**
      * Copies a byte array into the field at the specified row and column index.
      *
@@ -702,6 +972,8 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         acquireReference();
         try {
+            // The receiver may keep reading the native window after this one is closed.
+            mPoolable = false;
             dest.writeInt(mStartPos);
             nativeWriteToParcel(mWindowPtr, dest);
         } finally {
@@ -778,4 +1050,161 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     public String toString() {
         return getName() + " {" + Long.toHexString(mWindowPtr) + "}";
     }
+
+    /**
+     * Sets the maximum number of bytes of closed windows that are kept for reuse.
+     * Windows beyond the limit are freed when they are closed.
+     *
+     * @param maxBytes The limit in bytes, or 0 to disable pooling.
+     * @hide
+     */
+    public static void setWindowPoolMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative.");
+        }
+        sWindowPool.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Returns the number of windows that reused memory from the pool.
+     * @hide
+     */
+    public static long getWindowPoolHitCount() {
+        synchronized (sWindowPool) {
+            return sWindowPool.mHitCount;
+        }
+    }
+
+    /**
+     * Returns the number of windows that had to allocate memory.
+     * @hide
+     */
+    public static long getWindowPoolMissCount() {
+        synchronized (sWindowPool) {
+            return sWindowPool.mMissCount;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of closed windows currently kept for reuse.
+     * @hide
+     */
+    public static long getWindowPoolRetainedBytes() {
+        synchronized (sWindowPool) {
+            return sWindowPool.mRetainedBytes;
+        }
+    }
+
+    /**
+     * Dumps statistics about the window pool.
+     * @hide
+     */
+    public static void dumpWindowPool(Printer printer) {
+        synchronized (sWindowPool) {
+            final long requests = sWindowPool.mHitCount + sWindowPool.mMissCount;
+            printer.println("Cursor window pool: retained " + sWindowPool.mRetainedBytes
+                    + " of " + sWindowPool.mMaxBytes + " bytes"
+                    + ", hits " + sWindowPool.mHitCount + ", misses " + sWindowPool.mMissCount
+                    + ", hit rate " + (requests != 0 ? sWindowPool.mHitCount * 100 / requests : 0)
+                    + "%, discarded " + sWindowPool.mDiscardCount);
+        }
+    }
+
+    /**
+     * Native windows of closed cursor windows, grouped by size class, kept so
+     * that new windows can skip allocating and mapping their memory.
+     * <p>
+     * Size classes are powers of two.  A window is cleared when it is returned to
+     * the pool, and freed instead if keeping it would exceed the byte limit.
+     * </p>
+     */
+    private static final class WindowPool {
+        private static final int MIN_SIZE_CLASS = 4096;
+        private static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+        // Indexed by the log2 of the size class.
+        private final long[][] mWindows = new long[32][];
+        private final int[] mCounts = new int[32];
+        long mMaxBytes = DEFAULT_MAX_BYTES;
+        long mRetainedBytes;
+        long mHitCount;
+        long mMissCount;
+        long mDiscardCount;
+
+        static int sizeClassFor(int size) {
+            if (size <= MIN_SIZE_CLASS) {
+                return MIN_SIZE_CLASS;
+            }
+            final int sizeClass = Integer.highestOneBit(size);
+            return sizeClass == size ? size : sizeClass << 1;
+        }
+
+        // Returns a pooled native window of the given size class, or 0 if none.
+        long obtain(int size) {
+            final int index = Integer.numberOfTrailingZeros(size);
+            synchronized (this) {
+                final int count = mCounts[index];
+                if (count == 0) {
+                    mMissCount += 1;
+                    return 0;
+                }
+                mCounts[index] = count - 1;
+                mRetainedBytes -= size;
+                mHitCount += 1;
+                return mWindows[index][count - 1];
+            }
+        }
+
+        // Returns true if the native window was kept, false if the caller must free it.
+        boolean recycle(long windowPtr, int size) {
+            final int index = Integer.numberOfTrailingZeros(size);
+            synchronized (this) {
+                if (mRetainedBytes + size > mMaxBytes) {
+                    mDiscardCount += 1;
+                    return false;
+                }
+                long[] windows = mWindows[index];
+                final int count = mCounts[index];
+                if (windows == null || windows.length == count) {
+                    long[] newWindows = new long[count == 0 ? 4 : count * 2];
+                    if (windows != null) {
+                        System.arraycopy(windows, 0, newWindows, 0, count);
+                    }
+                    mWindows[index] = windows = newWindows;
+                }
+                nativeClear(windowPtr);
+                windows[count] = windowPtr;
+                mCounts[index] = count + 1;
+                mRetainedBytes += size;
+                return true;
+            }
+        }
+
+        void setMaxBytes(long maxBytes) {
+            long[] freed = null;
+            int freedCount = 0;
+            synchronized (this) {
+                mMaxBytes = maxBytes;
+                // Free the largest windows first until the pool fits.
+                for (int index = mCounts.length - 1; index >= 0 && mRetainedBytes > maxBytes;
+                        index--) {
+                    while (mCounts[index] > 0 && mRetainedBytes > maxBytes) {
+                        if (freed == null) {
+                            freed = new long[8];
+                        } else if (freed.length == freedCount) {
+                            long[] newFreed = new long[freedCount * 2];
+                            System.arraycopy(freed, 0, newFreed, 0, freedCount);
+                            freed = newFreed;
+                        }
+                        mCounts[index] -= 1;
+                        freed[freedCount++] = mWindows[index][mCounts[index]];
+                        mRetainedBytes -= 1L << index;
+                    }
+                }
+            }
+            for (int i = 0; i < freedCount; i++) {
+                nativeDispose(freed[i]);
+            }
+        }
+    }
 }
@@ -316,6 +316,106 @@ public class DatabaseUtils {
         cursor.moveToPosition(oldPos);
     }
 
+    /**
+     * Copies the values of a column in all the rows of a cursor as <code>long</code>
+     * values, converted as by {@link Cursor#getLong}.
+     * <p>
+     * For a cursor backed by a {@link CursorWindow}, such as an
+     * {@link AbstractWindowedCursor}, each window is copied with a single native call
+     * using {@link CursorWindow#copyLongs}.  Other cursors are read row by row.
+     * The position of the cursor is restored afterwards.
+     * </p>
+     *
+     * @param cursor The cursor to read.
+     * @param column The zero-based column index.
+     * @param values The array to copy the values into, which must have room for
+     * {@link Cursor#getCount} values.
+     * @param types An array of the same length to receive the type of each field,
+     * one of the <code>FIELD_TYPE</code> constants of {@link Cursor}, or null if not
+     * needed.
+     * @return The number of values copied.
+     * @hide
+     */
+    public static int cursorCopyLongColumn(Cursor cursor, int column, long[] values,
+            byte[] types) {
+        final int count = checkColumnCopy(cursor, values.length, types);
+        final int oldPos = cursor.getPosition();
+        int position = 0;
+        try {
+            while (position < count && cursor.moveToPosition(position)) {
+                final CursorWindow window = getWindowAt(cursor, position);
+                final int copied = window != null ? window.copyLongs(position, column,
+                        count - position, values, position, types) : 0;
+                if (copied != 0) {
+                    position += copied;
+                } else {
+                    values[position] = cursor.getLong(column);
+                    if (types != null) {
+                        types[position] = (byte) cursor.getType(column);
+                    }
+                    position += 1;
+                }
+            }
+        } finally {
+            cursor.moveToPosition(oldPos);
+        }
+        return position;
+    }
+
+    /**
+     * Copies the values of a column in all the rows of a cursor as <code>double</code>
+     * values, converted as by {@link Cursor#getDouble}.
+     * See {@link #cursorCopyLongColumn} for details.
+     * @hide
+     */
+    public static int cursorCopyDoubleColumn(Cursor cursor, int column, double[] values,
+            byte[] types) {
+        final int count = checkColumnCopy(cursor, values.length, types);
+        final int oldPos = cursor.getPosition();
+        int position = 0;
+        try {
+            while (position < count && cursor.moveToPosition(position)) {
+                final CursorWindow window = getWindowAt(cursor, position);
+                final int copied = window != null ? window.copyDoubles(position, column,
+                        count - position, values, position, types) : 0;
+                if (copied != 0) {
+                    position += copied;
+                } else {
+                    values[position] = cursor.getDouble(column);
+                    if (types != null) {
+                        types[position] = (byte) cursor.getType(column);
+                    }
+                    position += 1;
+                }
+            }
+        } finally {
+            cursor.moveToPosition(oldPos);
+        }
+        return position;
+    }
+
+    private static int checkColumnCopy(Cursor cursor, int length, byte[] types) {
+        final int count = cursor.getCount();
+        if (length < count || (types != null && types.length < count)) {
+            throw new IllegalArgumentException("The arrays must have room for "
+                    + count + " values.");
+        }
+        return count;
+    }
+
+    // Returns the window of a windowed cursor if it holds the row at the given
+    // position, which the cursor has just moved to.
+    private static CursorWindow getWindowAt(Cursor cursor, int position) {
+        if (cursor instanceof AbstractWindowedCursor) {
+            final CursorWindow window = ((AbstractWindowedCursor) cursor).getWindow();
+            if (window != null && position >= window.getStartPosition()
+                    && position < window.getStartPosition() + window.getNumRows()) {
+                return window;
+            }
+        }
+        return null;
+    }
+
     /**
      * Appends an SQL string to the given StringBuilder, including the opening
      * and closing single quotes. Any single quotes internal to sqlString will
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+
+/**
+ * Inserts rows on behalf of {@link SQLiteDatabase#bulkInsert} through a small
+ * set of reused statements.
+ * <p>
+ * Consecutive rows with the same set of columns are buffered and inserted with
+ * one <code>INSERT ... VALUES (...), (...)</code> statement per batch, up to the
+ * requested number of rows and SQLite's limit on bind arguments.  Each set of
+ * columns gets its own statements, which are prepared once and reused until
+ * {@link #close} is called.
+ * </p><p>
+ * This class is not thread-safe.  The caller is responsible for the transaction.
+ * </p>
+ */
+final class SQLiteBulkInserter {
+    // SQLite's default SQLITE_MAX_VARIABLE_NUMBER.
+    static final int MAX_BIND_ARGS = 999;
+
+    private final SQLiteDatabase mDatabase;
+    private final String mTable;
+    private final int mConflictAlgorithm;
+    private final int mMaxRowsPerStatement;
+
+    private final HashMap<String, ColumnSet> mColumnSets = new HashMap<String, ColumnSet>();
+    private ColumnSet mCurrent;
+
+    // Bind arguments of the buffered rows of the current column set, row by row.
+    private Object[] mPendingArgs;
+    private int mPendingRows;
+    private int mInsertedRows;
+
+    SQLiteBulkInserter(SQLiteDatabase db, String table, int conflictAlgorithm,
+            int maxRowsPerStatement) {
+        mDatabase = db;
+        mTable = table;
+        mConflictAlgorithm = conflictAlgorithm;
+        mMaxRowsPerStatement = maxRowsPerStatement;
+    }
+
+    /**
+     * Inserts a row, possibly later as part of a batch.
+     */
+    void addRow(ContentValues values) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Cannot bulk insert an empty row.");
+        }
+        if (mCurrent == null || !mCurrent.matches(values)) {
+            flush();
+            selectColumns(values.keySet().toArray(new String[values.size()]));
+        }
+        final String[] columns = mCurrent.mColumns;
+        final int offset = mPendingRows * columns.length;
+        for (int i = 0; i < columns.length; i++) {
+            mPendingArgs[offset + i] = values.get(columns[i]);
+        }
+        rowAdded();
+    }
+
+    /**
+     * Inserts a batch of rows given column by column.
+     *
+     * @param columns The column names, without duplicates.
+     * @param columnValues For each column, its value in every row.  All the
+     * arrays must have the same length.
+     */
+    void addRows(String[] columns, Object[][] columnValues) {
+        if (columns == null || columns.length == 0 || columnValues == null
+                || columnValues.length != columns.length) {
+            throw new IllegalArgumentException("There must be one array of values per column.");
+        }
+        final int rowCount = columnValues[0].length;
+        for (int i = 1; i < columnValues.length; i++) {
+            if (columnValues[i].length != rowCount) {
+                throw new IllegalArgumentException("All columns must have the same length.");
+            }
+        }
+        for (int i = 1; i < columns.length; i++) {
+            if (indexOf(columns, columns[i]) != i) {
+                throw new IllegalArgumentException("Duplicate column " + columns[i] + ".");
+            }
+        }
+        if (mCurrent == null || !mCurrent.matches(columns)) {
+            flush();
+            selectColumns(columns.clone());
+        }
+        final String[] order = mCurrent.mColumns;
+        final int[] source = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            source[i] = indexOf(columns, order[i]);
+        }
+        for (int row = 0; row < rowCount; row++) {
+            final int offset = mPendingRows * order.length;
+            for (int i = 0; i < order.length; i++) {
+                mPendingArgs[offset + i] = columnValues[source[i]][row];
+            }
+            rowAdded();
+        }
+    }
+
+    /**
+     * Inserts the buffered rows and returns the number of rows inserted so far.
+     */
+    int finish() {
+        flush();
+        return mInsertedRows;
+    }
+
+    /**
+     * Closes all statements.
+     */
+    void close() {
+        for (ColumnSet columnSet : mColumnSets.values()) {
+            final SparseArray<SQLiteStatement> statements = columnSet.mStatements;
+            for (int i = 0; i < statements.size(); i++) {
+                statements.valueAt(i).close();
+            }
+            statements.clear();
+        }
+        mColumnSets.clear();
+        mCurrent = null;
+    }
+
+    private void selectColumns(String[] columns) {
+        final StringBuilder signature = new StringBuilder();
+        for (String column : columns) {
+            signature.append(column).append(',');
+        }
+        final String key = signature.toString();
+        ColumnSet columnSet = mColumnSets.get(key);
+        if (columnSet == null) {
+            columnSet = new ColumnSet(columns,
+                    Math.max(1, Math.min(mMaxRowsPerStatement, MAX_BIND_ARGS / columns.length)));
+            mColumnSets.put(key, columnSet);
+        }
+        mCurrent = columnSet;
+        final int argCount = columnSet.mRowsPerStatement * columns.length;
+        if (mPendingArgs == null || mPendingArgs.length < argCount) {
+            mPendingArgs = new Object[argCount];
+        }
+    }
+
+    private void rowAdded() {
+        mPendingRows += 1;
+        if (mPendingRows == mCurrent.mRowsPerStatement) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (mPendingRows == 0) {
+            return;
+        }
+        final SQLiteStatement statement = getStatement(mCurrent, mPendingRows);
+        final int argCount = mPendingRows * mCurrent.mColumns.length;
+        for (int i = 0; i < argCount; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, mPendingArgs[i]);
+            mPendingArgs[i] = null;
+        }
+        mPendingRows = 0;
+        mInsertedRows += statement.executeUpdateDelete();
+    }
+
+    private SQLiteStatement getStatement(ColumnSet columnSet, int rows) {
+        SQLiteStatement statement = columnSet.mStatements.get(rows);
+        if (statement == null) {
+            final String[] columns = columnSet.mColumns;
+            StringBuilder sql = new StringBuilder(32 + rows * columns.length * 2);
+            sql.append("INSERT");
+            sql.append(SQLiteDatabase.CONFLICT_VALUES[mConflictAlgorithm]);
+            sql.append(" INTO ");
+            sql.append(mTable);
+            sql.append('(');
+            for (int i = 0; i < columns.length; i++) {
+                sql.append((i > 0) ? "," : "");
+                sql.append(columns[i]);
+            }
+            sql.append(") VALUES ");
+            for (int row = 0; row < rows; row++) {
+                sql.append((row > 0) ? ",(" : "(");
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append((i > 0) ? ",?" : "?");
+                }
+                sql.append(')');
+            }
+            statement = new SQLiteStatement(mDatabase, sql.toString(), null);
+            columnSet.mStatements.put(rows, statement);
+        }
+        return statement;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class ColumnSet {
+        final String[] mColumns;
+        final int mRowsPerStatement;
+
+        // Statements for this column set, keyed by the number of rows they insert.
+        final SparseArray<SQLiteStatement> mStatements = new SparseArray<SQLiteStatement>();
+
+        ColumnSet(String[] columns, int rowsPerStatement) {
+            mColumns = columns;
+            mRowsPerStatement = rowsPerStatement;
+        }
+
+        boolean matches(ContentValues values) {
+            if (values.size() != mColumns.length) {
+                return false;
+            }
+            for (String column : mColumns) {
+                if (!values.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(String[] columns) {
+            if (columns.length != mColumns.length) {
+                return false;
+            }
+            for (String column : columns) {
+                if (indexOf(mColumns, column) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
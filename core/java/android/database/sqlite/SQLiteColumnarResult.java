@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The complete result of a query, held column by column in typed arrays.
+ * <p>
+ * Created by {@link SQLiteDatabase#queryColumnar}.  The rows are read from SQLite in
+ * blocks, one native call per block, and each column is stored in a primitive
+ * array, so scanning a numeric column needs no per-cell native call and no boxing.
+ * </p><p>
+ * The typed accessors convert values the way {@link Cursor} does.  When a column
+ * holds only values of the requested type, and nulls, the accessor returns the
+ * backing array itself, with nulls stored as 0; otherwise it returns a converted
+ * copy, which is cached.  The returned arrays must not be modified.
+ * </p><p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @hide
+ */
+public final class SQLiteColumnarResult {
+    // The number of cells read with each native call.
+    private static final int CELLS_PER_BLOCK = 16 * 1024;
+
+    private final String[] mColumnNames;
+    private final Column[] mColumns;
+    private int mRowCount;
+
+    private SQLiteColumnarResult(String[] columnNames) {
+        mColumnNames = columnNames;
+        mColumns = new Column[columnNames.length];
+        for (int i = 0; i < mColumns.length; i++) {
+            mColumns[i] = new Column();
+        }
+    }
+
+    /**
+     * Reads all the remaining rows of the reader.
+     */
+    static SQLiteColumnarResult read(SQLiteConnection.RowReader reader) {
+        final String[] columnNames = reader.getColumnNames();
+        final SQLiteColumnarResult result = new SQLiteColumnarResult(columnNames);
+        final SQLiteConnection.RowBlock block = new SQLiteConnection.RowBlock(
+                columnNames.length,
+                Math.max(1, CELLS_PER_BLOCK / Math.max(1, columnNames.length)));
+        int rows;
+        do {
+            rows = reader.stepRows(block);
+            result.append(block);
+        } while (rows == block.mCapacity);
+        result.trim();
+        return result;
+    }
+
+    private void append(SQLiteConnection.RowBlock block) {
+        final int rows = block.mRowCount;
+        if (rows == 0) {
+            return;
+        }
+        final int newRowCount = mRowCount + rows;
+        for (int c = 0; c < mColumns.length; c++) {
+            mColumns[c].append(block, c * block.mCapacity, rows, mRowCount, newRowCount);
+        }
+        // Don't keep strings and blobs alive through the block.
+        Arrays.fill(block.mObjects, null);
+        mRowCount = newRowCount;
+    }
+
+    private void trim() {
+        for (Column column : mColumns) {
+            column.trim(mRowCount);
+        }
+    }
+
+    /**
+     * Returns the number of rows.
+     */
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Returns the number of columns.
+     */
+    public int getColumnCount() {
+        return mColumnNames.length;
+    }
+
+    /**
+     * Returns the names of the columns.
+     */
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    /**
+     * Returns the index of the column with the given name, or -1 if there is none.
+     */
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < mColumnNames.length; i++) {
+            if (mColumnNames[i].equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the type of a cell, one of the <code>FIELD_TYPE</code> constants of
+     * {@link Cursor}.
+     */
+    public int getType(int row, int column) {
+        checkRow(row);
+        return mColumns[column].mTypes[row];
+    }
+
+    /**
+     * Returns true if the column holds values of the given type, one of the
+     * <code>FIELD_TYPE</code> constants of {@link Cursor}.
+     */
+    public boolean hasType(int column, int type) {
+        return (mColumns[column].mTypeMask & (1 << type)) != 0;
+    }
+
+    /**
+     * Returns the rows in which the column is null.
+     */
+    public BitSet getNulls(int column) {
+        final Column c = mColumns[column];
+        if (c.mNulls == null) {
+            final BitSet nulls = new BitSet(mRowCount);
+            if (hasType(column, Cursor.FIELD_TYPE_NULL)) {
+                for (int row = 0; row < mRowCount; row++) {
+                    if (c.mTypes[row] == Cursor.FIELD_TYPE_NULL) {
+                        nulls.set(row);
+                    }
+                }
+            }
+            c.mNulls = nulls;
+        }
+        return c.mNulls;
+    }
+
+    /**
+     * Returns the values of the column as longs.
+     *
+     * @throws SQLiteException if the column contains a blob.
+     */
+    public long[] getLongs(int column) {
+        final Column c = mColumns[column];
+        if (c.mLongValues == null) {
+            if (!hasOtherTypes(c, Cursor.FIELD_TYPE_INTEGER)) {
+                c.mLongValues = c.mLongs != null ? c.mLongs : new long[mRowCount];
+            } else {
+                final long[] values = new long[mRowCount];
+                for (int row = 0; row < mRowCount; row++) {
+                    switch (c.mTypes[row]) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[row] = c.mLongs[row];
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[row] = (long) c.mDoubles[row];
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            try {
+                                values[row] = Long.parseLong(((String) c.mObjects[row]).trim());
+                            } catch (NumberFormatException ex) {
+                                values[row] = 0L;
+                            }
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            throw new SQLiteException("Unable to convert BLOB to long");
+                    }
+                }
+                c.mLongValues = values;
+            }
+        }
+        return c.mLongValues;
+    }
+
+    /**
+     * Returns the values of the column as doubles.
+     *
+     * @throws SQLiteException if the column contains a blob.
+     */
+    public double[] getDoubles(int column) {
+        final Column c = mColumns[column];
+        if (c.mDoubleValues == null) {
+            if (!hasOtherTypes(c, Cursor.FIELD_TYPE_FLOAT)) {
+                c.mDoubleValues = c.mDoubles != null ? c.mDoubles : new double[mRowCount];
+            } else {
+                final double[] values = new double[mRowCount];
+                for (int row = 0; row < mRowCount; row++) {
+                    switch (c.mTypes[row]) {
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[row] = c.mDoubles[row];
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[row] = c.mLongs[row];
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            try {
+                                values[row] = Double.parseDouble((String) c.mObjects[row]);
+                            } catch (NumberFormatException ex) {
+                                values[row] = 0.0;
+                            }
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            throw new SQLiteException("Unable to convert BLOB to double");
+                    }
+                }
+                c.mDoubleValues = values;
+            }
+        }
+        return c.mDoubleValues;
+    }
+
+    /**
+     * Returns the values of the column as strings, with null for null values.
+     *
+     * @throws SQLiteException if the column contains a blob.
+     */
+    public String[] getStrings(int column) {
+        final Column c = mColumns[column];
+        if (c.mStringValues == null) {
+            final String[] values = new String[mRowCount];
+            for (int row = 0; row < mRowCount; row++) {
+                switch (c.mTypes[row]) {
+                    case Cursor.FIELD_TYPE_STRING:
+                        values[row] = (String) c.mObjects[row];
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[row] = Long.toString(c.mLongs[row]);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[row] = Double.toString(c.mDoubles[row]);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        throw new SQLiteException("Unable to convert BLOB to string");
+                }
+            }
+            c.mStringValues = values;
+        }
+        return c.mStringValues;
+    }
+
+    /**
+     * Returns the values of the column as byte arrays, with null for null values.
+     *
+     * @throws SQLiteException if the column contains a number.
+     */
+    public byte[][] getBlobs(int column) {
+        final Column c = mColumns[column];
+        final byte[][] values = new byte[mRowCount][];
+        for (int row = 0; row < mRowCount; row++) {
+            switch (c.mTypes[row]) {
+                case Cursor.FIELD_TYPE_BLOB:
+                    values[row] = (byte[]) c.mObjects[row];
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values[row] = ((String) c.mObjects[row]).getBytes(StandardCharsets.UTF_8);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    throw new SQLiteException("INTEGER data in getBlob");
+                case Cursor.FIELD_TYPE_FLOAT:
+                    throw new SQLiteException("FLOAT data in getBlob");
+            }
+        }
+        return values;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= mRowCount) {
+            throw new IndexOutOfBoundsException("row " + row + " is out of range, "
+                    + "the result has " + mRowCount + " rows");
+        }
+    }
+
+    private static boolean hasOtherTypes(Column c, int type) {
+        return (c.mTypeMask & ~((1 << type) | (1 << Cursor.FIELD_TYPE_NULL))) != 0;
+    }
+
+    private static final class Column {
+        byte[] mTypes = new byte[0];
+        int mTypeMask;
+
+        // Allocated once the column holds a value that needs them.
+        long[] mLongs;
+        double[] mDoubles;
+        Object[] mObjects;
+
+        // Converted values, computed on demand.
+        long[] mLongValues;
+        double[] mDoubleValues;
+        String[] mStringValues;
+        BitSet mNulls;
+
+        void append(SQLiteConnection.RowBlock block, int offset, int rows,
+                int start, int end) {
+            if (mTypes.length < end) {
+                final int capacity = Math.max(end, mTypes.length * 2);
+                mTypes = Arrays.copyOf(mTypes, capacity);
+                if (mLongs != null) {
+                    mLongs = Arrays.copyOf(mLongs, capacity);
+                }
+                if (mDoubles != null) {
+                    mDoubles = Arrays.copyOf(mDoubles, capacity);
+                }
+                if (mObjects != null) {
+                    mObjects = Arrays.copyOf(mObjects, capacity);
+                }
+            }
+
+            int mask = 0;
+            final int[] types = block.mTypes;
+            for (int i = 0; i < rows; i++) {
+                final int type = types[offset + i];
+                mTypes[start + i] = (byte) type;
+                mask |= 1 << type;
+            }
+            mTypeMask |= mask;
+
+            if ((mask & (1 << Cursor.FIELD_TYPE_INTEGER)) != 0 && mLongs == null) {
+                mLongs = new long[mTypes.length];
+            }
+            if (mLongs != null) {
+                System.arraycopy(block.mLongs, offset, mLongs, start, rows);
+            }
+            if ((mask & (1 << Cursor.FIELD_TYPE_FLOAT)) != 0 && mDoubles == null) {
+                mDoubles = new double[mTypes.length];
+            }
+            if (mDoubles != null) {
+                System.arraycopy(block.mDoubles, offset, mDoubles, start, rows);
+            }
+            if ((mask & ((1 << Cursor.FIELD_TYPE_STRING) | (1 << Cursor.FIELD_TYPE_BLOB))) != 0
+                    && mObjects == null) {
+                mObjects = new Object[mTypes.length];
+            }
+            if (mObjects != null) {
+                System.arraycopy(block.mObjects, offset, mObjects, start, rows);
+            }
+        }
+
+        void trim(int rowCount) {
+            if (mTypes.length != rowCount) {
+                mTypes = Arrays.copyOf(mTypes, rowCount);
+                if (mLongs != null) {
+                    mLongs = Arrays.copyOf(mLongs, rowCount);
+                }
+                if (mDoubles != null) {
+                    mDoubles = Arrays.copyOf(mDoubles, rowCount);
+                }
+                if (mObjects != null) {
+                    mObjects = Arrays.copyOf(mObjects, rowCount);
+                }
+            }
+        }
+    }
+}
@@ -109,6 +109,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private boolean mOnlyAllowReadOnlyOperations;
 
+    // The time at which the connection was last acquired from the pool.
+    // Set by SQLiteConnectionPool while holding its lock.
+    long mAcquiredTimeNanos;
+
     // The number of times attachCancellationSignal has been called.
     // Because SQLite statement execution can be reentrant, we keep track of how many
     // times we have attempted to attach a cancellation signal to the connection so that
@@ -151,6 +155,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private static native long nativeExecuteForCursorWindow(
             long connectionPtr, long statementPtr, long windowPtr,
             int startPos, int requiredPos, boolean countAllRows);
+    private static native boolean nativeStepRow(long connectionPtr, long statementPtr,
+            int[] types, long[] longs, double[] doubles, Object[] objects);
+    private static native int nativeStepRows(long connectionPtr, long statementPtr,
+            int maxRows, int[] types, long[] longs, double[] doubles, Object[] objects);
     private static native int nativeGetDbLookaside(long connectionPtr);
     private static native void nativeCancel(long connectionPtr);
     private static native void nativeResetCancel(long connectionPtr, boolean cancelable);
@@ -442,12 +450,6 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         mOnlyAllowReadOnlyOperations = readOnly;
     }
 
-    // Called by SQLiteConnectionPool only.
-    // Returns true if the prepared statement cache contains the specified SQL.
-    boolean isPreparedStatementInCache(String sql) {
-        return mPreparedStatementCache.get(sql) != null;
-    }
-
     /**
      * Gets the unique id of this connection.
      * @return The connection id.
@@ -871,6 +873,58 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Executes a statement and returns a reader that steps through its rows one
+     * at a time, without copying them into a {@link CursorWindow}.
+     * <p>
+     * The statement remains in use until the reader is closed, so the caller must
+     * keep holding this connection and close the reader before releasing it.
+     * </p>
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * It stays attached until the reader is closed.
+     * @return The row reader.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public RowReader executeForRowReader(String sql, Object[] bindArgs,
+            CancellationSignal cancellationSignal) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+
+        final int cookie = mRecentOperations.beginOperation("executeForRowReader",
+                sql, bindArgs);
+        try {
+            final PreparedStatement statement = acquirePreparedStatement(sql);
+            try {
+                throwIfStatementForbidden(statement);
+                bindArguments(statement, bindArgs);
+                applyBlockGuardPolicy(statement);
+                final int columnCount = nativeGetColumnCount(
+                        mConnectionPtr, statement.mStatementPtr);
+                final String[] columnNames = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    columnNames[i] = nativeGetColumnName(
+                            mConnectionPtr, statement.mStatementPtr, i);
+                }
+                attachCancellationSignal(cancellationSignal);
+                return new RowReader(statement, columnNames, cancellationSignal, cookie);
+            } catch (RuntimeException ex) {
+                releasePreparedStatement(statement);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            mRecentOperations.endOperation(cookie);
+            throw ex;
+        }
+    }
+
     private PreparedStatement acquirePreparedStatement(String sql) {
         PreparedStatement statement = mPreparedStatementCache.get(sql);
         boolean skipCache = false;
@@ -885,6 +939,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
 
         final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
+        mPool.onStatementPrepared();
         try {
             final int numParameters = nativeGetParameterCount(mConnectionPtr, statementPtr);
             final int type = DatabaseUtils.getSqlStatementType(sql);
@@ -893,6 +948,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             if (!skipCache && isCacheable(type)) {
                 mPreparedStatementCache.put(sql, statement);
                 statement.mInCache = true;
+                mPool.onPreparedStatementCached(this, sql);
             }
         } catch (RuntimeException ex) {
             // Finalize the statement if an exception occurred and we did not add
@@ -1251,13 +1307,17 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final class PreparedStatementCache
             extends LruCache<String, PreparedStatement> {
         public PreparedStatementCache(int size) {
-            super(size);
+            // Keep hot statements cached across bursts of one-off queries.
+            super(size, POLICY_TINY_LFU);
         }
 
         @Override
         protected void entryRemoved(boolean evicted, String key,
                 PreparedStatement oldValue, PreparedStatement newValue) {
             oldValue.mInCache = false;
+            if (newValue == null) {
+                mPool.onPreparedStatementRemoved(SQLiteConnection.this, key);
+            }
             if (!oldValue.mInUse) {
                 finalizePreparedStatement(oldValue);
             }
@@ -1287,6 +1347,223 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Steps through the rows of a statement started by {@link #executeForRowReader}.
+     * <p>
+     * Each call to {@link #step} copies the values of the next row into a
+     * caller-supplied {@link Row}, so the rows are never buffered.  Must be used
+     * by the thread that holds the connection.
+     * </p>
+     */
+    public final class RowReader {
+        private final PreparedStatement mStatement;
+        private final String[] mColumnNames;
+        private final CancellationSignal mCancellationSignal;
+        private final int mCookie;
+        private int mRowCount;
+        private boolean mDone;
+        private boolean mClosed;
+
+        private RowReader(PreparedStatement statement, String[] columnNames,
+                CancellationSignal cancellationSignal, int cookie) {
+            mStatement = statement;
+            mColumnNames = columnNames;
+            mCancellationSignal = cancellationSignal;
+            mCookie = cookie;
+        }
+
+        /**
+         * Returns the names of the columns of the rows.
+         */
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        /**
+         * Returns the number of rows read so far.
+         */
+        public int getRowCount() {
+            return mRowCount;
+        }
+
+        /**
+         * Reads the next row into the given row, which must have room for all the columns.
+         *
+         * @return True if a row was read, false if there are no more rows.
+         *
+         * @throws SQLiteException if an error occurs.
+         * @throws OperationCanceledException if the operation was canceled.
+         */
+        public boolean step(Row row) {
+            if (mClosed) {
+                throw new IllegalStateException("The row reader has been closed.");
+            }
+            if (mDone) {
+                return false;
+            }
+            try {
+                if (nativeStepRow(mConnectionPtr, mStatement.mStatementPtr,
+                        row.mTypes, row.mLongs, row.mDoubles, row.mObjects)) {
+                    mRowCount += 1;
+                    return true;
+                }
+                mDone = true;
+                return false;
+            } catch (RuntimeException ex) {
+                mDone = true;
+                mRecentOperations.failOperation(mCookie, ex);
+                throw ex;
+            }
+        }
+
+        /**
+         * Reads as many of the next rows as fit into the given block, with one
+         * native call.
+         *
+         * @return The number of rows read, which is less than the capacity of the
+         * block once there are no more rows.
+         *
+         * @throws SQLiteException if an error occurs.
+         * @throws OperationCanceledException if the operation was canceled.
+         */
+        public int stepRows(RowBlock block) {
+            if (mClosed) {
+                throw new IllegalStateException("The row reader has been closed.");
+            }
+            if (block.mColumnCount < mColumnNames.length) {
+                throw new IllegalArgumentException("The block has room for "
+                        + block.mColumnCount + " columns but the rows have "
+                        + mColumnNames.length + ".");
+            }
+            block.mRowCount = 0;
+            if (mDone) {
+                return 0;
+            }
+            try {
+                final int rows = nativeStepRows(mConnectionPtr, mStatement.mStatementPtr,
+                        block.mCapacity, block.mTypes, block.mLongs, block.mDoubles,
+                        block.mObjects);
+                block.mRowCount = rows;
+                mRowCount += rows;
+                if (rows < block.mCapacity) {
+                    mDone = true;
+                }
+                return rows;
+            } catch (RuntimeException ex) {
+                mDone = true;
+                mRecentOperations.failOperation(mCookie, ex);
+                throw ex;
+            }
+        }
+
+        /**
+         * Resets the statement and makes it available to other operations.
+         */
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                detachCancellationSignal(mCancellationSignal);
+                releasePreparedStatement(mStatement);
+            } finally {
+                if (mRecentOperations.endOperationDeferLog(mCookie)) {
+                    mRecentOperations.logOperation(mCookie, "rows=" + mRowCount);
+                }
+            }
+        }
+    }
+
+    /**
+     * A reusable buffer for the values of one row read by a {@link RowReader}.
+     * <p>
+     * The type of column <var>i</var> is one of the <code>FIELD_TYPE</code> constants
+     * of {@link Cursor}.  Integers are stored in <code>mLongs</code>, floats in
+     * <code>mDoubles</code>, and strings and blobs in <code>mObjects</code>.
+     * </p>
+     */
+    public static final class Row {
+        final int[] mTypes;
+        final long[] mLongs;
+        final double[] mDoubles;
+        final Object[] mObjects;
+
+        public Row(int columnCount) {
+            mTypes = new int[columnCount];
+            mLongs = new long[columnCount];
+            mDoubles = new double[columnCount];
+            mObjects = new Object[columnCount];
+        }
+
+        public int getType(int column) {
+            return mTypes[column];
+        }
+
+        public long getLong(int column) {
+            return mLongs[column];
+        }
+
+        public double getDouble(int column) {
+            return mDoubles[column];
+        }
+
+        public Object getObject(int column) {
+            return mObjects[column];
+        }
+    }
+
+    /**
+     * A reusable buffer for the values of a block of rows read by a {@link RowReader}.
+     * <p>
+     * Values are stored column by column, as in {@link Row}: the cell at row
+     * <var>r</var> and column <var>c</var> is at index <code>c * capacity + r</code>
+     * of each array, so the values of one column are contiguous.  Integer and float
+     * slots of cells of another type hold 0.
+     * </p>
+     */
+    public static final class RowBlock {
+        final int mColumnCount;
+        final int mCapacity;
+        final int[] mTypes;
+        final long[] mLongs;
+        final double[] mDoubles;
+        final Object[] mObjects;
+        int mRowCount;
+
+        public RowBlock(int columnCount, int capacity) {
+            if (columnCount < 0 || capacity < 1) {
+                throw new IllegalArgumentException("Invalid block size.");
+            }
+            mColumnCount = columnCount;
+            mCapacity = capacity;
+            final int cells = columnCount * capacity;
+            mTypes = new int[cells];
+            mLongs = new long[cells];
+            mDoubles = new double[cells];
+            mObjects = new Object[cells];
+        }
+
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * Returns the number of rows read into the block by the last call to
+         * {@link RowReader#stepRows}.
+         */
+        public int getRowCount() {
+            return mRowCount;
+        }
+
+        /**
+         * Returns the index of the given cell in the arrays of the block.
+         */
+        public int indexOf(int row, int column) {
+            return column * mCapacity + row;
+        }
+    }
+
     private static final class OperationLog {
         private static final int MAX_RECENT_OPERATIONS = 20;
         private static final int COOKIE_GENERATION_SHIFT = 8;
@@ -20,6 +20,9 @@ import dalvik.system.CloseGuard;
 
 import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.os.OperationCanceledException;
 import android.os.SystemClock;
 import android.util.Log;
@@ -28,9 +31,11 @@ import android.util.Printer;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.LockSupport;
 
 /**
@@ -82,6 +87,15 @@ public final class SQLiteConnectionPool implements Closeable {
     private final AtomicBoolean mConnectionLeaked = new AtomicBoolean();
     private final SQLiteDatabaseConfiguration mConfiguration;
     private int mMaxConnectionPoolSize;
+
+    // The size the pool starts at and shrinks back to when adaptive sizing is enabled.
+    private int mBaseConnectionPoolSize;
+
+    // Closes idle non-primary connections of an adaptive pool.  Created on demand.
+    private IdleConnectionHandler mIdleConnectionHandler;
+
+    // Looper shared by the idle connection handlers of all pools.
+    private static Looper sIdleConnectionLooper;
     private boolean mIsOpen;
     private int mNextConnectionId;
 
@@ -113,6 +127,24 @@ public final class SQLiteConnectionPool implements Closeable {
     private final WeakHashMap<SQLiteConnection, AcquiredConnectionStatus> mAcquiredConnections =
             new WeakHashMap<SQLiteConnection, AcquiredConnectionStatus>();
 
+    // Maps SQL text to the ids of the connections that have it in their prepared
+    // statement cache.  The arrays are replaced rather than modified.  The index is
+    // guarded by itself rather than by mLock because connections update it while
+    // they are acquired by sessions, and from their finalizers.  It holds ids
+    // rather than connections so that leaked connections can still be collected.
+    private final HashMap<String, int[]> mPreparedStatementIndex = new HashMap<String, int[]>();
+
+    // Number of statements prepared by the connections of this pool.
+    private final AtomicInteger mPrepareCount = new AtomicInteger();
+
+    // Number of times a non-primary connection was chosen for a statement from
+    // several available connections, and whether one of them had it prepared.
+    private int mAffinityHitCount;
+    private int mAffinityMissCount;
+
+    // Wait and hold time statistics, guarded by mLock.
+    private final SQLiteConnectionPoolStats mStats = new SQLiteConnectionPoolStats();
+
     /**
      * Connection flag: Read-only.
      * <p>
@@ -145,6 +177,17 @@ public final class SQLiteConnectionPool implements Closeable {
      */
     public static final int CONNECTION_FLAG_INTERACTIVE = 1 << 2;
 
+    /**
+     * Connection flag: Non-primary connection required.
+     * <p>
+     * This flag indicates that the operation must not run on the primary connection,
+     * so that it never holds up writers.  The request only waits for non-primary
+     * connections.  It fails if the pool cannot have any, that is, if the database
+     * does not use write-ahead logging.
+     * </p>
+     */
+    public static final int CONNECTION_FLAG_NON_PRIMARY_CONNECTION_ONLY = 1 << 3;
+
     private SQLiteConnectionPool(SQLiteDatabaseConfiguration configuration) {
         mConfiguration = new SQLiteDatabaseConfiguration(configuration);
         setMaxConnectionPoolSizeLocked();
@@ -224,6 +267,9 @@ public final class SQLiteConnectionPool implements Closeable {
                 mIsOpen = false;
 
                 closeAvailableConnectionsAndLogExceptionsLocked();
+                if (mIdleConnectionHandler != null) {
+                    mIdleConnectionHandler.removeCallbacksAndMessages(null);
+                }
 
                 final int pendingCount = mAcquiredConnections.size();
                 if (pendingCount != 0) {
@@ -369,6 +415,9 @@ public final class SQLiteConnectionPool implements Closeable {
                         + "from this pool or has already been released.");
             }
 
+            mStats.recordHold(connection.isPrimaryConnection(),
+                    (System.nanoTime() - connection.mAcquiredTimeNanos) / 1000);
+
             if (!mIsOpen) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else if (connection.isPrimaryConnection()) {
@@ -382,6 +431,7 @@ public final class SQLiteConnectionPool implements Closeable {
             } else {
                 if (recycleConnectionLocked(connection, status)) {
                     mAvailableNonPrimaryConnections.add(connection);
+                    scheduleIdleConnectionCloseLocked(connection);
                 }
                 wakeConnectionWaitersLocked();
             }
@@ -443,19 +493,124 @@ public final class SQLiteConnectionPool implements Closeable {
     public void collectDbStats(ArrayList<DbStats> dbStatsList) {
         synchronized (mLock) {
             if (mAvailablePrimaryConnection != null) {
-                mAvailablePrimaryConnection.collectDbStats(dbStatsList);
+                collectDbStatsLocked(mAvailablePrimaryConnection, false, dbStatsList);
             }
 
             for (SQLiteConnection connection : mAvailableNonPrimaryConnections) {
-                connection.collectDbStats(dbStatsList);
+                collectDbStatsLocked(connection, false, dbStatsList);
             }
 
             for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
-                connection.collectDbStatsUnsafe(dbStatsList);
+                collectDbStatsLocked(connection, true, dbStatsList);
             }
         }
     }
 
+    // Can't throw.
+    private void collectDbStatsLocked(SQLiteConnection connection, boolean unsafe,
+            ArrayList<DbStats> dbStatsList) {
+        final int index = dbStatsList.size();
+        if (unsafe) {
+            connection.collectDbStatsUnsafe(dbStatsList);
+        } else {
+            connection.collectDbStats(dbStatsList);
+        }
+
+        // The main database entry of the primary connection also carries the
+        // statement routing counters of the pool.
+        if (connection.isPrimaryConnection() && dbStatsList.size() > index) {
+            dbStatsList.get(index).prepareStats = mAffinityHitCount + "/"
+                    + mAffinityMissCount + "/" + mPrepareCount.get();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the wait and hold time statistics of this pool.
+     */
+    public SQLiteConnectionPoolStats getStats() {
+        synchronized (mLock) {
+            return mStats.copy();
+        }
+    }
+
+    /**
+     * Returns the number of statements prepared by the connections of this pool,
+     * that is, the number of prepared statement cache misses.
+     */
+    public int getPrepareCount() {
+        return mPrepareCount.get();
+    }
+
+    /**
+     * Returns the number of times a statement was routed to an available
+     * non-primary connection that already had it prepared.
+     */
+    public int getAffinityHitCount() {
+        synchronized (mLock) {
+            return mAffinityHitCount;
+        }
+    }
+
+    /**
+     * Returns the number of times a statement had to be routed to an available
+     * non-primary connection that did not have it prepared.
+     */
+    public int getAffinityMissCount() {
+        synchronized (mLock) {
+            return mAffinityMissCount;
+        }
+    }
+
+    // Called by SQLiteConnection when it prepares a statement.
+    void onStatementPrepared() {
+        mPrepareCount.incrementAndGet();
+    }
+
+    // Called by SQLiteConnection when a statement enters its prepared statement cache.
+    void onPreparedStatementCached(SQLiteConnection connection, String sql) {
+        final int connectionId = connection.getConnectionId();
+        synchronized (mPreparedStatementIndex) {
+            final int[] ids = mPreparedStatementIndex.get(sql);
+            if (ids == null) {
+                mPreparedStatementIndex.put(sql, new int[] { connectionId });
+            } else if (indexOfConnectionId(ids, connectionId) < 0) {
+                final int[] newIds = new int[ids.length + 1];
+                System.arraycopy(ids, 0, newIds, 0, ids.length);
+                newIds[ids.length] = connectionId;
+                mPreparedStatementIndex.put(sql, newIds);
+            }
+        }
+    }
+
+    // Called by SQLiteConnection when a statement leaves its prepared statement cache.
+    void onPreparedStatementRemoved(SQLiteConnection connection, String sql) {
+        final int connectionId = connection.getConnectionId();
+        synchronized (mPreparedStatementIndex) {
+            final int[] ids = mPreparedStatementIndex.get(sql);
+            final int index = ids != null ? indexOfConnectionId(ids, connectionId) : -1;
+            if (index < 0) {
+                return;
+            }
+            if (ids.length == 1) {
+                mPreparedStatementIndex.remove(sql);
+            } else {
+                final int[] newIds = new int[ids.length - 1];
+                System.arraycopy(ids, 0, newIds, 0, index);
+                System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+                mPreparedStatementIndex.put(sql, newIds);
+            }
+        }
+    }
+
+    private static int indexOfConnectionId(int[] ids, int connectionId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == connectionId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     // Might throw.
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
@@ -592,6 +747,10 @@ public final class SQLiteConnectionPool implements Closeable {
             CancellationSignal cancellationSignal) {
         final boolean wantPrimaryConnection =
                 (connectionFlags & CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY) != 0;
+        final boolean nonPrimaryOnly =
+                (connectionFlags & CONNECTION_FLAG_NON_PRIMARY_CONNECTION_ONLY) != 0;
+        final boolean interactive = (connectionFlags & CONNECTION_FLAG_INTERACTIVE) != 0;
+        final long startNanos = System.nanoTime();
 
         final ConnectionWaiter waiter;
         final int nonce;
@@ -603,16 +762,25 @@ public final class SQLiteConnectionPool implements Closeable {
                 cancellationSignal.throwIfCanceled();
             }
 
+            if (nonPrimaryOnly && (wantPrimaryConnection || mMaxConnectionPoolSize < 2)) {
+                throw new IllegalStateException("Cannot perform this operation "
+                        + "because it requires a non-primary connection and the "
+                        + "connection pool for database '" + mConfiguration.label
+                        + "' does not have any.  Enable write-ahead logging first.");
+            }
+
             // Try to acquire a connection.
             SQLiteConnection connection = null;
             if (!wantPrimaryConnection) {
                 connection = tryAcquireNonPrimaryConnectionLocked(
                         sql, connectionFlags); // might throw
             }
-            if (connection == null) {
+            if (connection == null && !nonPrimaryOnly) {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
             }
             if (connection != null) {
+                mStats.recordWait(connection.isPrimaryConnection(), interactive,
+                        (System.nanoTime() - startNanos) / 1000);
                 return connection;
             }
 
@@ -637,6 +805,12 @@ public final class SQLiteConnectionPool implements Closeable {
                 mConnectionWaiterQueue = waiter;
             }
 
+            int queueDepth = 0;
+            for (ConnectionWaiter w = mConnectionWaiterQueue; w != null; w = w.mNext) {
+                queueDepth += 1;
+            }
+            mStats.recordQueueDepth(queueDepth);
+
             nonce = waiter.mNonce;
         }
 
@@ -658,6 +832,7 @@ public final class SQLiteConnectionPool implements Closeable {
             // Rethrow an exception from the wait, if we got one.
             long busyTimeoutMillis = CONNECTION_POOL_BUSY_MILLIS;
             long nextBusyTimeoutTime = waiter.mStartTime + busyTimeoutMillis;
+            long parkMillis = getParkMillis(busyTimeoutMillis, wantPrimaryConnection);
             for (;;) {
                 // Detect and recover from connection leaks.
                 if (mConnectionLeaked.compareAndSet(true, false)) {
@@ -667,7 +842,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 }
 
                 // Wait to be unparked (may already have happened), a timeout, or interruption.
-                LockSupport.parkNanos(this, busyTimeoutMillis * 1000000L);
+                LockSupport.parkNanos(this, parkMillis * 1000000L);
 
                 // Clear the interrupted flag, just in case.
                 Thread.interrupted();
@@ -681,19 +856,27 @@ public final class SQLiteConnectionPool implements Closeable {
                     if (connection != null || ex != null) {
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            mStats.recordWait(connection.isPrimaryConnection(), interactive,
+                                    (System.nanoTime() - startNanos) / 1000);
                             return connection;
                         }
                         throw ex; // rethrow!
                     }
 
                     final long now = SystemClock.uptimeMillis();
+                    if (!wantPrimaryConnection
+                            && tryGrowConnectionPoolLocked(now - waiter.mStartTime)) {
+                        // The waiter might be handed a new connection right away.
+                        wakeConnectionWaitersLocked();
+                    }
                     if (now < nextBusyTimeoutTime) {
-                        busyTimeoutMillis = now - nextBusyTimeoutTime;
+                        busyTimeoutMillis = nextBusyTimeoutTime - now;
                     } else {
                         logConnectionPoolBusyLocked(now - waiter.mStartTime, connectionFlags);
                         busyTimeoutMillis = CONNECTION_POOL_BUSY_MILLIS;
                         nextBusyTimeoutTime = now + busyTimeoutMillis;
                     }
+                    parkMillis = getParkMillis(busyTimeoutMillis, wantPrimaryConnection);
                 }
             }
         } finally {
@@ -799,7 +982,9 @@ public final class SQLiteConnectionPool implements Closeable {
                             nonPrimaryConnectionNotAvailable = true;
                         }
                     }
-                    if (connection == null && !primaryConnectionNotAvailable) {
+                    if (connection == null && !primaryConnectionNotAvailable
+                            && (waiter.mConnectionFlags
+                                    & CONNECTION_FLAG_NON_PRIMARY_CONNECTION_ONLY) == 0) {
                         connection = tryAcquirePrimaryConnectionLocked(
                                 waiter.mConnectionFlags); // might throw
                         if (connection == null) {
@@ -872,14 +1057,10 @@ public final class SQLiteConnectionPool implements Closeable {
         if (availableCount > 1 && sql != null) {
             // If we have a choice, then prefer a connection that has the
             // prepared statement in its cache.
-            for (int i = 0; i < availableCount; i++) {
-                connection = mAvailableNonPrimaryConnections.get(i);
-                if (connection.isPreparedStatementInCache(sql)) {
-                    mAvailableNonPrimaryConnections.remove(i);
-                    finishAcquireConnectionLocked(connection, connectionFlags); // might throw
-                    return connection;
-                }
-            }
+            final int index = selectConnectionForSqlLocked(sql);
+            connection = mAvailableNonPrimaryConnections.remove(index);
+            finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+            return connection;
         }
         if (availableCount > 0) {
             // Otherwise, just grab the next one.
@@ -902,12 +1083,58 @@ public final class SQLiteConnectionPool implements Closeable {
         return connection;
     }
 
+    // Returns the index of the available non-primary connection to use for the SQL.
+    // A connection that has the statement prepared wins.  Otherwise the statement is
+    // routed by rendezvous hashing on the connection ids, so that each statement keeps
+    // landing on the same connections and is prepared on as few of them as possible.
+    private int selectConnectionForSqlLocked(String sql) {
+        final int[] ids;
+        synchronized (mPreparedStatementIndex) {
+            ids = mPreparedStatementIndex.get(sql);
+        }
+
+        final int sqlHash = sql.hashCode();
+        final int availableCount = mAvailableNonPrimaryConnections.size();
+        int bestIndex = 0;
+        int bestWeight = Integer.MIN_VALUE;
+        for (int i = 0; i < availableCount; i++) {
+            final int connectionId = mAvailableNonPrimaryConnections.get(i).getConnectionId();
+            if (ids != null && indexOfConnectionId(ids, connectionId) >= 0) {
+                mAffinityHitCount += 1;
+                return i;
+            }
+            final int weight = mixHash(sqlHash * 31 + connectionId);
+            if (weight > bestWeight) {
+                bestWeight = weight;
+                bestIndex = i;
+            }
+        }
+        mAffinityMissCount += 1;
+        return bestIndex;
+    }
+
+    private static int mixHash(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
     // Might throw.
     private void finishAcquireConnectionLocked(SQLiteConnection connection, int connectionFlags) {
         try {
             final boolean readOnly = (connectionFlags & CONNECTION_FLAG_READ_ONLY) != 0;
             connection.setOnlyAllowReadOnlyOperations(readOnly);
 
+            if (mIdleConnectionHandler != null) {
+                mIdleConnectionHandler.removeMessages(connection.getConnectionId());
+            }
+            if (readOnly && connection.isPrimaryConnection()) {
+                mStats.recordPrimaryRead();
+            }
+            connection.mAcquiredTimeNanos = System.nanoTime();
             mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
         } catch (RuntimeException ex) {
             Log.e(TAG, "Failed to prepare acquired connection for session, closing it: "
@@ -928,10 +1155,14 @@ public final class SQLiteConnectionPool implements Closeable {
                     break;
                 }
 
-                // If we are holding the primary connection then we are blocking the waiter.
+                // If we are holding the primary connection then we are blocking the waiter,
+                // unless it only accepts non-primary connections.
                 // Likewise, if we are holding a non-primary connection and the waiter
                 // would accept a non-primary connection, then we are blocking the waier.
-                if (holdingPrimaryConnection || !waiter.mWantPrimaryConnection) {
+                if (holdingPrimaryConnection
+                        ? (waiter.mConnectionFlags
+                                & CONNECTION_FLAG_NON_PRIMARY_CONNECTION_ONLY) == 0
+                        : !waiter.mWantPrimaryConnection) {
                     return true;
                 }
 
@@ -947,13 +1178,114 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private void setMaxConnectionPoolSizeLocked() {
         if ((mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
+            final int previousSize = mMaxConnectionPoolSize;
             mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            final int maxAdaptiveSize = mConfiguration.maxAdaptiveConnectionPoolSize;
+            if (maxAdaptiveSize > 0) {
+                // Keep any growth from before the reconfiguration, within the new bounds.
+                mBaseConnectionPoolSize = Math.min(mMaxConnectionPoolSize, maxAdaptiveSize);
+                mMaxConnectionPoolSize = Math.max(mBaseConnectionPoolSize,
+                        Math.min(previousSize, maxAdaptiveSize));
+            } else {
+                mBaseConnectionPoolSize = mMaxConnectionPoolSize;
+            }
         } else {
             // TODO: We don't actually need to restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
             // with other journal modes.  For now, enabling connection pooling and
             // using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
+            mBaseConnectionPoolSize = 1;
+        }
+    }
+
+    private boolean isAdaptiveLocked() {
+        return mMaxConnectionPoolSize > 1 && mConfiguration.maxAdaptiveConnectionPoolSize > 0;
+    }
+
+    // Returns how long a waiter should park before checking on its request again.
+    // Waiters for non-primary connections of an adaptive pool wake up often enough
+    // to grow the pool.
+    private long getParkMillis(long busyTimeoutMillis, boolean wantPrimaryConnection) {
+        synchronized (mLock) {
+            if (!wantPrimaryConnection && isAdaptiveLocked()) {
+                return Math.max(1, Math.min(busyTimeoutMillis,
+                        mConfiguration.connectionPoolGrowMillis));
+            }
+            return busyTimeoutMillis;
+        }
+    }
+
+    // Allows one more connection if the pool is adaptive and a request has waited
+    // longer than the configured threshold.  Returns true if the pool grew.
+    private boolean tryGrowConnectionPoolLocked(long waitMillis) {
+        if (!isAdaptiveLocked()
+                || waitMillis < mConfiguration.connectionPoolGrowMillis
+                || mMaxConnectionPoolSize >= mConfiguration.maxAdaptiveConnectionPoolSize) {
+            return false;
+        }
+        mMaxConnectionPoolSize += 1;
+        return true;
+    }
+
+    // Can't throw.
+    private void scheduleIdleConnectionCloseLocked(SQLiteConnection connection) {
+        final long timeoutMillis = mConfiguration.idleConnectionTimeoutMillis;
+        if (!isAdaptiveLocked() || timeoutMillis <= 0) {
+            return;
+        }
+        if (mIdleConnectionHandler == null) {
+            mIdleConnectionHandler = new IdleConnectionHandler(getIdleConnectionLooper());
+        }
+        final int connectionId = connection.getConnectionId();
+        mIdleConnectionHandler.removeMessages(connectionId);
+        mIdleConnectionHandler.sendEmptyMessageDelayed(connectionId, timeoutMillis);
+    }
+
+    // Can't throw.
+    private void closeIdleConnectionLocked(int connectionId) {
+        if (!mIsOpen || !isAdaptiveLocked()) {
+            return;
+        }
+        final int count = mAvailableNonPrimaryConnections.size();
+        for (int i = 0; i < count; i++) {
+            final SQLiteConnection connection = mAvailableNonPrimaryConnections.get(i);
+            if (connection.getConnectionId() == connectionId) {
+                mAvailableNonPrimaryConnections.remove(i);
+                closeConnectionAndLogExceptionsLocked(connection);
+                if (mMaxConnectionPoolSize > mBaseConnectionPoolSize) {
+                    mMaxConnectionPoolSize -= 1;
+                }
+                return;
+            }
+        }
+    }
+
+    private static Looper getIdleConnectionLooper() {
+        synchronized (SQLiteConnectionPool.class) {
+            if (sIdleConnectionLooper == null) {
+                Thread thread = new Thread("SQLiteConnectionPool") {
+                    @Override
+                    public void run() {
+                        Looper.prepare();
+                        synchronized (SQLiteConnectionPool.class) {
+                            sIdleConnectionLooper = Looper.myLooper();
+                            SQLiteConnectionPool.class.notifyAll();
+                        }
+                        Looper.loop();
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+                while (sIdleConnectionLooper == null) {
+                    try {
+                        SQLiteConnectionPool.class.wait();
+                    } catch (InterruptedException ex) {
+                        // Keep waiting, the thread is about to publish its looper.
+                    }
+                }
+            }
+            return sIdleConnectionLooper;
         }
     }
 
@@ -1004,6 +1336,18 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            if (isAdaptiveLocked()) {
+                printer.println("  Adaptive pool: base " + mBaseConnectionPoolSize
+                        + ", max " + mConfiguration.maxAdaptiveConnectionPoolSize
+                        + ", grow after " + mConfiguration.connectionPoolGrowMillis
+                        + " ms, idle timeout " + mConfiguration.idleConnectionTimeoutMillis
+                        + " ms");
+            }
+            printer.println("  Prepared statements: " + mPrepareCount.get()
+                    + ", connection affinity hits: " + mAffinityHitCount
+                    + ", misses: " + mAffinityMissCount);
+            printer.println("  Statistics:");
+            mStats.dump(printer, "    ");
 
             printer.println("  Available primary connection:");
             if (mAvailablePrimaryConnection != null) {
@@ -1057,6 +1401,21 @@ public final class SQLiteConnectionPool implements Closeable {
         return "SQLiteConnectionPool: " + mConfiguration.path;
     }
 
+    // Closes a non-primary connection when it has been available for the idle
+    // timeout.  Messages are keyed by connection id and removed when it is acquired.
+    private final class IdleConnectionHandler extends Handler {
+        IdleConnectionHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            synchronized (mLock) {
+                closeIdleConnectionLocked(msg.what);
+            }
+        }
+    }
+
     private static final class ConnectionWaiter {
         public ConnectionWaiter mNext;
         public Thread mThread;
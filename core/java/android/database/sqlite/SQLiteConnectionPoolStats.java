@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.util.Printer;
+
+import com.android.internal.util.Histogram;
+
+/**
+ * Statistics about how long sessions wait for and hold the connections of a
+ * {@link SQLiteConnectionPool}.
+ * <p>
+ * The pool records into its own instance while holding its lock.  Values go into
+ * fixed power-of-two histograms, so recording neither allocates nor formats strings.
+ * Use {@link SQLiteConnectionPool#getStats} to get a snapshot.
+ * </p>
+ *
+ * @hide
+ */
+public final class SQLiteConnectionPoolStats {
+    // Indexed by waitIndex(primary, interactive).
+    private final Histogram[] mWaitMicros = new Histogram[4];
+    private final Histogram mPrimaryHoldMicros;
+    private final Histogram mNonPrimaryHoldMicros;
+    private final Histogram mQueueDepth;
+    private long mPrimaryReadCount;
+
+    SQLiteConnectionPoolStats() {
+        for (int i = 0; i < mWaitMicros.length; i++) {
+            mWaitMicros[i] = new Histogram();
+        }
+        mPrimaryHoldMicros = new Histogram();
+        mNonPrimaryHoldMicros = new Histogram();
+        mQueueDepth = new Histogram();
+    }
+
+    private SQLiteConnectionPoolStats(SQLiteConnectionPoolStats other) {
+        for (int i = 0; i < mWaitMicros.length; i++) {
+            mWaitMicros[i] = other.mWaitMicros[i].copy();
+        }
+        mPrimaryHoldMicros = other.mPrimaryHoldMicros.copy();
+        mNonPrimaryHoldMicros = other.mNonPrimaryHoldMicros.copy();
+        mQueueDepth = other.mQueueDepth.copy();
+        mPrimaryReadCount = other.mPrimaryReadCount;
+    }
+
+    SQLiteConnectionPoolStats copy() {
+        return new SQLiteConnectionPoolStats(this);
+    }
+
+    void recordWait(boolean primary, boolean interactive, long micros) {
+        mWaitMicros[waitIndex(primary, interactive)].record(micros);
+    }
+
+    void recordHold(boolean primary, long micros) {
+        (primary ? mPrimaryHoldMicros : mNonPrimaryHoldMicros).record(micros);
+    }
+
+    void recordQueueDepth(int depth) {
+        mQueueDepth.record(depth);
+    }
+
+    void recordPrimaryRead() {
+        mPrimaryReadCount += 1;
+    }
+
+    private static int waitIndex(boolean primary, boolean interactive) {
+        return (primary ? 2 : 0) | (interactive ? 1 : 0);
+    }
+
+    /**
+     * Returns the time in microseconds that requests waited for a connection.
+     *
+     * @param primary True for requests that were granted the primary connection.
+     * @param interactive True for requests with
+     * {@link SQLiteConnectionPool#CONNECTION_FLAG_INTERACTIVE}.
+     */
+    public Histogram getWaitTime(boolean primary, boolean interactive) {
+        return mWaitMicros[waitIndex(primary, interactive)];
+    }
+
+    /**
+     * Returns the time in microseconds that connections were held before they
+     * were released back to the pool.
+     *
+     * @param primary True for the primary connection, false for the others.
+     */
+    public Histogram getHoldTime(boolean primary) {
+        return primary ? mPrimaryHoldMicros : mNonPrimaryHoldMicros;
+    }
+
+    /**
+     * Returns the length of the waiter queue, sampled each time a request
+     * had to wait, including that request.
+     */
+    public Histogram getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns the number of read-only requests that were granted the primary connection.
+     */
+    public long getPrimaryReadCount() {
+        return mPrimaryReadCount;
+    }
+
+    /**
+     * Prints the statistics.
+     *
+     * @param printer The printer to receive the dump, not null.
+     * @param prefix A prefix to prepend to each line which is printed.
+     */
+    public void dump(Printer printer, String prefix) {
+        printer.println(prefix + "Wait us (non-primary): " + getWaitTime(false, false));
+        printer.println(prefix + "Wait us (non-primary, interactive): "
+                + getWaitTime(false, true));
+        printer.println(prefix + "Wait us (primary): " + getWaitTime(true, false));
+        printer.println(prefix + "Wait us (primary, interactive): " + getWaitTime(true, true));
+        printer.println(prefix + "Hold us (non-primary): " + mNonPrimaryHoldMicros);
+        printer.println(prefix + "Hold us (primary): " + mPrimaryHoldMicros);
+        printer.println(prefix + "Waiter queue depth: " + mQueueDepth);
+        printer.println(prefix + "Reads on primary connection: " + mPrimaryReadCount);
+    }
+}
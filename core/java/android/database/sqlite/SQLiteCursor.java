@@ -19,11 +19,17 @@ package android.database.sqlite;
 import android.database.AbstractWindowedCursor;
 import android.database.CursorWindow;
 import android.database.DatabaseUtils;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
 //import android.os.StrictMode;
 import android.util.Log;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * A Cursor implementation that exposes results from a query on a
@@ -36,6 +42,12 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     static final String TAG = "SQLiteCursor";
     static final int NO_COUNT = -1;
 
+    /** The size of the first window of a query with no remembered window size */
+    static final int INITIAL_WINDOW_SIZE = 16 * 1024;
+
+    /** The smallest window size that is remembered for a query */
+    static final int MIN_WINDOW_SIZE = 4 * 1024;
+
     /** The name of the table to edit */
     private final String mEditTable;
 
@@ -54,12 +66,30 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     /** The number of rows that can fit in the cursor window, 0 if unknown */
     private int mCursorWindowCapacity;
 
+    /** True if the cursor sizes its own windows, false if a window was set */
+    private boolean mAdaptiveWindowSize = true;
+
+    /** The size of the next window to create, 0 if not chosen yet */
+    private int mWindowSize;
+
     /** A mapping of column names to column indices, to speed up lookups */
     private Map<String, Integer> mColumnNameMap;
 
     /** Used to find out where a cursor was allocated in case it never got released. */
     private final Throwable mStackTrace;
 
+    /**
+     * The fraction of the window that must be read before the next window is
+     * prefetched, or 0 if prefetching is disabled
+     */
+    private float mPrefetchThreshold;
+
+    /** The executor that fills prefetched windows */
+    private Executor mPrefetchExecutor;
+
+    /** The window being prefetched, or null if none */
+    private WindowPrefetch mPrefetch;
+
     /**
      * Execute a query and provide access to its result set through a Cursor
      * interface. For a query such as: {@code SELECT name, birth, phone FROM
@@ -120,12 +150,121 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         // Make sure the row at newPosition is present in the window
         if (mWindow == null || newPosition < mWindow.getStartPosition() ||
                 newPosition >= (mWindow.getStartPosition() + mWindow.getNumRows())) {
-            fillWindow(newPosition);
+            if (!takePrefetchedWindow(newPosition)) {
+                fillWindow(newPosition);
+            }
         }
 
+        if (mPrefetchThreshold > 0) {
+            maybePrefetchNextWindow(newPosition);
+        }
         return true;
     }
 
+    /**
+     * Enables filling the next window in the background while the current one is
+     * being read.
+     * <p>
+     * Once the cursor has moved past the given fraction of the rows of its window,
+     * the window that a forward move past its end would need is filled on the
+     * executor, using another connection.  When the cursor reaches that row, the
+     * prefetched window is swapped in instead of filling one synchronously.  The
+     * prefetched window starts at the same position a synchronous fill would pick.
+     * Prefetching is skipped while the thread of the cursor holds a connection,
+     * for example in a transaction.  Once the query is canceled, a prefetch that
+     * is in progress is stopped the next time the cursor moves to another window
+     * or is closed.
+     * </p>
+     *
+     * @param threshold The fraction of the window, between 0 and 1, after which the
+     * next window is prefetched, or 0 to disable prefetching.
+     * @param executor The executor on which to fill windows, or null to use
+     * {@link AsyncTask#THREAD_POOL_EXECUTOR}.
+     * @hide
+     */
+    public void setWindowPrefetch(float threshold, Executor executor) {
+        if (threshold < 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be between 0 and 1.");
+        }
+        mPrefetchThreshold = threshold;
+        mPrefetchExecutor = executor != null ? executor : AsyncTask.THREAD_POOL_EXECUTOR;
+        if (threshold == 0) {
+            discardPrefetch();
+        }
+    }
+
+    private void maybePrefetchNextWindow(int position) {
+        if (mPrefetch != null || mWindow == null || mCount == NO_COUNT) {
+            return;
+        }
+        final int windowStart = mWindow.getStartPosition();
+        final int windowRows = mWindow.getNumRows();
+        final int nextPosition = windowStart + windowRows;
+        if (nextPosition >= mCount
+                || position - windowStart < mPrefetchThreshold * windowRows) {
+            return;
+        }
+        // A prefetch would have to wait for the connection that this thread is holding.
+        if (mQuery.isCanceled() || getDatabase().getThreadSession().hasConnection()) {
+            return;
+        }
+
+        final int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(nextPosition,
+                mCursorWindowCapacity);
+        final WindowPrefetch prefetch = new WindowPrefetch(createWindow(), startPos,
+                nextPosition);
+        mPrefetch = prefetch;
+        try {
+            prefetch.start(mPrefetchExecutor);
+        } catch (RuntimeException ex) {
+            // The executor rejected the task, so fill the window when it is needed.
+            discardPrefetch();
+        }
+    }
+
+    // Swaps in the prefetched window if it holds the required row.
+    private boolean takePrefetchedWindow(int requiredPos) {
+        final WindowPrefetch prefetch = mPrefetch;
+        if (prefetch == null) {
+            return false;
+        }
+        mPrefetch = null;
+
+        boolean swapped = false;
+        try {
+            // Waiting for the prefetch is only safe while this thread does not hold a
+            // connection that it may need.  A canceled query is left to the synchronous
+            // fill, which reports the cancellation.
+            if (prefetch.mRequiredPos == requiredPos && !mQuery.isCanceled()
+                    && !getDatabase().getThreadSession().hasConnection()) {
+                prefetch.mTask.get();
+                final CursorWindow window = prefetch.mWindow;
+                if (requiredPos >= window.getStartPosition()
+                        && requiredPos < window.getStartPosition() + window.getNumRows()) {
+                    closeWindow();
+                    mWindow = window;
+                    swapped = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            // The synchronous fill will report the error, if it persists.
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!swapped) {
+                prefetch.discard();
+            }
+        }
+        return swapped;
+    }
+
+    private void discardPrefetch() {
+        if (mPrefetch != null) {
+            mPrefetch.discard();
+            mPrefetch = null;
+        }
+    }
+
     @Override
     public int getCount() {
         if (mCount == NO_COUNT) {
@@ -135,29 +274,103 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     }
 
     private void fillWindow(int requiredPos) {
-        clearOrCreateWindow(getDatabase().getPath());
-
-        try {
-            if (mCount == NO_COUNT) {
-                int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(requiredPos, 0);
-                mCount = mQuery.fillWindow(mWindow, startPos, requiredPos, true);
-                mCursorWindowCapacity = mWindow.getNumRows();
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "received count(*) from native_fill_window: " + mCount);
+        boolean retry;
+        do {
+            prepareWindow();
+
+            try {
+                if (mCount == NO_COUNT) {
+                    int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(
+                            requiredPos, 0);
+                    mCount = mQuery.fillWindow(mWindow, startPos, requiredPos, true);
+                    mCursorWindowCapacity = mWindow.getNumRows();
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "received count(*) from native_fill_window: " + mCount);
+                    }
+                } else {
+                    int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(requiredPos,
+                            mCursorWindowCapacity);
+                    mQuery.fillWindow(mWindow, startPos, requiredPos, false);
                 }
-            } else {
-                int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(requiredPos,
-                        mCursorWindowCapacity);
-                mQuery.fillWindow(mWindow, startPos, requiredPos, false);
+            } catch (RuntimeException ex) {
+                // Close the cursor window if the query failed and therefore will
+                // not produce any results.  This helps to avoid accidentally leaking
+                // the cursor window if the client does not correctly handle exceptions
+                // and fails to close the cursor.
+                closeWindow();
+                throw ex;
             }
-        } catch (RuntimeException ex) {
-            // Close the cursor window if the query failed and therefore will
-            // not produce any results.  This helps to avoid accidentally leaking
-            // the cursor window if the client does not correctly handle exceptions
-            // and fails to close the cursor.
+
+            retry = mAdaptiveWindowSize && updateWindowSize(requiredPos);
+        } while (retry);
+    }
+
+    private void prepareWindow() {
+        if (!mAdaptiveWindowSize) {
+            clearOrCreateWindow(getDatabase().getPath());
+            return;
+        }
+        if (mWindowSize == 0) {
+            mWindowSize = getDatabase().getCursorWindowSizeHint(mQuery.getSql());
+            if (mWindowSize == 0) {
+                mWindowSize = INITIAL_WINDOW_SIZE;
+            }
+        }
+        if (mWindow != null && mWindow.getSize() >= mWindowSize) {
+            mWindow.clear();
+        } else {
             closeWindow();
-            throw ex;
+            mWindow = createWindow();
+        }
+    }
+
+    private CursorWindow createWindow() {
+        return mAdaptiveWindowSize && mWindowSize != 0
+                ? new CursorWindow(getDatabase().getPath(), mWindowSize)
+                : new CursorWindow(getDatabase().getPath());
+    }
+
+    /**
+     * Chooses the size of the next window from how the last fill went, and
+     * remembers it for later queries with the same SQL.
+     * <p>
+     * Windows start small and grow geometrically toward the estimated size of the
+     * whole result, up to the default window size.  A result that fits entirely
+     * is remembered at the size it actually used.
+     * </p>
+     *
+     * @return True if the required row did not fit at all, so the window must be
+     * filled again at the new size.
+     */
+    private boolean updateWindowSize(int requiredPos) {
+        final CursorWindow window = mWindow;
+        final int size = window.getSize();
+        final int rows = window.getNumRows();
+        final int usedBytes = size - window.getFreeSpace();
+        final int ceiling = CursorWindow.getDefaultCursorWindowSize();
+        final String sql = mQuery.getSql();
+
+        if (window.getStartPosition() + rows >= mCount) {
+            // The rest of the result fit.
+            if (window.getStartPosition() == 0) {
+                getDatabase().setCursorWindowSizeHint(sql,
+                        Math.min(ceiling, Math.max(usedBytes, MIN_WINDOW_SIZE)));
+            }
+            return false;
         }
+        if (size >= ceiling) {
+            return false;
+        }
+
+        final long estimate = rows != 0 ? (long) usedBytes / rows * mCount : 0;
+        final int nextSize = (int) Math.min(ceiling, Math.max(size * 2L, estimate));
+        mWindowSize = nextSize;
+        getDatabase().setCursorWindowSizeHint(sql, nextSize);
+        if (rows != 0) {
+            mCursorWindowCapacity = rows;
+            return false;
+        }
+        return requiredPos < mCount;
     }
 
     @Override
@@ -200,6 +413,12 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         mDriver.cursorDeactivated();
     }
 
+    @Override
+    protected void closeWindow() {
+        discardPrefetch();
+        super.closeWindow();
+    }
+
     @Override
     public void close() {
         super.close();
@@ -220,6 +439,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
                 return false;
             }
 
+            discardPrefetch();
             if (mWindow != null) {
                 mWindow.clear();
             }
@@ -242,6 +462,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     public void setWindow(CursorWindow window) {
         super.setWindow(window);
         mCount = NO_COUNT;
+        mAdaptiveWindowSize = window == null;
     }
 
     /**
@@ -251,6 +472,47 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         mDriver.setBindArguments(selectionArgs);
     }
 
+    /**
+     * A window being filled in the background by {@link #maybePrefetchNextWindow}.
+     */
+    private final class WindowPrefetch implements Callable<Integer> {
+        final CursorWindow mWindow;
+        final int mStartPos;
+        final int mRequiredPos;
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        final FutureTask<Integer> mTask = new FutureTask<Integer>(this);
+
+        WindowPrefetch(CursorWindow window, int startPos, int requiredPos) {
+            mWindow = window;
+            mStartPos = startPos;
+            mRequiredPos = requiredPos;
+        }
+
+        // Runs the fill on the executor.  The fill has a signal of its own rather than
+        // listening to the query's signal, whose only listener belongs to the caller.
+        // The cursor cancels the fill when it finds that the query was canceled.
+        void start(Executor executor) {
+            executor.execute(mTask);
+        }
+
+        @Override
+        public Integer call() {
+            if (mQuery.isCanceled()) {
+                mCancellationSignal.cancel();
+            }
+            return mQuery.fillWindow(mWindow, mStartPos, mRequiredPos, false,
+                    mCancellationSignal);
+        }
+
+        // Stops the fill if it is still running, or makes it fail at once if it has
+        // not started.  The window holds a reference while it is being filled, so it
+        // is only freed once the fill has finished.
+        void discard() {
+            mCancellationSignal.cancel();
+            mWindow.close();
+        }
+    }
+
     /**
      * Release the native resources, if they haven't been released yet.
      */
@@ -29,6 +29,7 @@ import android.os.OperationCanceledException;
 //import android.text.TextUtils;
 //import android.util.EventLog;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.Pair;
 import android.util.Printer;
 
@@ -42,6 +43,12 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Exposes methods to manage a SQLite database.
@@ -69,6 +76,12 @@ public final class SQLiteDatabase extends SQLiteClosable {
 
     private static final int EVENT_DB_CORRUPT = 75004;
 
+    // The number of queries whose cursor window size is remembered.
+    private static final int CURSOR_WINDOW_SIZE_HINTS = 64;
+
+    // How long an idle thread of the asynchronous executor is kept.
+    private static final long ASYNC_THREAD_KEEP_ALIVE_SECONDS = 10;
+
     // Stores reference to all databases opened in the current process.
     // (The referent Object is not used at this time.)
     // INVARIANT: Guarded by sActiveDatabases.
@@ -123,6 +136,20 @@ public final class SQLiteDatabase extends SQLiteClosable {
     // INVARIANT: Guarded by mLock.
     private SQLiteConnectionPool mConnectionPoolLocked;
 
+    // The executor for the asynchronous methods, created on first use and shut
+    // down when the database is closed.
+    // INVARIANT: Guarded by mLock.
+    private ThreadPoolExecutor mAsyncExecutorLocked;
+
+    // Generated SQL for the insert, update and delete convenience methods.
+    // The cache itself is thread-safe.
+    private final SQLiteSqlCache mSqlCache = new SQLiteSqlCache();
+
+    // Cursor window sizes that suited recent queries, keyed by SQL.
+    // The cache itself is thread-safe.
+    private final LruCache<String, Integer> mCursorWindowSizeHints =
+            new LruCache<String, Integer>(CURSOR_WINDOW_SIZE_HINTS);
+
     // True if the database has attached databases.
     // INVARIANT: Guarded by mLock.
     private boolean mHasAttachedDbsLocked;
@@ -180,7 +207,7 @@ public final class SQLiteDatabase extends SQLiteClosable {
      */
     public static final int CONFLICT_NONE = 0;
 
-    private static final String[] CONFLICT_VALUES = new String[]
+    static final String[] CONFLICT_VALUES = new String[]
             {"", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "};
 
     /**
@@ -284,6 +311,11 @@ public final class SQLiteDatabase extends SQLiteClosable {
 
             pool = mConnectionPoolLocked;
             mConnectionPoolLocked = null;
+
+            if (mAsyncExecutorLocked != null) {
+                mAsyncExecutorLocked.shutdown();
+                mAsyncExecutorLocked = null;
+            }
         }
 
         if (!finalized) {
@@ -384,6 +416,15 @@ public final class SQLiteDatabase extends SQLiteClosable {
         return flags;
     }
 
+    /**
+     * Gets default connection flags for operations that must not use the primary
+     * connection, such as {@link #rawQueryOnReader}.
+     */
+    int getThreadReaderConnectionFlags() {
+        return getThreadDefaultConnectionFlags(true /*readOnly*/)
+                | SQLiteConnectionPool.CONNECTION_FLAG_NON_PRIMARY_CONNECTION_ONLY;
+    }
+
     /*private static boolean isMainThread() {
         // FIXME: There should be a better way to do this.
         // Would also be nice to have something that would work across Binder calls.
@@ -1320,6 +1361,245 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Runs the provided read-only SQL on a non-primary connection and returns a
+     * {@link Cursor} over the result set.
+     * <p>
+     * Unlike {@link #rawQuery}, the query and every later refill of the cursor
+     * window only ever use non-primary connections, so they never delay writers
+     * waiting for the primary connection.  If all non-primary connections are busy,
+     * the query waits for one of them rather than falling back to the primary
+     * connection.
+     * </p>
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
+     *     which will be replaced by the values from selectionArgs. The
+     *     values will be bound as Strings.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return A {@link Cursor} object, which is positioned before the first entry.
+     *
+     * @throws IllegalArgumentException if the SQL is not read-only.
+     * @throws IllegalStateException if write-ahead logging is not enabled, or if the
+     * calling thread holds the primary connection, for example in a transaction.
+     * @hide
+     */
+    public Cursor rawQueryOnReader(String sql, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        acquireReference();
+        try {
+            SQLiteCursorDriver driver = new SQLiteDirectCursorDriver(this, sql, null,
+                    cancellationSignal, true /*readerOnly*/);
+            return driver.query(mCursorFactory, selectionArgs);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Runs the provided SQL on the database's executor and delivers the resulting
+     * {@link Cursor} through a future.
+     * <p>
+     * The query runs and fills its first window on an executor thread, which
+     * leases its own connection, so many independent queries can run at once on
+     * the connections of the pool without blocking their callers.  Windows after
+     * the first are filled by whichever thread moves the cursor to them.
+     * Canceling the future cancels the query.
+     * </p>
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
+     *     which will be replaced by the values from selectionArgs. The
+     *     values will be bound as Strings.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return A future for a {@link Cursor} object, which is positioned before the
+     * first entry.  The caller must close the cursor.
+     * @hide
+     */
+    public SQLiteFuture<Cursor> rawQueryAsync(final String sql, final String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        final CancellationSignal signal = cancellationSignal != null
+                ? cancellationSignal : new CancellationSignal();
+        return submitAsync(new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                final Cursor cursor = rawQuery(sql, selectionArgs, signal);
+                try {
+                    // Run the query and fill the first window here rather than
+                    // on the caller's thread.
+                    cursor.getCount();
+                } catch (RuntimeException ex) {
+                    cursor.close();
+                    throw ex;
+                }
+                return cursor;
+            }
+        }, signal);
+    }
+
+    /**
+     * Executes a single SQL statement that is NOT a SELECT on the database's
+     * executor, as with {@link #execSQL(String, Object[])}.
+     *
+     * @param sql the SQL statement to be executed. Multiple statements separated by semicolons are
+     * not supported.
+     * @param bindArgs only byte[], String, Long and Double are supported in bindArgs.
+     * @return A future that completes once the statement has been executed.
+     * @hide
+     */
+    public SQLiteFuture<Void> execSQLAsync(final String sql, final Object[] bindArgs) {
+        return submitAsync(new Callable<Void>() {
+            @Override
+            public Void call() {
+                execSQL(sql, bindArgs);
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Inserts a row on the database's executor, as with {@link #insertOrThrow}.
+     *
+     * @param table the table to insert the row into
+     * @param nullColumnHack optional; may be <code>null</code>.
+     *            See {@link #insert} for details.
+     * @param values this map contains the initial column values for the
+     *            row. The keys should be the column names and the values the
+     *            column values
+     * @return A future for the row ID of the newly inserted row.
+     * @hide
+     */
+    public SQLiteFuture<Long> insertAsync(final String table, final String nullColumnHack,
+            final ContentValues values) {
+        return submitAsync(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return insertOrThrow(table, nullColumnHack, values);
+            }
+        }, null);
+    }
+
+    /**
+     * Runs a task on the database's executor.
+     * <p>
+     * Each task runs on an executor thread with its own thread session, so the
+     * task gets its own connection lease.  A task may use a transaction, which is
+     * confined to the task.
+     * </p>
+     *
+     * @param task The task, which should use this database.
+     * @param cancellationSignal A signal for the task to honor, which is canceled when
+     * the future is canceled, or null if none.
+     * @return A future for the result of the task.
+     *
+     * @throws IllegalStateException if the database is not open.
+     * @hide
+     */
+    public <T> SQLiteFuture<T> submitAsync(Callable<T> task,
+            CancellationSignal cancellationSignal) {
+        if (task == null) {
+            throw new IllegalArgumentException("task must not be null.");
+        }
+        final SQLiteFuture<T> future = new SQLiteFuture<T>(task, cancellationSignal);
+        getAsyncExecutor().execute(future);
+        return future;
+    }
+
+    private ThreadPoolExecutor getAsyncExecutor() {
+        synchronized (mLock) {
+            throwIfNotOpenLocked();
+
+            if (mAsyncExecutorLocked == null) {
+                // Enough threads to keep the primary connection and all the
+                // connections of a pool in write-ahead logging mode busy.
+                final int threads = SQLiteGlobal.getWALConnectionPoolSize();
+                final String label = mConfigurationLocked.label;
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                        ASYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            private final AtomicInteger mCount = new AtomicInteger(1);
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "SQLiteAsync #"
+                                        + mCount.getAndIncrement() + " " + label);
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+                mAsyncExecutorLocked = executor;
+            }
+            return mAsyncExecutorLocked;
+        }
+    }
+
+    /**
+     * Runs the provided SQL and returns a forward-only {@link Cursor} that steps
+     * through the result set as it is read.
+     * <p>
+     * Unlike {@link #rawQuery}, the rows are not copied into a
+     * {@link android.database.CursorWindow}; the result is counted with a separate
+     * <code>COUNT(*)</code> query instead.  The cursor can only move forward one row
+     * at a time, and it keeps
+     * a connection until the last row has been read or the cursor is closed.
+     * See {@link SQLiteStreamingCursor}.
+     * </p>
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
+     *     which will be replaced by the values from selectionArgs. The
+     *     values will be bound as Strings.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return A {@link Cursor} object, which is positioned before the first entry.
+     * @hide
+     */
+    public Cursor rawQueryStreaming(String sql, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        acquireReference();
+        try {
+            return new SQLiteStreamingCursor(this, sql, selectionArgs,
+                    getThreadDefaultConnectionFlags(true /*readOnly*/), cancellationSignal);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Runs the provided SQL and reads its whole result into typed column arrays.
+     * <p>
+     * Unlike a {@link Cursor}, which makes a native call for each cell, the rows are
+     * read in blocks with one native call per block, and numeric columns are stored
+     * in primitive arrays.  This suits analytical reads that scan or aggregate
+     * whole columns.  See {@link SQLiteColumnarResult}.
+     * </p>
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
+     *     which will be replaced by the values from selectionArgs. The
+     *     values will be bound as Strings.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The result, held entirely in memory.
+     * @hide
+     */
+    public SQLiteColumnarResult queryColumnar(String sql, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        acquireReference();
+        try {
+            final SQLiteSession session = getThreadSession();
+            final SQLiteConnection.RowReader reader = session.executeForRowReader(sql,
+                    selectionArgs, getThreadDefaultConnectionFlags(true /*readOnly*/),
+                    cancellationSignal);
+            try {
+                return SQLiteColumnarResult.read(reader);
+            } finally {
+                session.releaseRowReader(reader);
+            }
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Convenience method for inserting a row into the database.
      *
@@ -1438,35 +1718,19 @@ public final class SQLiteDatabase extends SQLiteClosable {
             ContentValues initialValues, int conflictAlgorithm) {
         acquireReference();
         try {
-            StringBuilder sql = new StringBuilder();
-            sql.append("INSERT");
-            sql.append(CONFLICT_VALUES[conflictAlgorithm]);
-            sql.append(" INTO ");
-            sql.append(table);
-            sql.append('(');
-
+            String sql;
             Object[] bindArgs = null;
-            int size = (initialValues != null && initialValues.size() > 0)
-                    ? initialValues.size() : 0;
-            if (size > 0) {
-                bindArgs = new Object[size];
-                int i = 0;
-                for (String colName : initialValues.keySet()) {
-                    sql.append((i > 0) ? "," : "");
-                    sql.append(colName);
-                    bindArgs[i++] = initialValues.get(colName);
-                }
-                sql.append(')');
-                sql.append(" VALUES (");
-                for (i = 0; i < size; i++) {
-                    sql.append((i > 0) ? ",?" : "?");
-                }
+            if (initialValues != null && initialValues.size() > 0) {
+                SQLiteSqlCache.Entry entry = mSqlCache.getInsert(table, conflictAlgorithm,
+                        initialValues);
+                sql = entry.sql;
+                bindArgs = entry.getBindArgs(initialValues, null);
             } else {
-                sql.append(nullColumnHack + ") VALUES (NULL");
+                sql = "INSERT" + CONFLICT_VALUES[conflictAlgorithm] + " INTO " + table
+                        + '(' + nullColumnHack + ") VALUES (NULL)";
             }
-            sql.append(')');
 
-            SQLiteStatement statement = new SQLiteStatement(this, sql.toString(), bindArgs);
+            SQLiteStatement statement = new SQLiteStatement(this, sql, bindArgs);
             try {
                 return statement.executeInsert();
             } finally {
@@ -1477,6 +1741,97 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Inserts many rows into the database in a single transaction.
+     * <p>
+     * Consecutive rows with the same set of columns share prepared statements, and
+     * up to <code>maxRowsPerStatement</code> of them are inserted by a single
+     * multi-row <code>INSERT ... VALUES (...), (...)</code> statement.  The number
+     * of rows per statement is further limited so that a statement never has more
+     * than 999 bind arguments.
+     * </p><p>
+     * If an error occurs, the transaction is rolled back and no rows are inserted.
+     * </p>
+     *
+     * @param table the table to insert the rows into
+     * @param rows the rows to insert.  The keys of each row should be the column
+     *            names and the values the column values.  A row may not be empty.
+     * @param conflictAlgorithm for insert conflict resolver
+     * @param maxRowsPerStatement the maximum number of rows inserted by one statement,
+     *            or 1 to insert the rows one at a time
+     * @return the number of rows inserted
+     * @throws SQLException if a row could not be inserted
+     * @hide
+     */
+    public int bulkInsert(String table, Iterable<ContentValues> rows, int conflictAlgorithm,
+            int maxRowsPerStatement) {
+        if (maxRowsPerStatement < 1) {
+            throw new IllegalArgumentException("maxRowsPerStatement must be at least 1.");
+        }
+        acquireReference();
+        try {
+            beginTransaction();
+            SQLiteBulkInserter inserter = new SQLiteBulkInserter(this, table,
+                    conflictAlgorithm, maxRowsPerStatement);
+            try {
+                for (ContentValues values : rows) {
+                    inserter.addRow(values);
+                }
+                int count = inserter.finish();
+                setTransactionSuccessful();
+                return count;
+            } finally {
+                inserter.close();
+                endTransaction();
+            }
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Inserts many rows given column by column into the database in a single
+     * transaction.
+     * <p>
+     * This is like {@link #bulkInsert(String, Iterable, int, int)} but avoids
+     * allocating a {@link ContentValues} for each row.
+     * </p>
+     *
+     * @param table the table to insert the rows into
+     * @param columnNames the names of the columns to set, without duplicates
+     * @param columnValues for each column in <code>columnNames</code>, its value in
+     *            every row.  All the arrays must have the same length.
+     * @param conflictAlgorithm for insert conflict resolver
+     * @param maxRowsPerStatement the maximum number of rows inserted by one statement,
+     *            or 1 to insert the rows one at a time
+     * @return the number of rows inserted
+     * @throws SQLException if a row could not be inserted
+     * @hide
+     */
+    public int bulkInsert(String table, String[] columnNames, Object[][] columnValues,
+            int conflictAlgorithm, int maxRowsPerStatement) {
+        if (maxRowsPerStatement < 1) {
+            throw new IllegalArgumentException("maxRowsPerStatement must be at least 1.");
+        }
+        acquireReference();
+        try {
+            beginTransaction();
+            SQLiteBulkInserter inserter = new SQLiteBulkInserter(this, table,
+                    conflictAlgorithm, maxRowsPerStatement);
+            try {
+                inserter.addRows(columnNames, columnValues);
+                int count = inserter.finish();
+                setTransactionSuccessful();
+                return count;
+            } finally {
+                inserter.close();
+                endTransaction();
+            }
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Convenience method for deleting rows in the database.
      *
@@ -1493,8 +1848,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
     public int delete(String table, String whereClause, String[] whereArgs) {
         acquireReference();
         try {
-            SQLiteStatement statement =  new SQLiteStatement(this, "DELETE FROM " + table +
-                    (!/*TextUtils.isEmpty*/(whereClause == null || whereClause.length()==0) ? " WHERE " + whereClause : ""), whereArgs);
+            SQLiteStatement statement = new SQLiteStatement(this,
+                    mSqlCache.getDelete(table, whereClause).sql, whereArgs);
             try {
                 return statement.executeUpdateDelete();
             } finally {
@@ -1544,34 +1899,13 @@ public final class SQLiteDatabase extends SQLiteClosable {
 
         acquireReference();
         try {
-            StringBuilder sql = new StringBuilder(120);
-            sql.append("UPDATE ");
-            sql.append(CONFLICT_VALUES[conflictAlgorithm]);
-            sql.append(table);
-            sql.append(" SET ");
+            SQLiteSqlCache.Entry entry = mSqlCache.getUpdate(table, conflictAlgorithm, values,
+                    whereClause);
 
             // move all bind args to one array
-            int setValuesSize = values.size();
-            int bindArgsSize = (whereArgs == null) ? setValuesSize : (setValuesSize + whereArgs.length);
-            Object[] bindArgs = new Object[bindArgsSize];
-            int i = 0;
-            for (String colName : values.keySet()) {
-                sql.append((i > 0) ? "," : "");
-                sql.append(colName);
-                bindArgs[i++] = values.get(colName);
-                sql.append("=?");
-            }
-            if (whereArgs != null) {
-                for (i = setValuesSize; i < bindArgsSize; i++) {
-                    bindArgs[i] = whereArgs[i - setValuesSize];
-                }
-            }
-            if (!/*TextUtils.isEmpty*/(whereClause==null || whereClause.length()==0)) {
-                sql.append(" WHERE ");
-                sql.append(whereClause);
-            }
+            Object[] bindArgs = entry.getBindArgs(values, whereArgs);
 
-            SQLiteStatement statement = new SQLiteStatement(this, sql.toString(), bindArgs);
+            SQLiteStatement statement = new SQLiteStatement(this, entry.sql, bindArgs);
             try {
                 return statement.executeUpdateDelete();
             } finally {
@@ -1803,6 +2137,55 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Lets the connection pool of a database with write-ahead logging grow under load
+     * and release idle connections.
+     * <p>
+     * When a request for a reader connection has waited longer than
+     * {@code growAfterMillis}, the pool opens another connection, up to
+     * {@code maxConnections} in total.  Reader connections that stay unused for
+     * {@code idleTimeoutMillis} are closed, and the pool shrinks back towards its
+     * default size.  This method has no effect until write-ahead logging is enabled.
+     * </p>
+     *
+     * @param maxConnections The maximum number of connections including the primary
+     * connection, at least 2, or 0 to restore the fixed size connection pool.
+     * @param growAfterMillis How long a request may wait before the pool grows.
+     * @param idleTimeoutMillis How long a reader connection may stay idle before it
+     * is closed, or 0 to keep idle connections open.
+     *
+     * @throws IllegalArgumentException if an argument is out of range.
+     * @hide
+     */
+    public void setAdaptiveConnectionPool(int maxConnections, long growAfterMillis,
+            long idleTimeoutMillis) {
+        if (maxConnections != 0 && maxConnections < 2) {
+            throw new IllegalArgumentException("maxConnections must be 0 or at least 2.");
+        }
+        if (growAfterMillis < 0 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("timeouts must not be negative.");
+        }
+
+        synchronized (mLock) {
+            throwIfNotOpenLocked();
+
+            final int oldMaxConnections = mConfigurationLocked.maxAdaptiveConnectionPoolSize;
+            final long oldGrowAfterMillis = mConfigurationLocked.connectionPoolGrowMillis;
+            final long oldIdleTimeoutMillis = mConfigurationLocked.idleConnectionTimeoutMillis;
+            mConfigurationLocked.maxAdaptiveConnectionPoolSize = maxConnections;
+            mConfigurationLocked.connectionPoolGrowMillis = growAfterMillis;
+            mConfigurationLocked.idleConnectionTimeoutMillis = idleTimeoutMillis;
+            try {
+                mConnectionPoolLocked.reconfigure(mConfigurationLocked);
+            } catch (RuntimeException ex) {
+                mConfigurationLocked.maxAdaptiveConnectionPoolSize = oldMaxConnections;
+                mConfigurationLocked.connectionPoolGrowMillis = oldGrowAfterMillis;
+                mConfigurationLocked.idleConnectionTimeoutMillis = oldIdleTimeoutMillis;
+                throw ex;
+            }
+        }
+    }
+
     /**
      * Sets whether foreign key constraints are enabled for the database.
      * <p>
@@ -2051,9 +2434,46 @@ public final class SQLiteDatabase extends SQLiteClosable {
                 printer.println("");
                 mConnectionPoolLocked.dump(printer, verbose);
             }
+            mSqlCache.dump(printer);
         }
     }
 
+    /**
+     * Returns the number of insert, update and delete calls that reused previously
+     * generated SQL.
+     *
+     * @hide
+     */
+    public int getSqlCacheHitCount() {
+        return mSqlCache.hitCount();
+    }
+
+    /**
+     * Returns the number of insert, update and delete calls that had to generate
+     * their SQL.
+     *
+     * @hide
+     */
+    public int getSqlCacheMissCount() {
+        return mSqlCache.missCount();
+    }
+
+    /**
+     * Returns the cursor window size that suited the last query with the given
+     * SQL, or 0 if there is none.
+     */
+    int getCursorWindowSizeHint(String sql) {
+        final Integer size = mCursorWindowSizeHints.get(sql);
+        return size != null ? size.intValue() : 0;
+    }
+
+    /**
+     * Remembers the cursor window size that suits queries with the given SQL.
+     */
+    void setCursorWindowSizeHint(String sql, int size) {
+        mCursorWindowSizeHints.put(sql, size);
+    }
+
     /**
      * Returns list of full pathnames of all attached databases including the main database
      * by executing 'pragma database_list' on the database.
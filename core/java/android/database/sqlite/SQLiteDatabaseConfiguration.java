@@ -83,6 +83,30 @@ public final class SQLiteDatabaseConfiguration {
      */
     public boolean foreignKeyConstraintsEnabled;
 
+    /**
+     * The maximum number of connections that the pool may grow to under load, or 0
+     * to keep the pool at its fixed size.  Only applies in write-ahead logging mode.
+     *
+     * Default is 0.
+     */
+    public int maxAdaptiveConnectionPoolSize;
+
+    /**
+     * How long in milliseconds a request for a non-primary connection may wait
+     * before an adaptive pool opens another connection.
+     *
+     * Default is 50.
+     */
+    public long connectionPoolGrowMillis;
+
+    /**
+     * How long in milliseconds an available non-primary connection of an adaptive
+     * pool may stay idle before it is closed, or 0 to never close idle connections.
+     *
+     * Default is 30000.
+     */
+    public long idleConnectionTimeoutMillis;
+
     /**
      * The custom functions to register.
      */
@@ -108,6 +132,8 @@ public final class SQLiteDatabaseConfiguration {
         // Set default values for optional parameters.
         maxSqlCacheSize = 25;
         locale = Locale.getDefault();
+        connectionPoolGrowMillis = 50;
+        idleConnectionTimeoutMillis = 30000;
     }
 
     /**
@@ -144,6 +170,9 @@ public final class SQLiteDatabaseConfiguration {
         maxSqlCacheSize = other.maxSqlCacheSize;
         locale = other.locale;
         foreignKeyConstraintsEnabled = other.foreignKeyConstraintsEnabled;
+        maxAdaptiveConnectionPoolSize = other.maxAdaptiveConnectionPoolSize;
+        connectionPoolGrowMillis = other.connectionPoolGrowMillis;
+        idleConnectionTimeoutMillis = other.idleConnectionTimeoutMillis;
         customFunctions.clear();
         customFunctions.addAll(other.customFunctions);
     }
@@ -18,6 +18,7 @@ package android.database.sqlite;
 
 import java.util.ArrayList;
 
+import android.database.CursorWindow;
 //import android.os.Build;
 //import android.os.SystemProperties;
 import android.util.Log;
@@ -133,6 +134,12 @@ public final class SQLiteDebug {
         /** statement cache stats: hits/misses/cachesize */
         public String cache;
 
+        /**
+         * connection pool statement routing stats: affinity hits/affinity misses/prepares,
+         * only set on the main database entry of a pool's primary connection, else null
+         */
+        public String prepareStats;
+
         public DbStats(String dbName, long pageCount, long pageSize, int lookaside,
             int hits, int misses, int cachesize) {
             this.dbName = dbName;
@@ -168,5 +175,7 @@ public final class SQLiteDebug {
         }
 
         SQLiteDatabase.dumpAll(printer, verbose);
+        printer.println("");
+        CursorWindow.dumpWindowPool(printer);
     }
 }
@@ -30,18 +30,29 @@ public final class SQLiteDirectCursorDriver implements SQLiteCursorDriver {
     private final String mEditTable; 
     private final String mSql;
     private final CancellationSignal mCancellationSignal;
+    private final boolean mReaderOnly;
     private SQLiteQuery mQuery;
 
     public SQLiteDirectCursorDriver(SQLiteDatabase db, String sql, String editTable,
             CancellationSignal cancellationSignal) {
+        this(db, sql, editTable, cancellationSignal, false);
+    }
+
+    /**
+     * @param readerOnly True to run the query on non-primary connections only.
+     */
+    public SQLiteDirectCursorDriver(SQLiteDatabase db, String sql, String editTable,
+            CancellationSignal cancellationSignal, boolean readerOnly) {
         mDatabase = db;
         mEditTable = editTable;
         mSql = sql;
         mCancellationSignal = cancellationSignal;
+        mReaderOnly = readerOnly;
     }
 
     public Cursor query(CursorFactory factory, String[] selectionArgs) {
-        final SQLiteQuery query = new SQLiteQuery(mDatabase, mSql, mCancellationSignal);
+        final SQLiteQuery query = new SQLiteQuery(mDatabase, mSql, mCancellationSignal,
+                mReaderOnly);
         final Cursor cursor;
         try {
             query.bindAllArgsAsStrings(selectionArgs);
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The pending result of an asynchronous database operation started by one of the
+ * <code>*Async</code> methods of {@link SQLiteDatabase}.
+ * <p>
+ * Besides waiting with {@link #get}, callers can register a {@link Callback} to be
+ * told when the operation finishes, so that no thread has to block on it.
+ * Canceling the future also cancels the operation's {@link CancellationSignal},
+ * which interrupts a query that is already running.
+ * </p><p>
+ * If the result is a {@link android.database.Cursor} and the future is canceled
+ * before the cursor could be delivered, the cursor is closed.  Otherwise the
+ * caller is responsible for closing it.
+ * </p>
+ *
+ * @hide
+ */
+public final class SQLiteFuture<T> extends FutureTask<T> {
+    private static final String TAG = "SQLiteFuture";
+
+    private final CancellationSignal mCancellationSignal;
+
+    // Guarded by this.  Null once the callbacks have been dispatched.
+    private ArrayList<Registration<T>> mCallbacks = new ArrayList<Registration<T>>();
+
+    /**
+     * Receives the outcome of an asynchronous operation.
+     */
+    public interface Callback<T> {
+        /**
+         * Called when the operation completed successfully.
+         */
+        void onResult(T result);
+
+        /**
+         * Called when the operation failed or was canceled, in which case the
+         * error is a {@link CancellationException}.
+         */
+        void onError(Throwable error);
+    }
+
+    SQLiteFuture(Callable<T> callable, CancellationSignal cancellationSignal) {
+        super(callable);
+        mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Registers a callback to run on the given executor once the operation has
+     * finished.  If it has already finished, the callback is dispatched right away.
+     *
+     * @param callback The callback.
+     * @param executor The executor to run the callback on, or null to run it on
+     * whichever thread finishes the operation.
+     */
+    public void addCallback(Callback<T> callback, Executor executor) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null.");
+        }
+        final Registration<T> registration = new Registration<T>(callback, executor);
+        synchronized (this) {
+            if (mCallbacks != null) {
+                mCallbacks.add(registration);
+                return;
+            }
+        }
+        dispatch(registration);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // Interrupting a database thread could leave its connection in a bad state,
+        // so a running operation is only stopped through its cancellation signal.
+        final boolean canceled = super.cancel(false);
+        if (canceled && mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+        }
+        return canceled;
+    }
+
+    @Override
+    protected void set(T result) {
+        super.set(result);
+        if (isCancelled() && result instanceof Closeable) {
+            // Nobody will ever see the result, so don't leak it.
+            try {
+                ((Closeable) result).close();
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to close the result of a canceled operation.", ex);
+            }
+        }
+    }
+
+    @Override
+    protected void done() {
+        final ArrayList<Registration<T>> callbacks;
+        synchronized (this) {
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+        for (int i = 0; i < callbacks.size(); i++) {
+            dispatch(callbacks.get(i));
+        }
+    }
+
+    private void dispatch(final Registration<T> registration) {
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                final T result;
+                try {
+                    result = get();
+                } catch (CancellationException ex) {
+                    registration.mCallback.onError(ex);
+                    return;
+                } catch (ExecutionException ex) {
+                    registration.mCallback.onError(ex.getCause());
+                    return;
+                } catch (InterruptedException ex) {
+                    // Cannot happen since the operation is done.
+                    registration.mCallback.onError(ex);
+                    return;
+                }
+                registration.mCallback.onResult(result);
+            }
+        };
+        if (registration.mExecutor != null) {
+            registration.mExecutor.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    private static final class Registration<T> {
+        final Callback<T> mCallback;
+        final Executor mExecutor;
+
+        Registration(Callback<T> callback, Executor executor) {
+            mCallback = callback;
+            mExecutor = executor;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs small write operations submitted from many threads on a single writer
+ * thread, committing them in groups.
+ * <p>
+ * Each write made directly through {@link SQLiteDatabase} waits for the primary
+ * connection and pays for its own transaction, including a sync of the journal.
+ * Operations submitted to this writer are queued instead.  The writer thread
+ * takes all the operations that are waiting, up to the maximum batch size, runs
+ * them back-to-back inside one transaction and commits them together, so that
+ * concurrent writers share the cost of the commit.
+ * </p><p>
+ * Each operation's result or exception is reported through its own
+ * {@link Future}, once the transaction that contains it has been committed.  If
+ * an operation fails, or the group cannot be committed, the group is rolled back
+ * and its operations are run again one transaction each, so that one failing
+ * operation does not affect the others.  Operations may therefore run more than
+ * once and should not have side effects outside the database.  They should not
+ * begin transactions of their own.
+ * </p><p>
+ * If the writer thread dies, the writer is closed and the operations it has not
+ * completed fail with an {@link IllegalStateException}.
+ * </p><p>
+ * Canceling a future only prevents its operation from running if the writer has
+ * not started it yet.
+ * </p><p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @hide
+ */
+public final class SQLiteGroupCommitWriter {
+    private static final String TAG = "SQLiteGroupCommitWriter";
+
+    private final SQLiteDatabase mDatabase;
+    private final int mMaxBatchSize;
+    private final Thread mThread;
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private final ArrayDeque<Operation<?>> mQueue = new ArrayDeque<Operation<?>>();
+    private boolean mClosed;
+    private long mBatchCount;
+    private long mOperationCount;
+
+    /**
+     * Creates a writer for the given database and starts its thread.
+     *
+     * @param db The database to write to.  It is kept open until the writer is closed.
+     * @param maxBatchSize The maximum number of operations to commit together.
+     */
+    public SQLiteGroupCommitWriter(SQLiteDatabase db, int maxBatchSize) {
+        if (db == null) {
+            throw new IllegalArgumentException("db must not be null.");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1.");
+        }
+        mDatabase = db;
+        mMaxBatchSize = maxBatchSize;
+
+        db.acquireReference();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<Operation<?>> batch = new ArrayList<Operation<?>>(maxBatchSize);
+                try {
+                    runLoop(batch);
+                } catch (Throwable ex) {
+                    abort(batch, ex);
+                    throw ex;
+                } finally {
+                    mDatabase.releaseReference();
+                }
+            }
+        }, TAG + " " + db.getLabel());
+        mThread.start();
+    }
+
+    /**
+     * Queues an operation to be run on the writer thread.
+     *
+     * @param operation The operation, which writes to the database.
+     * @return A future for the result of the operation, which completes once
+     * the operation has been committed.
+     *
+     * @throws IllegalStateException if the writer has been closed.
+     */
+    public <T> Future<T> submit(Callable<T> operation) {
+        if (operation == null) {
+            throw new IllegalArgumentException("operation must not be null.");
+        }
+        final Operation<T> op = new Operation<T>(operation);
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IllegalStateException("The group commit writer has been closed.");
+            }
+            mQueue.add(op);
+            mLock.notifyAll();
+        }
+        return op.mFuture;
+    }
+
+    /**
+     * Queues an insert, as with {@link SQLiteDatabase#insertOrThrow}.
+     *
+     * @return A future for the row ID of the newly inserted row.
+     */
+    public Future<Long> insert(final String table, final String nullColumnHack,
+            final ContentValues values) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return mDatabase.insertOrThrow(table, nullColumnHack, values);
+            }
+        });
+    }
+
+    /**
+     * Queues an update, as with {@link SQLiteDatabase#update}.
+     *
+     * @return A future for the number of rows affected.
+     */
+    public Future<Integer> update(final String table, final ContentValues values,
+            final String whereClause, final String[] whereArgs) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDatabase.update(table, values, whereClause, whereArgs);
+            }
+        });
+    }
+
+    /**
+     * Queues a delete, as with {@link SQLiteDatabase#delete}.
+     *
+     * @return A future for the number of rows affected.
+     */
+    public Future<Integer> delete(final String table, final String whereClause,
+            final String[] whereArgs) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDatabase.delete(table, whereClause, whereArgs);
+            }
+        });
+    }
+
+    /**
+     * Queues a single SQL statement that returns no data, as with
+     * {@link SQLiteDatabase#execSQL(String, Object[])}.  The statement must not
+     * begin or end a transaction.
+     *
+     * @return A future that completes once the statement has been committed.
+     */
+    public Future<Void> execSQL(final String sql, final Object[] bindArgs) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mDatabase.execSQL(sql, bindArgs);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stops accepting operations.  The operations already queued are still run,
+     * after which the writer thread exits and releases the database.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the writer and waits for its queued operations to finish.
+     *
+     * @throws InterruptedException if the calling thread was interrupted while waiting.
+     */
+    public void closeAndWait() throws InterruptedException {
+        close();
+        mThread.join();
+    }
+
+    /**
+     * Returns the number of transactions run so far.
+     */
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    /**
+     * Returns the number of operations run so far.
+     */
+    public long getOperationCount() {
+        synchronized (mLock) {
+            return mOperationCount;
+        }
+    }
+
+    private void runLoop(ArrayList<Operation<?>> batch) {
+        for (;;) {
+            synchronized (mLock) {
+                while (mQueue.isEmpty() && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ex) {
+                        // Keep waiting until closed.
+                    }
+                }
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                while (batch.size() < mMaxBatchSize && !mQueue.isEmpty()) {
+                    final Operation<?> op = mQueue.poll();
+                    if (!op.mFuture.isCancelled()) {
+                        batch.add(op);
+                    }
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                if (batch.size() == 1 || !runGroup(batch)) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        runAlone(batch.get(i));
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Runs the operations in one transaction and completes their futures if it
+     * commits.
+     *
+     * @return False if the transaction was rolled back and nothing was reported.
+     */
+    private boolean runGroup(ArrayList<Operation<?>> batch) {
+        final boolean[] committed = new boolean[1];
+        boolean failed = false;
+        try {
+            mDatabase.beginTransactionWithListenerNonExclusive(new SQLiteTransactionListener() {
+                @Override
+                public void onBegin() {
+                }
+
+                @Override
+                public void onCommit() {
+                    committed[0] = true;
+                }
+
+                @Override
+                public void onRollback() {
+                    committed[0] = false;
+                }
+            });
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (!batch.get(i).execute()) {
+                        failed = true;
+                        break;
+                    }
+                }
+                if (!failed) {
+                    mDatabase.setTransactionSuccessful();
+                }
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } catch (Throwable ex) {
+            Log.w(TAG, "Group of " + batch.size() + " operations failed to commit, "
+                    + "running them one at a time.", ex);
+            return false;
+        }
+        if (failed || !committed[0]) {
+            return false;
+        }
+
+        synchronized (mLock) {
+            mBatchCount += 1;
+            mOperationCount += batch.size();
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).complete();
+        }
+        return true;
+    }
+
+    private void runAlone(Operation<?> op) {
+        try {
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                if (op.execute()) {
+                    mDatabase.setTransactionSuccessful();
+                }
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } catch (Throwable ex) {
+            op.fail(ex);
+        }
+
+        synchronized (mLock) {
+            mBatchCount += 1;
+            mOperationCount += 1;
+        }
+        op.complete();
+    }
+
+    /**
+     * Closes the writer after its thread died and fails the operations it will
+     * never run.  Operations that already completed are not affected.
+     */
+    private void abort(ArrayList<Operation<?>> batch, Throwable cause) {
+        final ArrayList<Operation<?>> pending = new ArrayList<Operation<?>>(batch);
+        synchronized (mLock) {
+            mClosed = true;
+            pending.addAll(mQueue);
+            mQueue.clear();
+        }
+        Log.e(TAG, "The writer thread died, failing " + pending.size() + " operations.", cause);
+        final IllegalStateException ex = new IllegalStateException(
+                "The group commit writer thread died.", cause);
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).abort(ex);
+        }
+    }
+
+    /**
+     * An operation and the outcome of its latest run.  Its future is only run once
+     * the outcome is final, and reports that outcome.
+     */
+    private static final class Operation<T> implements Callable<T> {
+        private final Callable<T> mCallable;
+        final FutureTask<T> mFuture;
+        private T mResult;
+        private Throwable mException;
+
+        Operation(Callable<T> callable) {
+            mCallable = callable;
+            mFuture = new FutureTask<T>(this);
+        }
+
+        /**
+         * Runs the operation, keeping its result until it is committed.
+         *
+         * @return False if the operation threw.
+         */
+        boolean execute() {
+            mResult = null;
+            mException = null;
+            try {
+                mResult = mCallable.call();
+                return true;
+            } catch (Throwable ex) {
+                mException = ex;
+                return false;
+            }
+        }
+
+        void fail(Throwable ex) {
+            if (mException == null) {
+                mException = ex;
+            }
+        }
+
+        void abort(Throwable ex) {
+            mResult = null;
+            mException = ex;
+            complete();
+        }
+
+        void complete() {
+            mFuture.run();
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (mException instanceof Exception) {
+                throw (Exception) mException;
+            }
+            if (mException instanceof Error) {
+                throw (Error) mException;
+            }
+            if (mException != null) {
+                throw new RuntimeException(mException);
+            }
+            return mResult;
+        }
+    }
+}
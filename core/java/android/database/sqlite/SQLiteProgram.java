@@ -33,14 +33,23 @@ public abstract class SQLiteProgram extends SQLiteClosable {
     private final SQLiteDatabase mDatabase;
     private final String mSql;
     private final boolean mReadOnly;
+    private final boolean mReaderOnly;
     private final String[] mColumnNames;
     private final int mNumParameters;
     private final Object[] mBindArgs;
 
     SQLiteProgram(SQLiteDatabase db, String sql, Object[] bindArgs,
             CancellationSignal cancellationSignalForPrepare) {
+        this(db, sql, bindArgs, cancellationSignalForPrepare, false);
+    }
+
+    // If readerOnly is true, the program is prepared and executed on non-primary
+    // connections only, and it must be read-only.
+    SQLiteProgram(SQLiteDatabase db, String sql, Object[] bindArgs,
+            CancellationSignal cancellationSignalForPrepare, boolean readerOnly) {
         mDatabase = db;
         mSql = sql.trim();
+        mReaderOnly = readerOnly;
 
         int n = DatabaseUtils.getSqlStatementType(mSql);
         switch (n) {
@@ -56,7 +65,8 @@ public abstract class SQLiteProgram extends SQLiteClosable {
                 boolean assumeReadOnly = (n == DatabaseUtils.STATEMENT_SELECT);
                 SQLiteStatementInfo info = new SQLiteStatementInfo();
                 db.getThreadSession().prepare(mSql,
-                        db.getThreadDefaultConnectionFlags(assumeReadOnly),
+                        readerOnly ? db.getThreadReaderConnectionFlags()
+                                : db.getThreadDefaultConnectionFlags(assumeReadOnly),
                         cancellationSignalForPrepare, info);
                 mReadOnly = info.readOnly;
                 mColumnNames = info.columnNames;
@@ -64,6 +74,11 @@ public abstract class SQLiteProgram extends SQLiteClosable {
                 break;
         }
 
+        if (readerOnly && !mReadOnly) {
+            throw new IllegalArgumentException("Only read-only statements can run on "
+                    + "non-primary connections: " + mSql);
+        }
+
         if (bindArgs != null && bindArgs.length > mNumParameters) {
             throw new IllegalArgumentException("Too many bind arguments.  "
                     + bindArgs.length + " arguments were provided but the statement needs "
@@ -103,6 +118,9 @@ public abstract class SQLiteProgram extends SQLiteClosable {
 
     /** @hide */
     protected final int getConnectionFlags() {
+        if (mReaderOnly) {
+            return mDatabase.getThreadReaderConnectionFlags();
+        }
         return mDatabase.getThreadDefaultConnectionFlags(mReadOnly);
     }
 
@@ -34,7 +34,12 @@ public final class SQLiteQuery extends SQLiteProgram {
     private final CancellationSignal mCancellationSignal;
 
     SQLiteQuery(SQLiteDatabase db, String query, CancellationSignal cancellationSignal) {
-        super(db, query, null, cancellationSignal);
+        this(db, query, cancellationSignal, false);
+    }
+
+    SQLiteQuery(SQLiteDatabase db, String query, CancellationSignal cancellationSignal,
+            boolean readerOnly) {
+        super(db, query, null, cancellationSignal, readerOnly);
 
         mCancellationSignal = cancellationSignal;
     }
@@ -55,13 +60,26 @@ public final class SQLiteQuery extends SQLiteProgram {
      * @throws OperationCanceledException if the operation was canceled.
      */
     int fillWindow(CursorWindow window, int startPos, int requiredPos, boolean countAllRows) {
+        return fillWindow(window, startPos, requiredPos, countAllRows, mCancellationSignal);
+    }
+
+    /**
+     * Reads rows into a buffer, like {@link #fillWindow(CursorWindow, int, int, boolean)}
+     * but with a cancellation signal other than the one of the query.  This may be
+     * called on a thread other than the one that uses the query, such as to prefetch
+     * a window in the background.
+     *
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     */
+    int fillWindow(CursorWindow window, int startPos, int requiredPos, boolean countAllRows,
+            CancellationSignal cancellationSignal) {
         acquireReference();
         try {
             window.acquireReference();
             try {
                 int numRows = getSession().executeForCursorWindow(getSql(), getBindArgs(),
                         window, startPos, requiredPos, countAllRows, getConnectionFlags(),
-                        mCancellationSignal);
+                        cancellationSignal);
                 return numRows;
             } catch (SQLiteDatabaseCorruptException ex) {
                 onCorruption();
@@ -77,6 +95,13 @@ public final class SQLiteQuery extends SQLiteProgram {
         }
     }
 
+    /**
+     * Returns true if the cancellation signal of the query has been canceled.
+     */
+    boolean isCanceled() {
+        return mCancellationSignal != null && mCancellationSignal.isCanceled();
+    }
+
     @Override
     public String toString() {
         return "SQLiteQuery: " + getSql();
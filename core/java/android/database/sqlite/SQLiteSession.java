@@ -841,6 +841,70 @@ public final class SQLiteSession {
         }
     }
 
+    /**
+     * Executes a statement and returns a reader that steps through its rows one at
+     * a time, without filling a {@link CursorWindow}.
+     * <p>
+     * The session keeps holding its connection until the reader is passed to
+     * {@link #releaseRowReader}.  Transaction statements such as "BEGIN" are not
+     * supported.
+     * </p>
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @param connectionFlags The connection flags to use if a connection must be
+     * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The row reader.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public SQLiteConnection.RowReader executeForRowReader(String sql, Object[] bindArgs,
+            int connectionFlags, CancellationSignal cancellationSignal) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+        switch (DatabaseUtils.getSqlStatementType(sql)) {
+            case DatabaseUtils.STATEMENT_BEGIN:
+            case DatabaseUtils.STATEMENT_COMMIT:
+            case DatabaseUtils.STATEMENT_ABORT:
+                throw new IllegalArgumentException(
+                        "Transaction statements cannot be executed with a row reader.");
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        acquireConnection(sql, connectionFlags, cancellationSignal); // might throw
+        try {
+            return mConnection.executeForRowReader(sql, bindArgs,
+                    cancellationSignal); // might throw
+        } catch (RuntimeException ex) {
+            releaseConnection(); // might throw
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes a reader returned by {@link #executeForRowReader} and releases the
+     * connection it was using.
+     *
+     * @param reader The row reader.
+     */
+    public void releaseRowReader(SQLiteConnection.RowReader reader) {
+        if (reader == null) {
+            throw new IllegalArgumentException("reader must not be null.");
+        }
+
+        try {
+            reader.close();
+        } finally {
+            releaseConnection(); // might throw
+        }
+    }
+
     /**
      * Performs special reinterpretation of certain SQL statements such as "BEGIN",
      * "COMMIT" and "ROLLBACK" to ensure that transaction state invariants are
@@ -894,6 +958,12 @@ public final class SQLiteSession {
             mConnection = mConnectionPool.acquireConnection(sql, connectionFlags,
                     cancellationSignal); // might throw
             mConnectionFlags = connectionFlags;
+        } else if ((connectionFlags
+                & SQLiteConnectionPool.CONNECTION_FLAG_NON_PRIMARY_CONNECTION_ONLY) != 0
+                && mConnection.isPrimaryConnection()) {
+            throw new IllegalStateException("Cannot perform this operation because "
+                    + "it requires a non-primary connection and the session is holding "
+                    + "the primary connection, for example for a transaction.");
         }
         mConnectionUseCount += 1;
     }
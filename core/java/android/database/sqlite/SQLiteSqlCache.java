@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.util.LruCache;
+import android.util.Printer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Caches the SQL that {@link SQLiteDatabase} generates for its insert, update
+ * and delete convenience methods.
+ * <p>
+ * Entries are keyed by the kind of statement, the table, the conflict algorithm,
+ * the where clause and the set of columns, regardless of the order in which a
+ * {@link ContentValues} happens to iterate them.  Each entry holds the SQL text
+ * along with the columns in the order of their bind arguments, so a repeated
+ * call only has to look up the entry and copy its values.  Reusing the same
+ * SQL string also makes the prepared statement cache lookups cheaper, since
+ * the string's hash code is already computed.
+ * </p><p>
+ * This class is thread-safe.
+ * </p>
+ */
+final class SQLiteSqlCache {
+    private static final int OP_INSERT = 0;
+    private static final int OP_UPDATE = 1;
+    private static final int OP_DELETE = 2;
+
+    private static final int MAX_ENTRIES = 64;
+
+    private final LruCache<Key, Entry> mCache = new LruCache<Key, Entry>(MAX_ENTRIES);
+
+    /**
+     * Returns the entry for an insert of the given non-empty values.
+     */
+    Entry getInsert(String table, int conflictAlgorithm, ContentValues values) {
+        final Key key = new Key(OP_INSERT, table, conflictAlgorithm, null, values.keySet());
+        Entry entry = mCache.get(key);
+        if (entry == null) {
+            final String[] columns = toArray(values.keySet());
+            StringBuilder sql = new StringBuilder();
+            sql.append("INSERT");
+            sql.append(SQLiteDatabase.CONFLICT_VALUES[conflictAlgorithm]);
+            sql.append(" INTO ");
+            sql.append(table);
+            sql.append('(');
+            for (int i = 0; i < columns.length; i++) {
+                sql.append((i > 0) ? "," : "");
+                sql.append(columns[i]);
+            }
+            sql.append(')');
+            sql.append(" VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append((i > 0) ? ",?" : "?");
+            }
+            sql.append(')');
+            entry = put(key, columns, sql.toString());
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry for an update of the given non-empty values.
+     */
+    Entry getUpdate(String table, int conflictAlgorithm, ContentValues values,
+            String whereClause) {
+        final Key key = new Key(OP_UPDATE, table, conflictAlgorithm, whereClause,
+                values.keySet());
+        Entry entry = mCache.get(key);
+        if (entry == null) {
+            final String[] columns = toArray(values.keySet());
+            StringBuilder sql = new StringBuilder(120);
+            sql.append("UPDATE ");
+            sql.append(SQLiteDatabase.CONFLICT_VALUES[conflictAlgorithm]);
+            sql.append(table);
+            sql.append(" SET ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append((i > 0) ? "," : "");
+                sql.append(columns[i]);
+                sql.append("=?");
+            }
+            if (!isEmpty(whereClause)) {
+                sql.append(" WHERE ");
+                sql.append(whereClause);
+            }
+            entry = put(key, columns, sql.toString());
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry for a delete.  Its list of columns is empty.
+     */
+    Entry getDelete(String table, String whereClause) {
+        final Key key = new Key(OP_DELETE, table, 0, whereClause,
+                Collections.<String>emptySet());
+        Entry entry = mCache.get(key);
+        if (entry == null) {
+            entry = put(key, new String[0], "DELETE FROM " + table
+                    + (!isEmpty(whereClause) ? " WHERE " + whereClause : ""));
+        }
+        return entry;
+    }
+
+    private Entry put(Key key, String[] columns, String sql) {
+        // Keep a snapshot of the columns instead of the live key set of the values.
+        final Key storedKey = new Key(key, Arrays.asList(columns));
+        final Entry entry = new Entry(sql, columns);
+        mCache.put(storedKey, entry);
+        return entry;
+    }
+
+    /**
+     * Returns the number of times an entry was found in the cache.
+     */
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * Returns the number of times SQL had to be generated.
+     */
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    void dump(Printer printer) {
+        printer.println("  SQL cache: size=" + mCache.size() + ", hits=" + mCache.hitCount()
+                + ", misses=" + mCache.missCount());
+    }
+
+    private static String[] toArray(Set<String> columns) {
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+
+    /**
+     * Generated SQL along with the columns in the order of their bind arguments:
+     * the value of <code>columns[i]</code> is bound to parameter <code>i + 1</code>.
+     */
+    static final class Entry {
+        final String sql;
+        final String[] columns;
+
+        Entry(String sql, String[] columns) {
+            this.sql = sql;
+            this.columns = columns;
+        }
+
+        /**
+         * Returns the bind arguments for the given values followed by the given
+         * where arguments.
+         */
+        Object[] getBindArgs(ContentValues values, String[] whereArgs) {
+            final int extra = (whereArgs == null) ? 0 : whereArgs.length;
+            final Object[] bindArgs = new Object[columns.length + extra];
+            for (int i = 0; i < columns.length; i++) {
+                bindArgs[i] = values.get(columns[i]);
+            }
+            if (extra != 0) {
+                System.arraycopy(whereArgs, 0, bindArgs, columns.length, extra);
+            }
+            return bindArgs;
+        }
+    }
+
+    private static final class Key {
+        private final int mOp;
+        private final String mTable;
+        private final int mConflictAlgorithm;
+        private final String mWhereClause;
+        private final Collection<String> mColumns;
+        private final int mHashCode;
+
+        Key(int op, String table, int conflictAlgorithm, String whereClause,
+                Collection<String> columns) {
+            mOp = op;
+            mTable = table;
+            mConflictAlgorithm = conflictAlgorithm;
+            mWhereClause = whereClause;
+            mColumns = columns;
+
+            // The columns are combined so that their order does not matter.
+            int columnHash = 0;
+            for (String column : columns) {
+                columnHash += column.hashCode();
+            }
+            int hash = op;
+            hash = hash * 31 + table.hashCode();
+            hash = hash * 31 + conflictAlgorithm;
+            hash = hash * 31 + (whereClause != null ? whereClause.hashCode() : 0);
+            mHashCode = hash * 31 + columnHash;
+        }
+
+        Key(Key other, Collection<String> columns) {
+            mOp = other.mOp;
+            mTable = other.mTable;
+            mConflictAlgorithm = other.mConflictAlgorithm;
+            mWhereClause = other.mWhereClause;
+            mColumns = columns;
+            mHashCode = other.mHashCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && mOp == other.mOp
+                    && mConflictAlgorithm == other.mConflictAlgorithm
+                    && mTable.equals(other.mTable)
+                    && (mWhereClause == null ? other.mWhereClause == null
+                            : mWhereClause.equals(other.mWhereClause))
+                    && mColumns.size() == other.mColumns.size()
+                    && mColumns.containsAll(other.mColumns);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.database.AbstractCursor;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A forward-only Cursor that steps through the results of a query on a
+ * {@link SQLiteDatabase} as it is read, without filling a
+ * {@link android.database.CursorWindow}.
+ * <p>
+ * Rows are copied one at a time into a small reusable buffer, so the first row is
+ * available as soon as SQLite produces it and memory use does not depend on the
+ * size of the result.  This suits exports and large scans that read each row once.
+ * </p><p>
+ * The cursor can only move forward by one row at a time.  Moving backwards throws
+ * {@link IllegalStateException}.  The first call to {@link #getCount}, which any
+ * move makes, counts the result with a separate <code>COUNT(*)</code> query on
+ * the cursor's connection.  That query sees the same rows as the cursor, except
+ * for changes the creating thread makes through a connection it shares with the
+ * cursor while the cursor is open.
+ * </p><p>
+ * The cursor keeps a database connection until it is closed, which may block
+ * other threads that need that connection, so close it promptly.  With write-ahead
+ * logging, unless it was created inside a transaction, it holds a connection
+ * separate from the one the creating thread uses for its own work.  Otherwise it
+ * shares the creating thread's connection, so that thread can keep using the
+ * database while the cursor is open.  The cursor must only be used by the thread
+ * that created it.
+ * </p>
+ *
+ * @hide
+ */
+public final class SQLiteStreamingCursor extends AbstractCursor {
+    private static final String TAG = "SQLiteStreamingCursor";
+
+    private final SQLiteDatabase mDatabase;
+    private final String mSql;
+    private final Object[] mBindArgs;
+    private final int mConnectionFlags;
+    private final CancellationSignal mCancellationSignal;
+    private final SQLiteSession mSession;
+    // True if mSession was created for this cursor rather than borrowed from the
+    // creating thread.
+    private final boolean mOwnsSession;
+    private final Thread mOwnerThread;
+    private final String[] mColumns;
+    private SQLiteConnection.RowReader mReader;
+
+    // The current row and the row after it.  The first row is read before the
+    // result is counted, which keeps the read transaction of the connection open
+    // so that the count sees the same snapshot of the database.
+    private SQLiteConnection.Row mCurrentRow;
+    private SQLiteConnection.Row mNextRow;
+    private boolean mHasNextRow;
+    private int mCount = NO_COUNT;
+
+    private static final int NO_COUNT = -1;
+
+    /** A mapping of column names to column indices, to speed up lookups */
+    private Map<String, Integer> mColumnNameMap;
+
+    SQLiteStreamingCursor(SQLiteDatabase db, String sql, Object[] bindArgs,
+            int connectionFlags, CancellationSignal cancellationSignal) {
+        mDatabase = db;
+        mSql = sql;
+        mBindArgs = bindArgs;
+        mCancellationSignal = cancellationSignal;
+        mOwnerThread = Thread.currentThread();
+        db.acquireReference();
+        try {
+            final SQLiteSession threadSession = db.getThreadSession();
+            if (threadSession.hasTransaction()) {
+                // Read through the transaction's connection, which sees its
+                // uncommitted changes and which no other session could get anyway.
+                mSession = threadSession;
+                mOwnsSession = false;
+            } else if (!db.isWriteAheadLoggingEnabled()) {
+                // The primary connection is the only one, and the thread would wait
+                // forever for it if the cursor held it in another session.  Lease it
+                // for writing too, since the thread's own writes will share it.
+                mSession = threadSession;
+                mOwnsSession = false;
+                connectionFlags &= ~SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY;
+            } else {
+                // Use a session of its own so that the read-only connection held by
+                // the cursor is not the one the thread's own writes go to.
+                mSession = db.createSession();
+                mOwnsSession = true;
+            }
+            mConnectionFlags = connectionFlags;
+            mReader = mSession.executeForRowReader(sql, bindArgs, connectionFlags,
+                    cancellationSignal);
+        } catch (RuntimeException ex) {
+            db.releaseReference();
+            throw ex;
+        }
+        mColumns = mReader.getColumnNames();
+        mCurrentRow = new SQLiteConnection.Row(mColumns.length);
+        mNextRow = new SQLiteConnection.Row(mColumns.length);
+    }
+
+    /**
+     * Get the database that this cursor is associated with.
+     * @return the SQLiteDatabase that this cursor is associated with.
+     */
+    public SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    @Override
+    public int getCount() {
+        if (mCount == NO_COUNT) {
+            checkThread();
+            readNextRow();
+            if (!mHasNextRow) {
+                mCount = 0;
+            } else {
+                try {
+                    mCount = (int) mSession.executeForLong(
+                            "SELECT count(*) FROM (" + mSql + ")", mBindArgs,
+                            mConnectionFlags, mCancellationSignal);
+                } catch (RuntimeException ex) {
+                    // The first row has been consumed, so the cursor cannot recover.
+                    releaseReader();
+                    throw ex;
+                }
+            }
+        }
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        checkThread();
+        if (newPosition != oldPosition + 1) {
+            throw new IllegalStateException("A streaming cursor can only move forward "
+                    + "one row at a time, from " + oldPosition + " to " + newPosition
+                    + " is not supported.");
+        }
+
+        if (!mHasNextRow) {
+            // The creating thread removed rows after the result was counted.
+            return false;
+        }
+        final SQLiteConnection.Row row = mCurrentRow;
+        mCurrentRow = mNextRow;
+        mNextRow = row;
+        if (mReader != null) {
+            readNextRow();
+        } else {
+            mHasNextRow = false;
+        }
+        return true;
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != mOwnerThread) {
+            throw new IllegalStateException("A streaming cursor can only be used by "
+                    + "the thread that created it.");
+        }
+    }
+
+    private void readNextRow() {
+        if (mReader == null) {
+            throw new IllegalStateException("The cursor has been closed.");
+        }
+        try {
+            mHasNextRow = mReader.step(mNextRow);
+        } catch (RuntimeException ex) {
+            // The query will not produce any more results, so let go of the connection.
+            releaseReader();
+            throw ex;
+        }
+        if (!mHasNextRow) {
+            // Let go of the connection as soon as the last row has been read.
+            releaseReader();
+        }
+    }
+
+    private void releaseReader() {
+        if (mReader != null) {
+            final SQLiteConnection.RowReader reader = mReader;
+            mReader = null;
+            try {
+                mSession.releaseRowReader(reader);
+            } finally {
+                mDatabase.releaseReference();
+            }
+        }
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        // Create mColumnNameMap on demand
+        if (mColumnNameMap == null) {
+            String[] columns = mColumns;
+            int columnCount = columns.length;
+            HashMap<String, Integer> map = new HashMap<String, Integer>(columnCount, 1);
+            for (int i = 0; i < columnCount; i++) {
+                map.put(columns[i], i);
+            }
+            mColumnNameMap = map;
+        }
+
+        final int periodIndex = columnName.lastIndexOf('.');
+        if (periodIndex != -1) {
+            columnName = columnName.substring(periodIndex + 1);
+        }
+
+        Integer i = mColumnNameMap.get(columnName);
+        return i != null ? i.intValue() : -1;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    @Override
+    public int getType(int column) {
+        checkPosition();
+        return mCurrentRow.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getType(column) == FIELD_TYPE_NULL;
+    }
+
+    @Override
+    public String getString(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_STRING:
+                return (String) mCurrentRow.getObject(column);
+            case FIELD_TYPE_INTEGER:
+                return Long.toString(mCurrentRow.getLong(column));
+            case FIELD_TYPE_FLOAT:
+                return Double.toString(mCurrentRow.getDouble(column));
+            case FIELD_TYPE_BLOB:
+                throw new SQLiteException("Unable to convert BLOB to string");
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_INTEGER:
+                return mCurrentRow.getLong(column);
+            case FIELD_TYPE_FLOAT:
+                return (long) mCurrentRow.getDouble(column);
+            case FIELD_TYPE_STRING:
+                try {
+                    return Long.parseLong(((String) mCurrentRow.getObject(column)).trim());
+                } catch (NumberFormatException ex) {
+                    return 0L;
+                }
+            case FIELD_TYPE_BLOB:
+                throw new SQLiteException("Unable to convert BLOB to long");
+            default:
+                return 0L;
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_FLOAT:
+                return mCurrentRow.getDouble(column);
+            case FIELD_TYPE_INTEGER:
+                return mCurrentRow.getLong(column);
+            case FIELD_TYPE_STRING:
+                try {
+                    return Double.parseDouble((String) mCurrentRow.getObject(column));
+                } catch (NumberFormatException ex) {
+                    return 0.0;
+                }
+            case FIELD_TYPE_BLOB:
+                throw new SQLiteException("Unable to convert BLOB to double");
+            default:
+                return 0.0;
+        }
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_BLOB:
+                return (byte[]) mCurrentRow.getObject(column);
+            case FIELD_TYPE_STRING:
+                return ((String) mCurrentRow.getObject(column)).getBytes(
+                        StandardCharsets.UTF_8);
+            case FIELD_TYPE_INTEGER:
+                throw new SQLiteException("INTEGER data in getBlob");
+            case FIELD_TYPE_FLOAT:
+                throw new SQLiteException("FLOAT data in getBlob");
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        releaseReader();
+    }
+
+    /**
+     * Streaming cursors cannot be requeried.
+     *
+     * @return false
+     */
+    @Override
+    public boolean requery() {
+        return false;
+    }
+
+    /**
+     * Release the connection, if it hasn't been released yet.
+     */
+    @Override
+    protected void finalize() {
+        try {
+            if (mReader != null) {
+                Log.w(TAG, "Finalizing a streaming Cursor that has not been closed, "
+                        + "database = " + mDatabase.getLabel());
+                // A session borrowed from the creating thread is not thread-safe and
+                // may still be in use there, so its connection is leaked rather than
+                // released from the finalizer thread.
+                if (mOwnsSession) {
+                    close();
+                }
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+}
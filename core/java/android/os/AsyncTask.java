@@ -20,13 +20,17 @@ import android.annotation.MainThread;
 import android.annotation.WorkerThread;
 
 import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -203,6 +207,33 @@ public abstract class AsyncTask<Params, Progress, Result> {
             = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
                     TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
 
+    private static final int BLOCKING_KEEP_ALIVE = 30;
+
+    private static final ThreadFactory sBlockingThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "AsyncTask blocking #" + mCount.getAndIncrement());
+        }
+    };
+
+    /**
+     * An {@link Executor} for tasks that spend most of their time blocked, for
+     * example on network or disk I/O.  Every task gets its own thread, so the executor
+     * never queues tasks behind each other or rejects them the way
+     * {@link #THREAD_POOL_EXECUTOR} does once its queue is full.  When the runtime
+     * supports virtual threads, each task runs on a new virtual thread.  Otherwise
+     * tasks run on platform threads from a pool that grows on demand and releases
+     * threads after they have been idle for a while.
+     *
+     * <p>Use it with {@link #executeOnExecutor} or make it the default
+     * with {@link #setDefaultExecutor}.  Results are still delivered through
+     * {@link #onPostExecute} on the UI thread.</p>
+     *
+     * @hide
+     */
+    public static final Executor BLOCKING_EXECUTOR = newBlockingExecutor();
+
     /**
      * An {@link Executor} that executes tasks one at a time in serial
      * order.  This serialization is global to a particular process.
@@ -249,6 +280,213 @@ public abstract class AsyncTask<Params, Progress, Result> {
         }
     }
 
+    /**
+     * Runs tasks one at a time in submission order for each key, while tasks
+     * submitted under different keys run in parallel on an underlying executor.
+     * Use it instead of {@link #SERIAL_EXECUTOR} when ordering only matters within
+     * a group of tasks, for example all tasks that touch one database or one
+     * account, so that a slow group does not hold up unrelated work.
+     *
+     * <p>For each key it keeps the number of queued tasks and how long tasks
+     * waited before they started.  A key is forgotten, along with its statistics,
+     * once it has no task queued or running.</p>
+     *
+     * <p>If the underlying executor rejects a task that was queued behind others,
+     * the task is dropped, and canceled if it is a {@link Future} such as the one
+     * of an AsyncTask.</p>
+     *
+     * @hide
+     */
+    public static final class KeyedSerialExecutor {
+        private final Executor mExecutor;
+        private final HashMap<Object, KeyQueue> mQueues = new HashMap<Object, KeyQueue>();
+
+        /**
+         * Creates an executor that runs tasks on {@link #THREAD_POOL_EXECUTOR}.
+         */
+        public KeyedSerialExecutor() {
+            this(THREAD_POOL_EXECUTOR);
+        }
+
+        /**
+         * Creates an executor that runs tasks on the given executor.
+         *
+         * @param executor The executor that runs the tasks.
+         */
+        public KeyedSerialExecutor(Executor executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("executor must not be null");
+            }
+            mExecutor = executor;
+        }
+
+        /**
+         * Returns an {@link Executor} that submits tasks under the given key,
+         * suitable for {@link AsyncTask#executeOnExecutor}.
+         *
+         * @param key The key, compared with {@link Object#equals}.
+         */
+        public Executor forKey(final Object key) {
+            if (key == null) {
+                throw new IllegalArgumentException("key must not be null");
+            }
+            return new Executor() {
+                public void execute(Runnable r) {
+                    KeyedSerialExecutor.this.execute(key, r);
+                }
+            };
+        }
+
+        /**
+         * Runs a task after all tasks previously submitted under the same key have finished.
+         *
+         * @param key The key, compared with {@link Object#equals}.
+         * @param r The task to run.
+         * @throws RejectedExecutionException if the underlying executor rejects the task,
+         * in which case the task will not run.
+         */
+        public void execute(Object key, Runnable r) {
+            if (key == null) {
+                throw new IllegalArgumentException("key must not be null");
+            }
+            final long submitTime = SystemClock.uptimeMillis();
+            final KeyQueue queue;
+            final KeyedTask task;
+            synchronized (mQueues) {
+                KeyQueue q = mQueues.get(key);
+                if (q == null) {
+                    q = new KeyQueue(key);
+                    mQueues.put(key, q);
+                }
+                queue = q;
+                task = new KeyedTask(queue, r, submitTime);
+                if (queue.mActive) {
+                    queue.mTasks.offer(task);
+                    return;
+                }
+                queue.mActive = true;
+            }
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The caller learns that this task will not run.  Move on to any
+                // tasks queued behind it in the meantime.
+                scheduleNext(queue);
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the number of tasks submitted under the key that have not started yet.
+         */
+        public int getQueueLength(Object key) {
+            synchronized (mQueues) {
+                final KeyQueue queue = mQueues.get(key);
+                return queue != null ? queue.mTasks.size() : 0;
+            }
+        }
+
+        /**
+         * Returns the number of tasks submitted under the key that have started.
+         */
+        public long getStartedTaskCount(Object key) {
+            synchronized (mQueues) {
+                final KeyQueue queue = mQueues.get(key);
+                return queue != null ? queue.mStartedCount : 0;
+            }
+        }
+
+        /**
+         * Returns the total time tasks submitted under the key waited before
+         * they started, in milliseconds.
+         */
+        public long getTotalWaitMillis(Object key) {
+            synchronized (mQueues) {
+                final KeyQueue queue = mQueues.get(key);
+                return queue != null ? queue.mTotalWaitMillis : 0;
+            }
+        }
+
+        /**
+         * Returns the longest time a task submitted under the key waited
+         * before it started, in milliseconds.
+         */
+        public long getMaxWaitMillis(Object key) {
+            synchronized (mQueues) {
+                final KeyQueue queue = mQueues.get(key);
+                return queue != null ? queue.mMaxWaitMillis : 0;
+            }
+        }
+
+        // Starts the next task of the key, or forgets the key if it has none.  Called
+        // once the running task of the key has finished or was rejected.
+        private void scheduleNext(KeyQueue queue) {
+            for (;;) {
+                final KeyedTask task;
+                synchronized (mQueues) {
+                    task = queue.mTasks.poll();
+                    if (task == null) {
+                        queue.mActive = false;
+                        mQueues.remove(queue.mKey);
+                        return;
+                    }
+                }
+                try {
+                    mExecutor.execute(task);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Nobody is waiting to hear about the rejection here, so cancel
+                    // the task to wake up anyone waiting for its result.
+                    android.util.Log.w(LOG_TAG, "Executor rejected a queued task, dropping it", e);
+                    if (task.mTask instanceof Future) {
+                        ((Future<?>) task.mTask).cancel(false);
+                    }
+                }
+            }
+        }
+
+        private static final class KeyQueue {
+            final Object mKey;
+            final ArrayDeque<KeyedTask> mTasks = new ArrayDeque<KeyedTask>();
+            boolean mActive;
+            long mStartedCount;
+            long mTotalWaitMillis;
+            long mMaxWaitMillis;
+
+            KeyQueue(Object key) {
+                mKey = key;
+            }
+        }
+
+        private final class KeyedTask implements Runnable {
+            private final KeyQueue mQueue;
+            final Runnable mTask;
+            private final long mSubmitTime;
+
+            KeyedTask(KeyQueue queue, Runnable task, long submitTime) {
+                mQueue = queue;
+                mTask = task;
+                mSubmitTime = submitTime;
+            }
+
+            public void run() {
+                final long waitMillis = SystemClock.uptimeMillis() - mSubmitTime;
+                synchronized (mQueues) {
+                    mQueue.mStartedCount++;
+                    mQueue.mTotalWaitMillis += waitMillis;
+                    if (waitMillis > mQueue.mMaxWaitMillis) {
+                        mQueue.mMaxWaitMillis = waitMillis;
+                    }
+                }
+                try {
+                    mTask.run();
+                } finally {
+                    scheduleNext(mQueue);
+                }
+            }
+        }
+    }
+
     /**
      * Indicates the current status of the task. Each status will be set only once
      * during the lifetime of a task.
@@ -299,6 +537,25 @@ public abstract class AsyncTask<Params, Progress, Result> {
         sDefaultExecutor = exec;
     }
 
+    /**
+     * Creates a new executor with the behavior of {@link #BLOCKING_EXECUTOR}.
+     *
+     * @hide
+     */
+    public static Executor newBlockingExecutor() {
+        // Virtual threads are not part of every runtime this class is built for,
+        // so look the factory up reflectively.
+        try {
+            return (Executor) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Fall through to the platform thread pool.
+        }
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                BLOCKING_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                sBlockingThreadFactory);
+    }
+
     /**
      * Creates a new asynchronous task. This constructor must be invoked on the UI thread.
      */
@@ -18,6 +18,7 @@ package android.os;
 
 import android.util.Log;
 import android.util.Printer;
+import android.util.SparseArray;
 
 import java.lang.reflect.Modifier;
 
@@ -746,6 +747,10 @@ public class Handler {
     final boolean mAsynchronous;
     IMessenger mMessenger;
 
+    // Messages pending in mQueue for this handler keyed by what, each bucket linked
+    // through Message.next and Message.prev.  Guarded by the mQueue lock.
+    SparseArray<Message> mQueuedMessages;
+
     private static final class BlockingRunnable implements Runnable {
         private final Runnable mTask;
         private boolean mDone;
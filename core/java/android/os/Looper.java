@@ -75,6 +75,8 @@ public final class Looper {
 
     private Printer mLogging;
 
+    private volatile LooperMetrics mMetrics;
+
     private static final ReentrantLock lock = new ReentrantLock();
 
      /** Initialize the current thread as a looper.
@@ -150,8 +152,24 @@ public final class Looper {
                         msg.callback + ": " + msg.what);
             }
 
+            final LooperMetrics metrics = me.mMetrics;
+            final long dispatchStart;
+            final long waitMillis;
+            if (metrics != null) {
+                waitMillis = msg.when != 0 ? SystemClock.uptimeMillis() - msg.when : 0;
+                dispatchStart = System.nanoTime();
+            } else {
+                waitMillis = 0;
+                dispatchStart = 0;
+            }
+
             msg.target.dispatchMessage(msg);
 
+            if (metrics != null) {
+                metrics.recordDispatch(msg.target, msg.callback, msg.what, waitMillis,
+                        System.nanoTime() - dispatchStart, queue.mPendingCountAtNext);
+            }
+
             if (logging != null) {
                 logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
             }
@@ -217,6 +235,27 @@ public final class Looper {
         mLogging = printer;
     }
 
+    /**
+     * Enables structured dispatch statistics for this looper.  Unlike
+     * {@link #setMessageLogging}, recording a message does not format any strings.
+     * The statistics are printed by {@link #dump}.
+     *
+     * @param metrics The metrics object that will receive the statistics, or
+     * null to stop collecting them.
+     * @hide
+     */
+    public void setMetrics(@Nullable LooperMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the metrics object set with {@link #setMetrics}, or null.
+     * @hide
+     */
+    public @Nullable LooperMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -235,7 +274,6 @@ public final class Looper {
      */
     public void quit() {
         mQueue.quit(false);
-        mThread.interrupt();
     }
 
     /**
@@ -281,6 +319,11 @@ public final class Looper {
     public void dump(@NonNull Printer pw, @NonNull String prefix) {
         pw.println(prefix + toString());
         mQueue.dump(pw, prefix + "  ");
+        final LooperMetrics metrics = mMetrics;
+        if (metrics != null) {
+            pw.println(prefix + "  Dispatch statistics:");
+            metrics.dump(pw, prefix + "    ");
+        }
     }
 
     @Override
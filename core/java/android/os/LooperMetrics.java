@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Printer;
+
+import com.android.internal.util.Histogram;
+
+/**
+ * Collects dispatch statistics for the messages handled by a {@link Looper}.
+ * <p>
+ * For each combination of handler class, callback class and <code>what</code>
+ * the looper records how long messages waited in the queue past their due time
+ * and how long they took to dispatch.  It also samples the number of messages
+ * left in the queue each time one is dispatched.  Values go into fixed
+ * power-of-two histograms, so recording a message neither allocates nor formats
+ * strings once its key has been seen.
+ * </p><p>
+ * Install an instance with {@link Looper#setMetrics}.  Statistics can be read from
+ * any thread and are printed by {@link Looper#dump}.
+ * </p>
+ *
+ * @hide
+ */
+public final class LooperMetrics {
+    // Maximum number of distinct keys tracked.  Messages with keys seen after the
+    // table is full are recorded in the overflow entry.
+    private static final int MAX_ENTRIES = 256;
+
+    // Open addressing table of entries, sized to twice MAX_ENTRIES so that probes stay short.
+    private final Entry[] mTable = new Entry[MAX_ENTRIES * 2];
+    private int mEntryCount;
+    private final Entry mOverflow = new Entry(null, null, 0);
+
+    private final Histogram mQueueDepth = new Histogram();
+
+    /**
+     * Records the dispatch of one message.  Called by the looper thread.
+     *
+     * @param target The handler that received the message.
+     * @param callback The message callback, or null.
+     * @param what The message code.
+     * @param waitMillis How long past its due time the message was dispatched.
+     * @param dispatchNanos How long the handler took to process the message.
+     * @param queueDepth The number of messages left in the queue.
+     */
+    void recordDispatch(Handler target, Runnable callback, int what,
+            long waitMillis, long dispatchNanos, int queueDepth) {
+        final Class<?> handlerClass = target.getClass();
+        final Class<?> callbackClass = callback != null ? callback.getClass() : null;
+        synchronized (this) {
+            final Entry entry = getOrCreateEntryLocked(handlerClass, callbackClass, what);
+            entry.mWaitMicros.record(waitMillis * 1000);
+            entry.mDispatchMicros.record(dispatchNanos / 1000);
+            mQueueDepth.record(queueDepth);
+        }
+    }
+
+    private Entry getOrCreateEntryLocked(Class<?> handlerClass, Class<?> callbackClass,
+            int what) {
+        final int mask = mTable.length - 1;
+        int hash = System.identityHashCode(handlerClass) * 31 + what;
+        if (callbackClass != null) {
+            hash = hash * 31 + System.identityHashCode(callbackClass);
+        }
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (;;) {
+            final Entry entry = mTable[index];
+            if (entry == null) {
+                break;
+            }
+            if (entry.mHandlerClass == handlerClass && entry.mCallbackClass == callbackClass
+                    && entry.mWhat == what) {
+                return entry;
+            }
+            index = (index + 1) & mask;
+        }
+        if (mEntryCount >= MAX_ENTRIES) {
+            return mOverflow;
+        }
+        final Entry entry = new Entry(handlerClass, callbackClass, what);
+        mTable[index] = entry;
+        mEntryCount++;
+        return entry;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of every key seen so far.
+     */
+    public @NonNull Entry[] getEntries() {
+        synchronized (this) {
+            final boolean overflowed = mOverflow.mDispatchMicros.getCount() != 0;
+            final Entry[] entries = new Entry[mEntryCount + (overflowed ? 1 : 0)];
+            int n = 0;
+            for (Entry entry : mTable) {
+                if (entry != null) {
+                    entries[n++] = entry.copy();
+                }
+            }
+            if (overflowed) {
+                entries[n] = mOverflow.copy();
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queue depth samples.
+     */
+    public @NonNull Histogram getQueueDepth() {
+        synchronized (this) {
+            return mQueueDepth.copy();
+        }
+    }
+
+    /**
+     * Discards all statistics collected so far.
+     */
+    public void reset() {
+        synchronized (this) {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] = null;
+            }
+            mEntryCount = 0;
+            mOverflow.mWaitMicros.clear();
+            mOverflow.mDispatchMicros.clear();
+            mQueueDepth.clear();
+        }
+    }
+
+    /**
+     * Prints the collected statistics.
+     *
+     * @param pw A printer to receive the contents of the dump.
+     * @param prefix A prefix to prepend to each line which is printed.
+     */
+    public void dump(@NonNull Printer pw, @NonNull String prefix) {
+        final Entry[] entries = getEntries();
+        pw.println(prefix + "Queue depth: " + getQueueDepth());
+        for (Entry entry : entries) {
+            pw.println(prefix + entry);
+            pw.println(prefix + "  dispatch us: " + entry.mDispatchMicros);
+            pw.println(prefix + "  wait us: " + entry.mWaitMicros);
+        }
+    }
+
+    /**
+     * Statistics for the messages sharing one handler class, callback class
+     * and <code>what</code>.
+     */
+    public static final class Entry {
+        final Class<?> mHandlerClass;
+        final Class<?> mCallbackClass;
+        final int mWhat;
+        final Histogram mDispatchMicros;
+        final Histogram mWaitMicros;
+
+        Entry(Class<?> handlerClass, Class<?> callbackClass, int what) {
+            this(handlerClass, callbackClass, what, new Histogram(), new Histogram());
+        }
+
+        private Entry(Class<?> handlerClass, Class<?> callbackClass, int what,
+                Histogram dispatchMicros, Histogram waitMicros) {
+            mHandlerClass = handlerClass;
+            mCallbackClass = callbackClass;
+            mWhat = what;
+            mDispatchMicros = dispatchMicros;
+            mWaitMicros = waitMicros;
+        }
+
+        Entry copy() {
+            return new Entry(mHandlerClass, mCallbackClass, mWhat,
+                    mDispatchMicros.copy(), mWaitMicros.copy());
+        }
+
+        /**
+         * Returns the handler class, or null for the entry that collects
+         * messages whose keys did not fit in the table.
+         */
+        public @Nullable Class<?> getHandlerClass() {
+            return mHandlerClass;
+        }
+
+        /**
+         * Returns the class of the message callback, or null if the messages
+         * had no callback.
+         */
+        public @Nullable Class<?> getCallbackClass() {
+            return mCallbackClass;
+        }
+
+        /**
+         * Returns the <code>what</code> of the messages.
+         */
+        public int getWhat() {
+            return mWhat;
+        }
+
+        /**
+         * Returns the time spent in {@link Handler#dispatchMessage}, in microseconds.
+         */
+        public @NonNull Histogram getDispatchTime() {
+            return mDispatchMicros;
+        }
+
+        /**
+         * Returns the time between when messages were due and when they were
+         * dispatched, in microseconds.  The looper clock has millisecond resolution.
+         */
+        public @NonNull Histogram getWaitTime() {
+            return mWaitMicros;
+        }
+
+        @Override
+        public String toString() {
+            if (mHandlerClass == null) {
+                return "(other)";
+            }
+            return mHandlerClass.getName()
+                    + (mCallbackClass != null ? " callback=" + mCallbackClass.getName() : "")
+                    + " what=" + mWhat;
+        }
+    }
+}
@@ -107,12 +107,32 @@ public final class Message implements Parcelable {
     // sometimes we store linked lists of these things
     /*package*/ Message next;
 
-    private static final Object sPoolSync = new Object();
-    private static Message sPool;
-    private static int sPoolSize = 0;
+    // back link used by the MessageQueue index of a handler's pending messages
+    /*package*/ Message prev;
+
+    // position in the MessageQueue heap holding this message, or -1
+    /*package*/ int heapIndex = -1;
+
+    // orders messages with the same when inside a MessageQueue
+    /*package*/ long seq;
+
+    // Recycled messages are kept in independently locked stripes so that threads
+    // obtaining and recycling messages at the same time do not all contend on one
+    // lock.  A thread starts at the stripe picked by its id and moves on to the
+    // others when that stripe is empty (obtain) or full (recycle).
+    private static final int POOL_STRIPES = poolStripeCount();
+    private static final PoolStripe[] sPool = new PoolStripe[POOL_STRIPES];
+    static {
+        for (int i = 0; i < POOL_STRIPES; i++) {
+            sPool[i] = new PoolStripe();
+        }
+    }
 
+    // Default number of recycled messages kept in the whole pool.
     private static final int MAX_POOL_SIZE = 50;
 
+    private static volatile int sStripeCapacity = stripeCapacity(MAX_POOL_SIZE);
+
     private static boolean gCheckRecycle = true;
 
     /**
@@ -120,15 +140,27 @@ public final class Message implements Parcelable {
      * avoid allocating new objects in many cases.
      */
     public static Message obtain() {
-        synchronized (sPoolSync) {
-            if (sPool != null) {
-                Message m = sPool;
-                sPool = m.next;
-                m.next = null;
-                m.flags = 0; // clear in-use flag
-                sPoolSize--;
-                return m;
+        final int start = poolStripeIndex();
+        for (int i = 0; i < POOL_STRIPES; i++) {
+            final PoolStripe stripe = sPool[(start + i) & (POOL_STRIPES - 1)];
+            if (stripe.mSize == 0) {
+                continue; // racy hint only, checked again under the lock
             }
+            synchronized (stripe) {
+                final Message m = stripe.mHead;
+                if (m != null) {
+                    stripe.mHead = m.next;
+                    m.next = null;
+                    m.flags = 0; // clear in-use flag
+                    stripe.mSize--;
+                    stripe.mHits++;
+                    return m;
+                }
+            }
+        }
+        final PoolStripe stripe = sPool[start];
+        synchronized (stripe) {
+            stripe.mMisses++;
         }
         return new Message();
     }
@@ -302,14 +334,113 @@ public final class Message implements Parcelable {
         target = null;
         callback = null;
         data = null;
+        prev = null;
+
+        final int capacity = sStripeCapacity;
+        final int start = poolStripeIndex();
+        for (int i = 0; i < POOL_STRIPES; i++) {
+            final PoolStripe stripe = sPool[(start + i) & (POOL_STRIPES - 1)];
+            if (stripe.mSize >= capacity) {
+                continue; // racy hint only, checked again under the lock
+            }
+            synchronized (stripe) {
+                if (stripe.mSize < capacity) {
+                    next = stripe.mHead;
+                    stripe.mHead = this;
+                    stripe.mSize++;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of recycled messages kept in the global pool.
+     * The pool is split into stripes and the capacity is shared evenly between
+     * them, so it is rounded up to a multiple of the number of stripes.  Use
+     * {@link #getPoolCapacity} to get the capacity in effect.  Shrinking the pool
+     * takes effect as messages are obtained.
+     *
+     * @param capacity The maximum number of pooled messages, or 0 to disable pooling.
+     * @hide
+     */
+    public static void setPoolCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        sStripeCapacity = stripeCapacity(capacity);
+    }
+
+    private static int stripeCapacity(int capacity) {
+        return (capacity + POOL_STRIPES - 1) / POOL_STRIPES;
+    }
+
+    /**
+     * Returns the maximum number of recycled messages kept in the global pool,
+     * after the rounding done by {@link #setPoolCapacity}.
+     * @hide
+     */
+    public static int getPoolCapacity() {
+        return sStripeCapacity * POOL_STRIPES;
+    }
 
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                next = sPool;
-                sPool = this;
-                sPoolSize++;
+    /**
+     * Returns the number of recycled messages currently in the global pool.
+     * @hide
+     */
+    public static int getPoolSize() {
+        int size = 0;
+        for (PoolStripe stripe : sPool) {
+            synchronized (stripe) {
+                size += stripe.mSize;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of times {@link #obtain()} reused a pooled message.
+     * @hide
+     */
+    public static long getPoolHitCount() {
+        long hits = 0;
+        for (PoolStripe stripe : sPool) {
+            synchronized (stripe) {
+                hits += stripe.mHits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of times {@link #obtain()} found the pool empty and
+     * allocated a new message.
+     * @hide
+     */
+    public static long getPoolMissCount() {
+        long misses = 0;
+        for (PoolStripe stripe : sPool) {
+            synchronized (stripe) {
+                misses += stripe.mMisses;
             }
         }
+        return misses;
+    }
+
+    private static int poolStripeCount() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.min(Integer.highestOneBit(Math.max(cpus, 1) * 2 - 1), 16);
+    }
+
+    private static int poolStripeIndex() {
+        return (int) Thread.currentThread().getId() & (POOL_STRIPES - 1);
+    }
+
+    private static final class PoolStripe {
+        Message mHead;
+        int mSize;
+        long mHits;
+        long mMisses;
     }
 
     /**
@@ -26,6 +26,11 @@ import java.io.FileDescriptor;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a
@@ -45,15 +50,70 @@ public final class MessageQueue {
     @SuppressWarnings("unused")
     private long mPtr; // used by native code
 
-    Message mMessages;
+    // Pending messages ordered by when, split in two so that the earliest asynchronous
+    // message can be found without a scan while the queue is stalled by a sync barrier.
+    // Synchronous messages and barriers live in mSyncMessages.
+    private final MessageHeap mSyncMessages = new MessageHeap();
+    private final MessageHeap mAsyncMessages = new MessageHeap();
+
+    // Number of messages left in the queue when next() last returned one.
+    // Written and read on the looper thread only.
+    int mPendingCountAtNext;
+
+    // Pending sync barriers keyed by token.
+    private final SparseArray<Message> mBarriers = new SparseArray<Message>();
+
+    // Sequence numbers that order messages with equal when.  Messages are normally
+    // FIFO, but each message posted at the front of the queue (when == 0) goes ahead
+    // of those posted there before it.
+    private long mNextSeq;
+    private long mNextFrontSeq = -1;
+
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
-    private boolean mQuitting;
+    private volatile boolean mQuitting;
 
     // Indicates whether next() is blocked waiting in pollOnce() with a non-zero timeout.
     private boolean mBlocked;
 
+    // The thread that calls next(), parked in pollOnce() while waiting and unparked by wake().
+    private volatile Thread mPollThread;
+
+    // Indicates whether the poll thread is currently parked in pollOnce().
+    private volatile boolean mPolling;
+
+    // Indicates whether enqueueMessage() pushes onto mInbox instead of taking the lock.
+    private volatile boolean mLockFreeEnqueue;
+
+    // Messages pushed by producers in lock-free mode, most recently pushed first and
+    // linked through Message.next.  Merged into the queue under the lock by mergeInboxLocked().
+    private final AtomicReference<Message> mInbox = new AtomicReference<Message>();
+
+    // Indicates whether next() detaches all due messages at once.  See setBatchDispatchEnabled().
+    private volatile boolean mBatchDispatch;
+
+    // Due messages detached from the heaps by the last batch, in delivery order.
+    // next() claims each slot with getAndSet(null) outside the lock, and the remove
+    // methods claim slots with compareAndSet(), so each message has a single owner.
+    // mBatchSize is written under the lock by the looper thread, mBatchPos is only
+    // used by the looper thread.
+    private AtomicReferenceArray<Message> mBatch;
+    private int mBatchSize;
+    private int mBatchPos;
+
+    // Due time of the last message in the batch.  A message inserted ahead of it
+    // would be delivered out of order, so the batch is interrupted instead.
+    private long mBatchLastWhen;
+    private long mBatchLastSeq;
+
+    // Set under the lock when the rest of the batch must go back into the queue.
+    private volatile boolean mBatchInterrupted;
+
+    // Maximum number of messages detached by one batch, which bounds the cost of
+    // scanning the batch in removeMessages() and hasMessages().
+    private static final int MAX_BATCH_SIZE = 64;
+
     // The next barrier token.
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
     private int mNextBarrierToken;
@@ -97,11 +157,63 @@ public final class MessageQueue {
      */
     public boolean isIdle() {
         synchronized (this) {
+            if (mergeInboxLocked()) {
+                wake();
+            }
+            if (hasBatchedMessagesLocked()) {
+                return false;
+            }
             final long now = SystemClock.uptimeMillis();
-            return mMessages == null || now < mMessages.when;
+            final Message head = peekLocked();
+            return head == null || now < head.when;
+        }
+    }
+
+    /**
+     * Enables or disables lock-free enqueueing of messages.
+     *
+     * <p>When enabled, threads posting to this queue push their messages onto a
+     * lock-free inbox instead of contending for the queue lock and walking the
+     * message list.  The looper thread merges the inbox into the time-ordered
+     * queue before looking for the next message, so delivery order, sync barriers
+     * and asynchronous messages behave exactly as they do otherwise.  This mode
+     * helps queues that receive messages from many threads at once.</p>
+     *
+     * <p>This method is safe to call from any thread.</p>
+     *
+     * @param enabled True to enqueue messages without taking the queue lock.
+     * @hide
+     */
+    public void setLockFreeEnqueueEnabled(boolean enabled) {
+        synchronized (this) {
+            mLockFreeEnqueue = enabled;
+            if (mergeInboxLocked()) {
+                wake();
+            }
         }
     }
 
+    /**
+     * Enables or disables batch dispatch of messages.
+     *
+     * <p>When enabled, the looper takes the queue lock once to detach every message
+     * that is due, then hands them out one at a time without locking again.  Idle
+     * handlers are therefore considered once per batch instead of once per message.
+     * Messages are delivered in the same order as otherwise: if a message that would
+     * have to be delivered before the rest of the batch is posted while the batch is
+     * being dispatched, or a sync barrier is posted or removed, the remaining messages
+     * are put back into the queue first.  Removing messages and checking for them
+     * also covers messages that have been detached but not yet delivered.</p>
+     *
+     * <p>This method is safe to call from any thread.</p>
+     *
+     * @param enabled True to dispatch due messages in batches.
+     * @hide
+     */
+    public void setBatchDispatchEnabled(boolean enabled) {
+        mBatchDispatch = enabled;
+    }
+
     /**
      * Add a new {@link IdleHandler} to this message queue.  This may be
      * removed automatically for you by returning false from
@@ -155,8 +267,7 @@ public final class MessageQueue {
 
     private boolean isPollingLocked() {
         // If the loop is quitting then it must not be idling.
-        // We can assume mPtr != 0 when mQuitting is false.
-        return !mQuitting && nativeIsPolling(mPtr);
+        return !mQuitting && mPolling;
     }
 
     /**
@@ -313,6 +424,19 @@ public final class MessageQueue {
             return null;
         }
 
+        mPollThread = Thread.currentThread();
+
+        // Hand out the rest of the current batch without taking the lock.  Messages
+        // in the lock-free inbox may have to go ahead of the batch, so they are
+        // merged under the lock first.
+        if (mBatchPos < mBatchSize && !mBatchInterrupted && mInbox.get() == null) {
+            final Message msg = takeBatchedMessage();
+            if (msg != null) {
+                if (DEBUG) Log.v(TAG, "Returning batched message: " + msg);
+                return msg;
+            }
+        }
+
         int pendingIdleHandlerCount = -1; // -1 only during first iteration
         int nextPollTimeoutMillis = 0;
         for (;;) {
@@ -320,28 +444,25 @@ public final class MessageQueue {
                 Binder.flushPendingCommands();
             }*/
 
-            //nativePollOnce(ptr, nextPollTimeoutMillis);
-            try {
-                if(nextPollTimeoutMillis >= 0) {
-                    Thread.sleep(nextPollTimeoutMillis);
-                } else {
+            pollOnce(nextPollTimeoutMillis);
+
+            synchronized (this) {
+                // Pick up messages posted through the lock-free inbox.  No need to
+                // wake since this thread is the one that would have been woken.
+                mergeInboxLocked();
 
+                // Put back whatever is left of an exhausted or interrupted batch.
+                if (mBatchSize != 0) {
+                    restoreBatchLocked();
                 }
-            } catch (InterruptedException e) {
-                //ignore
-            }
 
-            synchronized (this) {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
-                Message prevMsg = null;
-                Message msg = mMessages;
+                final Message head = peekLocked();
+                Message msg = head;
                 if (msg != null && msg.target == null) {
                     // Stalled by a barrier.  Find the next asynchronous message in the queue.
-                    do {
-                        prevMsg = msg;
-                        msg = msg.next;
-                    } while (msg != null && !msg.isAsynchronous());
+                    msg = mAsyncMessages.peek();
                 }
                 if (msg != null) {
                     if (now < msg.when) {
@@ -350,12 +471,12 @@ public final class MessageQueue {
                     } else {
                         // Got a message.
                         mBlocked = false;
-                        if (prevMsg != null) {
-                            prevMsg.next = msg.next;
-                        } else {
-                            mMessages = msg.next;
+                        removeMessageLocked(msg);
+                        if (mBatchDispatch) {
+                            detachBatchLocked(now);
                         }
-                        msg.next = null;
+                        mPendingCountAtNext = mSyncMessages.size() + mAsyncMessages.size()
+                                + mBatchSize;
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
                         msg.markInUse();
                         return msg;
@@ -375,7 +496,7 @@ public final class MessageQueue {
                 // Idle handles only run if the queue is empty or if the first message
                 // in the queue (possibly a barrier) is due to be handled in the future.
                 if (pendingIdleHandlerCount < 0
-                        && (mMessages == null || now < mMessages.when)) {
+                        && (head == null || now < head.when)) {
                     pendingIdleHandlerCount = mIdleHandlers.size();
                 }
                 if (pendingIdleHandlerCount <= 0) {
@@ -419,6 +540,156 @@ public final class MessageQueue {
         }
     }
 
+    // Detaches the messages that next() would return after the one it just took,
+    // for as long as they are due at the given time.
+    private void detachBatchLocked(long now) {
+        if (mBatch == null) {
+            mBatch = new AtomicReferenceArray<Message>(MAX_BATCH_SIZE);
+        }
+        int size = 0;
+        while (size < MAX_BATCH_SIZE) {
+            Message msg = peekLocked();
+            if (msg != null && msg.target == null) {
+                msg = mAsyncMessages.peek();
+            }
+            if (msg == null || now < msg.when) {
+                break;
+            }
+            removeMessageLocked(msg);
+            msg.markInUse();
+            mBatch.set(size++, msg);
+            mBatchLastWhen = msg.when;
+            mBatchLastSeq = msg.seq;
+        }
+        mBatchSize = size;
+        mBatchPos = 0;
+        mBatchInterrupted = false;
+    }
+
+    // Claims the next message of the current batch, or returns null if the batch is
+    // exhausted.  Slots emptied by the remove methods are skipped.
+    private Message takeBatchedMessage() {
+        while (mBatchPos < mBatchSize) {
+            final Message msg = mBatch.getAndSet(mBatchPos++, null);
+            if (msg != null) {
+                mPendingCountAtNext--;
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    // Returns the messages of the batch that have not been handed out to the queue,
+    // keeping their original order, and resets the batch.
+    private void restoreBatchLocked() {
+        for (int i = mBatchPos; i < mBatchSize; i++) {
+            final Message msg = mBatch.getAndSet(i, null);
+            if (msg != null) {
+                if (msg.isAsynchronous()) {
+                    mAsyncMessages.add(msg);
+                } else {
+                    mSyncMessages.add(msg);
+                }
+                indexMessageLocked(msg);
+            }
+        }
+        mBatchSize = 0;
+        mBatchPos = 0;
+        mBatchInterrupted = false;
+    }
+
+    private void interruptBatchLocked() {
+        if (mBatchSize != 0) {
+            mBatchInterrupted = true;
+        }
+    }
+
+    private boolean hasBatchedMessagesLocked() {
+        for (int i = 0; i < mBatchSize; i++) {
+            if (mBatch.get(i) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Kinds of match used by the batch helpers below.
+    private static final int MATCH_WHAT = 0;
+    private static final int MATCH_CALLBACK = 1;
+    private static final int MATCH_ANY = 2;
+
+    private static boolean matches(Message msg, Handler h, int kind, int what, Runnable r,
+            Object object) {
+        if (msg.target != h || (object != null && msg.obj != object)) {
+            return false;
+        }
+        switch (kind) {
+            case MATCH_WHAT:
+                return msg.what == what;
+            case MATCH_CALLBACK:
+                return msg.callback == r;
+            default:
+                return true;
+        }
+    }
+
+    private boolean hasBatchedMessagesLocked(Handler h, int kind, int what, Runnable r,
+            Object object) {
+        for (int i = 0; i < mBatchSize; i++) {
+            final Message msg = mBatch.get(i);
+            if (msg != null && matches(msg, h, kind, what, r, object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeBatchedMessagesLocked(Handler h, int kind, int what, Runnable r,
+            Object object) {
+        for (int i = 0; i < mBatchSize; i++) {
+            final Message msg = mBatch.get(i);
+            if (msg != null && matches(msg, h, kind, what, r, object)
+                    && mBatch.compareAndSet(i, msg, null)) {
+                msg.recycleUnchecked();
+            }
+        }
+    }
+
+    // Blocks the calling thread until wake() is called or the timeout expires.
+    // A timeout of -1 waits indefinitely and a timeout of 0 returns immediately.
+    // Unlike Object.wait(), a wake() that happens before the thread parks is not
+    // lost: LockSupport keeps the permit and the next park returns right away.
+    private void pollOnce(int timeoutMillis) {
+        if (timeoutMillis == 0) {
+            return;
+        }
+        mPolling = true;
+        try {
+            // A lock-free producer that pushed before seeing mPolling set did not wake us.
+            if (mInbox.get() != null) {
+                return;
+            }
+            if (timeoutMillis < 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, timeoutMillis * 1000000L);
+            }
+        } finally {
+            mPolling = false;
+        }
+        // An interrupt makes every subsequent park return immediately, so clear it
+        // here rather than spinning; this matches the old sleep-based behavior.
+        Thread.interrupted();
+    }
+
+    // Wakes the thread blocked in pollOnce(), or makes its next poll return immediately.
+    private void wake() {
+        final Thread thread = mPollThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
     void quit(boolean safe) {
         if (!mQuitAllowed) {
             throw new IllegalStateException("Main thread not allowed to quit.");
@@ -429,6 +700,7 @@ public final class MessageQueue {
                 return;
             }
             mQuitting = true;
+            mergeInboxLocked();
 
             if (safe) {
                 removeAllFutureMessagesLocked();
@@ -436,8 +708,7 @@ public final class MessageQueue {
                 removeAllMessagesLocked();
             }
 
-            // We can assume mPtr != 0 because mQuitting was previously false.
-            nativeWake(mPtr);
+            wake();
         }
     }
 
@@ -472,27 +743,19 @@ public final class MessageQueue {
         // Enqueue a new sync barrier token.
         // We don't need to wake the queue because the purpose of a barrier is to stall it.
         synchronized (this) {
+            if (mergeInboxLocked()) {
+                wake();
+            }
             final int token = mNextBarrierToken++;
             final Message msg = Message.obtain();
             msg.markInUse();
             msg.when = when;
+            msg.seq = when == 0 ? mNextFrontSeq-- : mNextSeq++;
             msg.arg1 = token;
 
-            Message prev = null;
-            Message p = mMessages;
-            if (when != 0) {
-                while (p != null && p.when <= when) {
-                    prev = p;
-                    p = p.next;
-                }
-            }
-            if (prev != null) { // invariant: p == prev.next
-                msg.next = p;
-                prev.next = msg;
-            } else {
-                msg.next = p;
-                mMessages = msg;
-            }
+            mSyncMessages.add(msg);
+            mBarriers.put(token, msg);
+            interruptBatchLocked();
             return token;
         }
     }
@@ -511,30 +774,24 @@ public final class MessageQueue {
         // Remove a sync barrier token from the queue.
         // If the queue is no longer stalled by a barrier then wake it.
         synchronized (this) {
-            Message prev = null;
-            Message p = mMessages;
-            while (p != null && (p.target != null || p.arg1 != token)) {
-                prev = p;
-                p = p.next;
+            if (mergeInboxLocked()) {
+                wake();
             }
+            final Message p = mBarriers.get(token);
             if (p == null) {
                 throw new IllegalStateException("The specified message queue synchronization "
                         + " barrier token has not been posted or has already been removed.");
             }
-            final boolean needWake;
-            if (prev != null) {
-                prev.next = p.next;
-                needWake = false;
-            } else {
-                mMessages = p.next;
-                needWake = mMessages == null || mMessages.target != null;
-            }
+            final boolean wasHead = peekLocked() == p;
+            removeMessageLocked(p);
+            interruptBatchLocked();
+            final Message head = peekLocked();
+            final boolean needWake = wasHead && (head == null || head.target != null);
             p.recycleUnchecked();
 
             // If the loop is quitting then it is already awake.
-            // We can assume mPtr != 0 when mQuitting is false.
             if (needWake && !mQuitting) {
-                nativeWake(mPtr);
+                wake();
             }
         }
     }
@@ -547,6 +804,10 @@ public final class MessageQueue {
             throw new IllegalStateException(msg + " This message is already in use.");
         }
 
+        if (mLockFreeEnqueue) {
+            return enqueueMessageLockFree(msg, when);
+        }
+
         synchronized (this) {
             if (mQuitting) {
                 IllegalStateException e = new IllegalStateException(
@@ -557,51 +818,214 @@ public final class MessageQueue {
             }
 
             msg.markInUse();
-            msg.when = when;
-            Message p = mMessages;
-            boolean needWake;
-            if (p == null || when == 0 || when < p.when) {
-                // New head, wake up the event queue if blocked.
-                msg.next = p;
-                mMessages = msg;
-                needWake = mBlocked;
-            } else {
-                // Inserted within the middle of the queue.  Usually we don't have to wake
-                // up the event queue unless there is a barrier at the head of the queue
-                // and the message is the earliest asynchronous message in the queue.
-                needWake = mBlocked && p.target == null && msg.isAsynchronous();
-                Message prev;
-                for (;;) {
-                    prev = p;
-                    p = p.next;
-                    if (p == null || when < p.when) {
-                        break;
-                    }
-                    if (needWake && p.isAsynchronous()) {
-                        needWake = false;
-                    }
-                }
-                msg.next = p; // invariant: p == prev.next
-                prev.next = msg;
+            if (insertMessageLocked(msg, when)) {
+                wake();
             }
+        }
+        return true;
+    }
+
+    private boolean enqueueMessageLockFree(Message msg, long when) {
+        if (mQuitting) {
+            IllegalStateException e = new IllegalStateException(
+                    msg.target + " sending message to a Handler on a dead thread");
+            Log.w(TAG, e.getMessage(), e);
+            msg.recycle();
+            return false;
+        }
 
-            // We can assume mPtr != 0 because mQuitting is false.
-            if (needWake) {
-                nativeWake(mPtr);
+        msg.markInUse();
+        msg.when = when;
+        Message head;
+        do {
+            head = mInbox.get();
+            msg.next = head;
+        } while (!mInbox.compareAndSet(head, msg));
+
+        // quit() sets mQuitting before it merges the inbox for the last time, so a
+        // message pushed after that merge is seen here and taken back.  A message
+        // that was merged is handled like any message queued before the quit.
+        if (mQuitting) {
+            synchronized (this) {
+                if (removeFromInboxLocked(msg)) {
+                    IllegalStateException e = new IllegalStateException(
+                            msg.target + " sending message to a Handler on a dead thread");
+                    Log.w(TAG, e.getMessage(), e);
+                    msg.recycleUnchecked();
+                    return false;
+                }
             }
         }
+
+        // Pairs with the inbox check in pollOnce(): either we see the poll thread
+        // parked and wake it, or it sees our message before parking.
+        if (mPolling) {
+            wake();
+        }
         return true;
     }
 
+    // Takes a message back out of the lock-free inbox.  Returns false if it has
+    // already been merged.  Producers only ever replace the head, so the rest of
+    // the inbox can be relinked while holding the lock.
+    private boolean removeFromInboxLocked(Message msg) {
+        for (;;) {
+            final Message head = mInbox.get();
+            if (head == msg) {
+                if (mInbox.compareAndSet(head, msg.next)) {
+                    msg.next = null;
+                    return true;
+                }
+                continue; // another message was pushed on top
+            }
+            Message p = head;
+            while (p != null && p.next != msg) {
+                p = p.next;
+            }
+            if (p == null) {
+                return false;
+            }
+            p.next = msg.next;
+            msg.next = null;
+            return true;
+        }
+    }
+
+    // Moves all messages from the lock-free inbox into the queue in the order they
+    // were pushed.  Returns true if the poll thread needs to be woken.
+    private boolean mergeInboxLocked() {
+        Message p = mInbox.getAndSet(null);
+        if (p == null) {
+            return false;
+        }
+
+        // The inbox is a stack, so reverse it to restore posting order.
+        Message reversed = null;
+        while (p != null) {
+            Message n = p.next;
+            p.next = reversed;
+            reversed = p;
+            p = n;
+        }
+
+        boolean needWake = false;
+        while (reversed != null) {
+            Message n = reversed.next;
+            needWake |= insertMessageLocked(reversed, reversed.when);
+            reversed = n;
+        }
+        return needWake;
+    }
+
+    // Inserts a message into the queue, ordered by when.  Returns true if the poll
+    // thread needs to be woken.
+    private boolean insertMessageLocked(Message msg, long when) {
+        msg.when = when;
+        msg.seq = when == 0 ? mNextFrontSeq-- : mNextSeq++;
+        final Message p = peekLocked();
+        if (msg.isAsynchronous()) {
+            mAsyncMessages.add(msg);
+        } else {
+            mSyncMessages.add(msg);
+        }
+        indexMessageLocked(msg);
+
+        if (mBatchSize != 0 && (when < mBatchLastWhen
+                || (when == mBatchLastWhen && msg.seq < mBatchLastSeq))) {
+            interruptBatchLocked();
+        }
+
+        if (p == null || MessageHeap.before(msg, p)) {
+            // New head, wake up the event queue if blocked.
+            return mBlocked;
+        }
+        // Inserted within the middle of the queue.  Usually we don't have to wake
+        // up the event queue unless there is a barrier at the head of the queue
+        // and the message is the earliest asynchronous message in the queue.
+        return mBlocked && p.target == null && mAsyncMessages.peek() == msg;
+    }
+
+    // Returns the first message in the queue, which may be a barrier, or null.
+    private Message peekLocked() {
+        final Message sync = mSyncMessages.peek();
+        final Message async = mAsyncMessages.peek();
+        if (sync == null) {
+            return async;
+        }
+        if (async == null) {
+            return sync;
+        }
+        return MessageHeap.before(async, sync) ? async : sync;
+    }
+
+    // Removes a message or barrier from the queue without recycling it.
+    private void removeMessageLocked(Message msg) {
+        if (!mAsyncMessages.remove(msg)) {
+            mSyncMessages.remove(msg);
+        }
+        if (msg.target != null) {
+            unindexMessageLocked(msg);
+        } else {
+            mBarriers.remove(msg.arg1);
+        }
+        msg.next = null;
+    }
+
+    private void removeAndRecycleMessageLocked(Message msg) {
+        removeMessageLocked(msg);
+        msg.recycleUnchecked();
+    }
+
+    // Adds a message to its target's index of pending messages.  Each handler keeps
+    // one doubly linked list per what, chained through Message.next and Message.prev.
+    private void indexMessageLocked(Message msg) {
+        final Handler h = msg.target;
+        if (h.mQueuedMessages == null) {
+            h.mQueuedMessages = new SparseArray<Message>();
+        }
+        final Message head = h.mQueuedMessages.get(msg.what);
+        msg.prev = null;
+        msg.next = head;
+        if (head != null) {
+            head.prev = msg;
+        }
+        h.mQueuedMessages.put(msg.what, msg);
+    }
+
+    private void unindexMessageLocked(Message msg) {
+        if (msg.prev != null) {
+            msg.prev.next = msg.next;
+        } else if (msg.next != null) {
+            msg.target.mQueuedMessages.put(msg.what, msg.next);
+        } else {
+            msg.target.mQueuedMessages.delete(msg.what);
+        }
+        if (msg.next != null) {
+            msg.next.prev = msg.prev;
+        }
+        msg.prev = null;
+        msg.next = null;
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            if (mergeInboxLocked()) {
+                wake();
+            }
+            if (mBatchSize != 0
+                    && hasBatchedMessagesLocked(h, MATCH_WHAT, what, null, object)) {
+                return true;
+            }
+            if (h.mQueuedMessages == null) {
+                return false;
+            }
+            Message p = h.mQueuedMessages.get(what);
             while (p != null) {
-                if (p.target == h && p.what == what && (object == null || p.obj == object)) {
+                if (object == null || p.obj == object) {
                     return true;
                 }
                 p = p.next;
@@ -616,12 +1040,25 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-            while (p != null) {
-                if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
-                    return true;
+            if (mergeInboxLocked()) {
+                wake();
+            }
+            if (mBatchSize != 0
+                    && hasBatchedMessagesLocked(h, MATCH_CALLBACK, 0, r, object)) {
+                return true;
+            }
+            final SparseArray<Message> queued = h.mQueuedMessages;
+            if (queued == null) {
+                return false;
+            }
+            for (int i = queued.size() - 1; i >= 0; i--) {
+                Message p = queued.valueAt(i);
+                while (p != null) {
+                    if (p.callback == r && (object == null || p.obj == object)) {
+                        return true;
+                    }
+                    p = p.next;
                 }
-                p = p.next;
             }
             return false;
         }
@@ -633,28 +1070,20 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h && p.what == what
-                   && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
+            if (mergeInboxLocked()) {
+                wake();
             }
-
-            // Remove all messages after front.
+            if (mBatchSize != 0) {
+                removeBatchedMessagesLocked(h, MATCH_WHAT, what, null, object);
+            }
+            if (h.mQueuedMessages == null) {
+                return;
+            }
+            Message p = h.mQueuedMessages.get(what);
             while (p != null) {
                 Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.what == what
-                        && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+                if (object == null || p.obj == object) {
+                    removeAndRecycleMessageLocked(p);
                 }
                 p = n;
             }
@@ -667,30 +1096,27 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h && p.callback == r
-                   && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
+            if (mergeInboxLocked()) {
+                wake();
             }
-
-            // Remove all messages after front.
-            while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.callback == r
-                        && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
+            if (mBatchSize != 0) {
+                removeBatchedMessagesLocked(h, MATCH_CALLBACK, 0, r, object);
+            }
+            final SparseArray<Message> queued = h.mQueuedMessages;
+            if (queued == null) {
+                return;
+            }
+            // Walk backwards so that deleting an emptied bucket does not shift
+            // the buckets that have yet to be visited.
+            for (int i = queued.size() - 1; i >= 0; i--) {
+                Message p = queued.valueAt(i);
+                while (p != null) {
+                    Message n = p.next;
+                    if (p.callback == r && (object == null || p.obj == object)) {
+                        removeAndRecycleMessageLocked(p);
                     }
+                    p = n;
                 }
-                p = n;
             }
         }
     }
@@ -701,76 +1127,74 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h
-                    && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
+            if (mergeInboxLocked()) {
+                wake();
             }
-
-            // Remove all messages after front.
-            while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
+            if (mBatchSize != 0) {
+                removeBatchedMessagesLocked(h, MATCH_ANY, 0, null, object);
+            }
+            final SparseArray<Message> queued = h.mQueuedMessages;
+            if (queued == null) {
+                return;
+            }
+            // Walk backwards so that deleting an emptied bucket does not shift
+            // the buckets that have yet to be visited.
+            for (int i = queued.size() - 1; i >= 0; i--) {
+                Message p = queued.valueAt(i);
+                while (p != null) {
+                    Message n = p.next;
+                    if (object == null || p.obj == object) {
+                        removeAndRecycleMessageLocked(p);
                     }
+                    p = n;
                 }
-                p = n;
             }
         }
     }
 
     private void removeAllMessagesLocked() {
-        Message p = mMessages;
-        while (p != null) {
-            Message n = p.next;
-            p.recycleUnchecked();
-            p = n;
+        Message p;
+        while ((p = peekLocked()) != null) {
+            removeAndRecycleMessageLocked(p);
+        }
+        for (int i = 0; i < mBatchSize; i++) {
+            p = mBatch.getAndSet(i, null);
+            if (p != null) {
+                p.recycleUnchecked();
+            }
         }
-        mMessages = null;
     }
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
-        Message p = mMessages;
-        if (p != null) {
-            if (p.when > now) {
-                removeAllMessagesLocked();
-            } else {
-                Message n;
-                for (;;) {
-                    n = p.next;
-                    if (n == null) {
-                        return;
-                    }
-                    if (n.when > now) {
-                        break;
-                    }
-                    p = n;
-                }
-                p.next = null;
-                do {
-                    p = n;
-                    n = p.next;
-                    p.recycleUnchecked();
-                } while (n != null);
-            }
+        final ArrayList<Message> future = new ArrayList<Message>();
+        mSyncMessages.collectAfter(now, future);
+        mAsyncMessages.collectAfter(now, future);
+        for (int i = 0; i < future.size(); i++) {
+            removeAndRecycleMessageLocked(future.get(i));
         }
     }
 
     void dump(Printer pw, String prefix) {
         synchronized (this) {
+            if (mergeInboxLocked()) {
+                wake();
+            }
             long now = SystemClock.uptimeMillis();
             int n = 0;
-            for (Message msg = mMessages; msg != null; msg = msg.next) {
+            // Detached batch messages are delivered before anything left in the heaps.
+            for (int i = 0; i < mBatchSize; i++) {
+                final Message msg = mBatch.get(i);
+                if (msg != null) {
+                    pw.println(prefix + "Message " + n + ": " + msg.toString(now));
+                    n++;
+                }
+            }
+            final Message[] messages = new Message[mSyncMessages.size() + mAsyncMessages.size()];
+            mSyncMessages.copyTo(messages, 0);
+            mAsyncMessages.copyTo(messages, mSyncMessages.size());
+            Arrays.sort(messages, MessageHeap.ORDER);
+            for (Message msg : messages) {
                 pw.println(prefix + "Message " + n + ": " + msg.toString(now));
                 n++;
             }
@@ -865,6 +1289,105 @@ public final class MessageQueue {
         @Events int onFileDescriptorEvents(@NonNull FileDescriptor fd, @Events int events);
     }
 
+    // A binary min-heap of messages ordered by when and then by sequence number.
+    // Each message records its slot in Message.heapIndex so that it can be removed
+    // from the middle of the heap in logarithmic time.
+    private static final class MessageHeap {
+        static final Comparator<Message> ORDER = new Comparator<Message>() {
+            @Override
+            public int compare(Message a, Message b) {
+                return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+            }
+        };
+
+        private Message[] mHeap = new Message[16];
+        private int mSize;
+
+        static boolean before(Message a, Message b) {
+            return a.when < b.when || (a.when == b.when && a.seq < b.seq);
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        Message peek() {
+            return mSize != 0 ? mHeap[0] : null;
+        }
+
+        void add(Message msg) {
+            if (mSize == mHeap.length) {
+                mHeap = Arrays.copyOf(mHeap, mSize * 2);
+            }
+            siftUp(mSize++, msg);
+        }
+
+        boolean remove(Message msg) {
+            final int index = msg.heapIndex;
+            if (index < 0 || index >= mSize || mHeap[index] != msg) {
+                return false;
+            }
+            final Message last = mHeap[--mSize];
+            mHeap[mSize] = null;
+            msg.heapIndex = -1;
+            if (last != msg) {
+                siftDown(index, last);
+                if (mHeap[index] == last) {
+                    siftUp(index, last);
+                }
+            }
+            return true;
+        }
+
+        void collectAfter(long when, ArrayList<Message> out) {
+            for (int i = 0; i < mSize; i++) {
+                if (mHeap[i].when > when) {
+                    out.add(mHeap[i]);
+                }
+            }
+        }
+
+        void copyTo(Message[] out, int offset) {
+            System.arraycopy(mHeap, 0, out, offset, mSize);
+        }
+
+        private void siftUp(int index, Message msg) {
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+                final Message p = mHeap[parent];
+                if (!before(msg, p)) {
+                    break;
+                }
+                mHeap[index] = p;
+                p.heapIndex = index;
+                index = parent;
+            }
+            mHeap[index] = msg;
+            msg.heapIndex = index;
+        }
+
+        private void siftDown(int index, Message msg) {
+            final int half = mSize >>> 1;
+            while (index < half) {
+                int child = (index << 1) + 1;
+                Message c = mHeap[child];
+                final int right = child + 1;
+                if (right < mSize && before(mHeap[right], c)) {
+                    child = right;
+                    c = mHeap[child];
+                }
+                if (!before(c, msg)) {
+                    break;
+                }
+                mHeap[index] = c;
+                c.heapIndex = index;
+                index = child;
+            }
+            mHeap[index] = msg;
+            msg.heapIndex = index;
+        }
+    }
+
     private static final class FileDescriptorRecord {
         public final FileDescriptor mDescriptor;
         public int mEvents;
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A variant of {@link LruCache} for caches that are read from many threads at
+ * once.  It has the same contract: override {@link #create}, {@link #entryRemoved}
+ * and {@link #sizeOf} exactly as for {@link LruCache}.
+ *
+ * <p>Lookups go to a {@link ConcurrentHashMap} and never take a lock.  Instead of
+ * moving the entry to the head of the recency queue right away, a lookup records
+ * the access in a small per-thread-stripe buffer.  The buffers are replayed into
+ * the queue by whichever thread next holds the eviction lock.  Writes, removals
+ * and evictions take that lock, so the size of the cache is always exact.
+ * Eviction order is approximate: an access that has not been replayed yet, or
+ * that was dropped because its buffer was full, is not taken into account.
+ *
+ * <p>Unlike {@link LruCache}, operations cannot be made atomic by synchronizing
+ * on the cache.
+ *
+ * <p>This class does not allow null to be used as a key or value. A return
+ * value of null from {@link #get}, {@link #put} or {@link #remove} is
+ * unambiguous: the key was not in the cache.
+ *
+ * @hide
+ */
+public class ConcurrentLruCache<K, V> {
+    // Number of accesses each read buffer stripe holds before it is drained.
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private static final int STRIPES = stripeCount();
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+
+    // Guards the recency queue, size, maxSize and the put, create and eviction counts.
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // Sentinel of the recency queue: head.next is the least recently used entry.
+    private final Node<K, V> head = new Node<K, V>(null, null, 0);
+
+    private final ReadStripe<K, V>[] stripes;
+
+    /** Size of this cache in units. Not necessarily the number of elements. */
+    private volatile int size;
+    private volatile int maxSize;
+
+    private int putCount;
+    private int createCount;
+    private int evictionCount;
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, STRIPES);
+        head.prev = head;
+        head.next = head;
+        stripes = new ReadStripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReadStripe<K, V>();
+        }
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is moved to the
+     * head of the queue. This returns null if a value is not cached and cannot
+     * be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final ReadStripe<K, V> stripe = stripes[stripeIndex()];
+        final Node<K, V> node = map.get(key);
+        if (node != null) {
+            stripe.hitCount.incrementAndGet();
+            recordAccess(stripe, node);
+            return node.value;
+        }
+        stripe.missCount.incrementAndGet();
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        final Node<K, V> created = new Node<K, V>(key, createdValue,
+                safeSizeOf(key, createdValue));
+        Node<K, V> existing;
+        evictionLock.lock();
+        try {
+            createCount++;
+            existing = map.putIfAbsent(key, created);
+            if (existing == null) {
+                linkLocked(created);
+                size += created.size;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (existing != null) {
+            entryRemoved(false, key, createdValue, existing.value);
+            return existing.value;
+        } else {
+            trimToSize(maxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * the queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        Node<K, V> previous;
+        evictionLock.lock();
+        try {
+            putCount++;
+            size += node.size;
+            previous = map.put(key, node);
+            if (previous != null) {
+                unlinkLocked(previous);
+                size -= previous.size;
+            }
+            linkLocked(node);
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Remove the eldest entries until the total of remaining entries is at or
+     * below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        while (true) {
+            Node<K, V> toEvict;
+            evictionLock.lock();
+            try {
+                if (size < 0 || (map.isEmpty() && size != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+
+                if (size <= maxSize) {
+                    break;
+                }
+
+                // Apply pending accesses so that recently read entries are not evicted.
+                drainReadBuffersLocked();
+
+                toEvict = head.next;
+                if (toEvict == head) {
+                    break;
+                }
+
+                unlinkLocked(toEvict);
+                map.remove(toEvict.key, toEvict);
+                size -= toEvict.size;
+                evictionCount++;
+            } finally {
+                evictionLock.unlock();
+            }
+
+            entryRemoved(true, toEvict.key, toEvict.value, null);
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> previous;
+        evictionLock.lock();
+        try {
+            previous = map.remove(key);
+            if (previous != null) {
+                unlinkLocked(previous);
+                size -= previous.size;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        int hits = 0;
+        for (ReadStripe<K, V> stripe : stripes) {
+            hits += stripe.hitCount.get();
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        int misses = 0;
+        for (ReadStripe<K, V> stripe : stripes) {
+            misses += stripe.missCount.get();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        evictionLock.lock();
+        try {
+            return createCount;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        evictionLock.lock();
+        try {
+            return putCount;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        evictionLock.lock();
+        try {
+            return evictionCount;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    public final Map<K, V> snapshot() {
+        evictionLock.lock();
+        try {
+            drainReadBuffersLocked();
+            final LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>();
+            for (Node<K, V> node = head.next; node != head; node = node.next) {
+                snapshot.put(node.key, node.value);
+            }
+            return snapshot;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override public final String toString() {
+        int hits = hitCount();
+        int accesses = hits + missCount();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    // Buffers an access to a node.  When the stripe's buffer wraps around, the
+    // reader replays all buffers if no other thread holds the eviction lock.
+    // Accesses that are overwritten before being replayed are lost, which only
+    // makes the eviction order less precise.
+    private void recordAccess(ReadStripe<K, V> stripe, Node<K, V> node) {
+        final int index = stripe.writeIndex.getAndIncrement() & READ_BUFFER_MASK;
+        stripe.buffer.lazySet(index, node);
+        if (index == READ_BUFFER_MASK && evictionLock.tryLock()) {
+            try {
+                drainReadBuffersLocked();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffersLocked() {
+        for (ReadStripe<K, V> stripe : stripes) {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                final Node<K, V> node = stripe.buffer.getAndSet(i, null);
+                if (node != null && node.prev != null) {
+                    // Still in the cache: move it to the most recently used end.
+                    unlinkLocked(node);
+                    linkLocked(node);
+                }
+            }
+        }
+    }
+
+    // Adds a node at the most recently used end of the queue.
+    private void linkLocked(Node<K, V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void unlinkLocked(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static int stripeCount() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.min(Integer.highestOneBit(Math.max(cpus, 1) * 2 - 1), 16);
+    }
+
+    private static int stripeIndex() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+
+        // Links in the recency queue, guarded by the eviction lock.  Null once the
+        // node has been removed from the cache.
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static final class ReadStripe<K, V> {
+        final AtomicReferenceArray<Node<K, V>> buffer =
+                new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        final AtomicInteger writeIndex = new AtomicInteger();
+        final AtomicInteger hitCount = new AtomicInteger();
+        final AtomicInteger missCount = new AtomicInteger();
+    }
+}
@@ -60,11 +60,36 @@ import java.util.Map;
  * Support Package</a> for earlier releases.
  */
 public class LruCache<K, V> {
+    /**
+     * Evict the least recently used entry.  This is the default.
+     * @hide
+     */
+    public static final int POLICY_LRU = 0;
+
+    /**
+     * New entries go into a small LRU window.  An entry leaving the window is only
+     * admitted into the main cache if it has been requested more often than the
+     * main cache's least recently used entry, which it then displaces.  Request
+     * frequencies are estimated with a compact, periodically aged sketch, so one-off
+     * scans do not flush a frequently used working set.
+     * @hide
+     */
+    public static final int POLICY_TINY_LFU = 1;
+
+    // Share of maxSize given to the window, in percent.
+    private static final int WINDOW_PERCENT = 1;
+
     private final LinkedHashMap<K, V> map;
 
+    // Window region and frequency sketch for POLICY_TINY_LFU, null for POLICY_LRU.
+    // With POLICY_TINY_LFU, map holds the main region.
+    private final LinkedHashMap<K, V> window;
+    private final FrequencySketch sketch;
+
     /** Size of this cache in units. Not necessarily the number of elements. */
     private int size;
     private int maxSize;
+    private int windowSize;
 
     private int putCount;
     private int createCount;
@@ -78,11 +103,32 @@ public class LruCache<K, V> {
      *     this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruCache(int maxSize) {
+        this(maxSize, POLICY_LRU);
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param policy {@link #POLICY_LRU} or {@link #POLICY_TINY_LFU}.
+     * @hide
+     */
+    public LruCache(int maxSize, int policy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
+        if (policy != POLICY_LRU && policy != POLICY_TINY_LFU) {
+            throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
         this.maxSize = maxSize;
         this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        if (policy == POLICY_TINY_LFU) {
+            this.window = new LinkedHashMap<K, V>(0, 0.75f, true);
+            this.sketch = new FrequencySketch(maxSize);
+        } else {
+            this.window = null;
+            this.sketch = null;
+        }
     }
 
     /**
@@ -114,7 +160,10 @@ public class LruCache<K, V> {
 
         V mapValue;
         synchronized (this) {
-            mapValue = map.get(key);
+            if (sketch != null) {
+                sketch.increment(key);
+            }
+            mapValue = getLocked(key);
             if (mapValue != null) {
                 hitCount++;
                 return mapValue;
@@ -136,11 +185,11 @@ public class LruCache<K, V> {
 
         synchronized (this) {
             createCount++;
-            mapValue = map.put(key, createdValue);
+            mapValue = putLocked(key, createdValue);
 
             if (mapValue != null) {
                 // There was a conflict so undo that last put
-                map.put(key, mapValue);
+                putLocked(key, mapValue);
             } else {
                 size += safeSizeOf(key, createdValue);
             }
@@ -169,8 +218,11 @@ public class LruCache<K, V> {
         V previous;
         synchronized (this) {
             putCount++;
+            if (sketch != null) {
+                sketch.increment(key);
+            }
             size += safeSizeOf(key, value);
-            previous = map.put(key, value);
+            previous = putLocked(key, value);
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
             }
@@ -196,7 +248,8 @@ public class LruCache<K, V> {
             K key;
             V value;
             synchronized (this) {
-                if (size < 0 || (map.isEmpty() && size != 0)) {
+                if (size < 0 || (map.isEmpty() && (window == null || window.isEmpty())
+                        && size != 0)) {
                     throw new IllegalStateException(getClass().getName()
                             + ".sizeOf() is reporting inconsistent results!");
                 }
@@ -205,14 +258,14 @@ public class LruCache<K, V> {
                     break;
                 }
 
-                Map.Entry<K, V> toEvict = map.eldest();
+                Map.Entry<K, V> toEvict = window != null ? selectVictimLocked() : map.eldest();
                 if (toEvict == null) {
                     break;
                 }
 
                 key = toEvict.getKey();
                 value = toEvict.getValue();
-                map.remove(key);
+                removeLocked(key);
                 size -= safeSizeOf(key, value);
                 evictionCount++;
             }
@@ -233,7 +286,7 @@ public class LruCache<K, V> {
 
         V previous;
         synchronized (this) {
-            previous = map.remove(key);
+            previous = removeLocked(key);
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
             }
@@ -246,6 +299,75 @@ public class LruCache<K, V> {
         return previous;
     }
 
+    private V getLocked(K key) {
+        V value = map.get(key);
+        if (value == null && window != null) {
+            value = window.get(key);
+        }
+        return value;
+    }
+
+    // New keys go into the window.  A key that is already cached stays in its region.
+    private V putLocked(K key, V value) {
+        if (window == null || map.containsKey(key)) {
+            return map.put(key, value);
+        }
+        V previous = window.put(key, value);
+        windowSize += safeSizeOf(key, value);
+        if (previous != null) {
+            windowSize -= safeSizeOf(key, previous);
+        }
+        return previous;
+    }
+
+    private V removeLocked(K key) {
+        V previous = map.remove(key);
+        if (previous == null && window != null) {
+            previous = window.remove(key);
+            if (previous != null) {
+                windowSize -= safeSizeOf(key, previous);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Picks the entry to evict under POLICY_TINY_LFU.  Entries beyond the window's
+     * share move into the main region while it has room.  Once it is full, the
+     * window's eldest entry competes with the eldest entry of the main region: the
+     * more frequently requested of the two moves to (or stays in) the main region
+     * and the other is returned.  The most recently added entry always stays in
+     * the window, so a put never evicts its own entry unless that entry alone
+     * exceeds maxSize.
+     */
+    private Map.Entry<K, V> selectVictimLocked() {
+        final int windowMaxSize = Math.max(maxSize * WINDOW_PERCENT / 100, 1);
+        while (true) {
+            final Map.Entry<K, V> candidate = window.eldest();
+            final Map.Entry<K, V> victim = map.eldest();
+            if (candidate == null || windowSize <= windowMaxSize || window.size() == 1) {
+                return victim != null ? victim : candidate;
+            }
+
+            final K key = candidate.getKey();
+            final V value = candidate.getValue();
+            final int candidateSize = safeSizeOf(key, value);
+            final boolean mainFull = size - windowSize + candidateSize > maxSize - windowMaxSize;
+            if (victim != null && mainFull
+                    && sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+                return candidate;
+            }
+
+            // Move the candidate into the main region, displacing the victim if it is full.
+            window.remove(key);
+            windowSize -= candidateSize;
+            map.put(key, value);
+            if (victim != null && mainFull) {
+                return victim;
+            }
+        }
+    }
+
     /**
      * Called for entries that have been evicted or removed. This method is
      * invoked when a value is evicted to make space, removed by a call to
@@ -368,7 +490,12 @@ public class LruCache<K, V> {
      * recently accessed to most recently accessed.
      */
     public synchronized final Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>(map);
+        LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>(map);
+        if (window != null) {
+            // Window entries are newer than the main region's in most cases.
+            snapshot.putAll(window);
+        }
+        return snapshot;
     }
 
     @Override public synchronized final String toString() {
@@ -377,4 +504,76 @@ public class LruCache<K, V> {
         return String.format("LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
                 maxSize, hitCount, missCount, hitPercent);
     }
+
+    /**
+     * A count-min sketch of 4-bit counters estimating how often each key has been
+     * requested.  All counters are halved once enough increments have been
+     * recorded, so that keys which were popular long ago fade out.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        // Each long holds sixteen counters.
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxSize) {
+            final int length = Integer.highestOneBit(Math.min(Math.max(maxSize, 8), 4096) * 2 - 1);
+            table = new long[length];
+            sampleSize = length * 10;
+        }
+
+        int frequency(Object key) {
+            final int hash = spread(key.hashCode());
+            final int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                final int offset = (start + i) << 2;
+                final int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            final int hash = spread(key.hashCode());
+            final int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int offset = (start + i) << 2;
+                final long mask = 0xfL << offset;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & (table.length - 1);
+        }
+
+        private static int spread(int h) {
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            return (h >>> 16) ^ h;
+        }
+    }
 }
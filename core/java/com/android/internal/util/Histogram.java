@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+/**
+ * A histogram of non-negative values in power-of-two buckets.
+ * <p>
+ * Recording a value neither allocates nor formats strings.  This class is not
+ * thread-safe.
+ * </p>
+ *
+ * @hide
+ */
+public final class Histogram {
+    /**
+     * Number of buckets.  Bucket 0 counts zero values and bucket <var>i</var>
+     * counts values in [2<sup>i-1</sup>, 2<sup>i</sup>).  The last bucket also
+     * counts every larger value.
+     */
+    public static final int BUCKET_COUNT = 28;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotal;
+    private long mMax;
+
+    /**
+     * Records one value.  Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKET_COUNT - 1);
+        mBuckets[bucket]++;
+        mCount++;
+        mTotal += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotal = 0;
+        mMax = 0;
+    }
+
+    /**
+     * Returns a copy of this histogram.
+     */
+    public Histogram copy() {
+        final Histogram h = new Histogram();
+        System.arraycopy(mBuckets, 0, h.mBuckets, 0, BUCKET_COUNT);
+        h.mCount = mCount;
+        h.mTotal = mTotal;
+        h.mMax = mMax;
+        return h;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the sum of the recorded values.
+     */
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the number of values recorded in the given bucket.
+     */
+    public long getBucket(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * Returns the smallest value that is counted by the given bucket.
+     */
+    public static long getBucketLowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, from 0 to 100, taken
+     * from the bucket boundaries.
+     */
+    public long getPercentile(int percentile) {
+        final long target = (mCount * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= target && seen != 0) {
+                return i == BUCKET_COUNT - 1 ? mMax : Math.min((1L << i) - 1, mMax);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + mCount
+                + " avg=" + (mCount != 0 ? mTotal / mCount : 0)
+                + " p50<=" + getPercentile(50)
+                + " p99<=" + getPercentile(99)
+                + " max=" + mMax;
+    }
+}
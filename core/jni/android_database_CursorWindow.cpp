@@ -134,6 +134,11 @@ static jint nativeGetNumRows(JNIEnv* env, jclass clazz, jlong windowPtr) {
     return window->getNumRows();
 }
 
+static jint nativeGetFreeSpace(JNIEnv* env, jclass clazz, jlong windowPtr) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    return window->freeSpace();
+}
+
 static jboolean nativeSetNumColumns(JNIEnv* env, jclass clazz, jlong windowPtr,
         jint columnNum) {
     CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
@@ -333,6 +338,133 @@ static void nativeCopyStringToBuffer(JNIEnv* env, jclass clazz, jlong windowPtr,
     }
 }
 
+// Gets the UTF-8 text of a field, formatting numbers into numberBuf the same way
+// as nativeCopyStringToBuffer.  The text of a null field is NULL.  Returns false
+// after throwing an exception if the field cannot be converted to text.
+static bool getFieldUtf8(JNIEnv* env, CursorWindow* window, jint row, jint column,
+        char* numberBuf, size_t numberBufSize, const char** outText, size_t* outLength) {
+    CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row, column);
+    if (!fieldSlot) {
+        throwExceptionWithRowCol(env, row, column);
+        return false;
+    }
+
+    int32_t type = window->getFieldSlotType(fieldSlot);
+    if (type == CursorWindow::FIELD_TYPE_STRING) {
+        size_t sizeIncludingNull;
+        *outText = window->getFieldSlotValueString(fieldSlot, &sizeIncludingNull);
+        *outLength = sizeIncludingNull > 1 ? sizeIncludingNull - 1 : 0;
+    } else if (type == CursorWindow::FIELD_TYPE_INTEGER) {
+        int64_t value = window->getFieldSlotValueLong(fieldSlot);
+        snprintf(numberBuf, numberBufSize, "%" PRId64, value);
+        *outText = numberBuf;
+        *outLength = strlen(numberBuf);
+    } else if (type == CursorWindow::FIELD_TYPE_FLOAT) {
+        double value = window->getFieldSlotValueDouble(fieldSlot);
+        snprintf(numberBuf, numberBufSize, "%g", value);
+        *outText = numberBuf;
+        *outLength = strlen(numberBuf);
+    } else if (type == CursorWindow::FIELD_TYPE_NULL) {
+        *outText = NULL;
+        *outLength = 0;
+    } else if (type == CursorWindow::FIELD_TYPE_BLOB) {
+        throw_sqlite3_exception(env, "Unable to convert BLOB to string");
+        return false;
+    } else {
+        throwUnknownTypeException(env, type);
+        return false;
+    }
+    return true;
+}
+
+// Copies the UTF-8 text of a field into the array at the given offset if it fits
+// in capacity bytes.  Returns the length of the text in bytes, or -1 if the field
+// is null.
+static jint nativeCopyStringUtf8(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column, jbyteArray bufferObj, jint offset, jint capacity) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Copying UTF-8 string for %d,%d from %p", row, column, window);
+
+    char numberBuf[32];
+    const char* text;
+    size_t length;
+    if (!getFieldUtf8(env, window, row, column, numberBuf, sizeof(numberBuf),
+            &text, &length)) {
+        return -1;
+    }
+    if (!text) {
+        return -1;
+    }
+    if (length && length <= size_t(capacity)) {
+        env->SetByteArrayRegion(bufferObj, offset, length,
+                reinterpret_cast<const jbyte*>(text));
+    }
+    return length;
+}
+
+// Copies the UTF-8 text of a field to the address of a direct buffer if it fits.
+static jint nativeCopyStringUtf8Direct(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column, jobject bufferObj, jint offset, jint capacity) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Copying UTF-8 string for %d,%d from %p", row, column, window);
+
+    char numberBuf[32];
+    const char* text;
+    size_t length;
+    if (!getFieldUtf8(env, window, row, column, numberBuf, sizeof(numberBuf),
+            &text, &length)) {
+        return -1;
+    }
+    if (!text) {
+        return -1;
+    }
+    if (length && length <= size_t(capacity)) {
+        uint8_t* address = static_cast<uint8_t*>(env->GetDirectBufferAddress(bufferObj));
+        if (!address) {
+            jniThrowException(env, "java/lang/IllegalArgumentException",
+                    "The buffer is not a direct buffer.");
+            return -1;
+        }
+        memcpy(address + offset, text, length);
+    }
+    return length;
+}
+
+// Decodes the text of a field into the array if it fits.  Returns the length of
+// the text in chars, or -1 if the field is null.
+static jint nativeCopyStringChars(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column, jcharArray bufferObj, jint offset) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Copying chars for %d,%d from %p", row, column, window);
+
+    char numberBuf[32];
+    const char* text;
+    size_t length;
+    if (!getFieldUtf8(env, window, row, column, numberBuf, sizeof(numberBuf),
+            &text, &length)) {
+        return -1;
+    }
+    if (!text) {
+        return -1;
+    }
+    if (!length) {
+        return 0;
+    }
+    ssize_t size = utf8_to_utf16_length(reinterpret_cast<const uint8_t*>(text), length);
+    if (size < 0) {
+        return 0; // invalid UTF8 string
+    }
+    if (size <= env->GetArrayLength(bufferObj) - offset) {
+        jchar* data = static_cast<jchar*>(env->GetPrimitiveArrayCritical(bufferObj, NULL));
+        if (data) {
+            utf8_to_utf16_no_null_terminator(reinterpret_cast<const uint8_t*>(text), length,
+                    reinterpret_cast<char16_t*>(data + offset));
+            env->ReleasePrimitiveArrayCritical(bufferObj, data, 0);
+        }
+    }
+    return size;
+}
+
 static jlong nativeGetLong(JNIEnv* env, jclass clazz, jlong windowPtr,
         jint row, jint column) {
     CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
@@ -395,6 +527,124 @@ static jdouble nativeGetDouble(JNIEnv* env, jclass clazz, jlong windowPtr,
     }
 }
 
+// Converts a field to a long or a double the same way as nativeGetLong and
+// nativeGetDouble.  Returns false if the field cannot be converted.
+template <typename T, bool kFloat>
+static inline bool convertFieldSlot(CursorWindow* window, CursorWindow::FieldSlot* fieldSlot,
+        int32_t type, T* outValue) {
+    if (type == CursorWindow::FIELD_TYPE_INTEGER) {
+        *outValue = kFloat ? T(jdouble(window->getFieldSlotValueLong(fieldSlot)))
+                : T(window->getFieldSlotValueLong(fieldSlot));
+    } else if (type == CursorWindow::FIELD_TYPE_FLOAT) {
+        *outValue = kFloat ? T(window->getFieldSlotValueDouble(fieldSlot))
+                : T(jlong(window->getFieldSlotValueDouble(fieldSlot)));
+    } else if (type == CursorWindow::FIELD_TYPE_STRING) {
+        size_t sizeIncludingNull;
+        const char* value = window->getFieldSlotValueString(fieldSlot, &sizeIncludingNull);
+        if (sizeIncludingNull <= 1) {
+            *outValue = 0;
+        } else {
+            *outValue = kFloat ? T(strtod(value, NULL)) : T(strtoll(value, NULL, 0));
+        }
+    } else if (type == CursorWindow::FIELD_TYPE_NULL) {
+        *outValue = 0;
+    } else {
+        return false;
+    }
+    return true;
+}
+
+// Copies up to count values of a column, starting at the given row, into the
+// values array at the given offset, along with their types if typesArray is not
+// null.  Both arrays are held for the whole copy, so the conversion must not call
+// back into the VM; errors are thrown once they have been released.
+template <typename T, bool kFloat>
+static jint copyColumn(JNIEnv* env, jlong windowPtr, jint row, jint column, jint count,
+        jarray valuesArray, jint offset, jbyteArray typesArray) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Copying %d values from %d,%d of %p", count, row, column, window);
+
+    if (row < 0 || column < 0 || uint32_t(column) >= window->getNumColumns()) {
+        throwExceptionWithRowCol(env, row, column);
+        return 0;
+    }
+    uint32_t numRows = window->getNumRows();
+    if (uint32_t(row) >= numRows || count <= 0) {
+        return 0;
+    }
+    if (uint32_t(count) > numRows - row) {
+        count = numRows - row;
+    }
+
+    T* values = static_cast<T*>(env->GetPrimitiveArrayCritical(valuesArray, NULL));
+    if (!values) {
+        return 0;
+    }
+    jbyte* types = NULL;
+    if (typesArray) {
+        types = static_cast<jbyte*>(env->GetPrimitiveArrayCritical(typesArray, NULL));
+        if (!types) {
+            env->ReleasePrimitiveArrayCritical(valuesArray, values, JNI_ABORT);
+            return 0;
+        }
+    }
+
+    jint copied = 0;
+    int32_t badType = -1;
+    for (; copied < count; copied++) {
+        CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row + copied, column);
+        if (!fieldSlot) {
+            break;
+        }
+        int32_t type = window->getFieldSlotType(fieldSlot);
+        if (!convertFieldSlot<T, kFloat>(window, fieldSlot, type, &values[offset + copied])) {
+            badType = type;
+            break;
+        }
+        if (types) {
+            types[offset + copied] = jbyte(type);
+        }
+    }
+
+    if (types) {
+        env->ReleasePrimitiveArrayCritical(typesArray, types, 0);
+    }
+    env->ReleasePrimitiveArrayCritical(valuesArray, values, 0);
+
+    if (copied < count) {
+        if (badType == CursorWindow::FIELD_TYPE_BLOB) {
+            throw_sqlite3_exception(env, kFloat ? "Unable to convert BLOB to double"
+                    : "Unable to convert BLOB to long");
+        } else if (badType >= 0) {
+            throwUnknownTypeException(env, badType);
+        } else {
+            throwExceptionWithRowCol(env, row + copied, column);
+        }
+    }
+    return copied;
+}
+
+static jint nativeCopyLongs(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column, jint count, jlongArray valuesArray, jint offset,
+        jbyteArray typesArray) {
+    return copyColumn<jlong, false>(env, windowPtr, row, column, count,
+            valuesArray, offset, typesArray);
+}
+
+static jint nativeCopyInts(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column, jint count, jintArray valuesArray, jint offset,
+        jbyteArray typesArray) {
+    return copyColumn<jint, false>(env, windowPtr, row, column, count,
+            valuesArray, offset, typesArray);
+}
+
+static jint nativeCopyDoubles(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column, jint count, jdoubleArray valuesArray, jint offset,
+        jbyteArray typesArray) {
+    return copyColumn<jdouble, true>(env, windowPtr, row, column, count,
+            valuesArray, offset, typesArray);
+}
+
 static jboolean nativePutBlob(JNIEnv* env, jclass clazz, jlong windowPtr,
         jbyteArray valueObj, jint row, jint column) {
     CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
@@ -499,6 +749,8 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeClear },
     { "nativeGetNumRows", "(J)I",
             (void*)nativeGetNumRows },
+    { "nativeGetFreeSpace", "(J)I",
+            (void*)nativeGetFreeSpace },
     { "nativeSetNumColumns", "(JI)Z",
             (void*)nativeSetNumColumns },
     { "nativeAllocRow", "(J)Z",
@@ -515,8 +767,20 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeGetLong },
     { "nativeGetDouble", "(JII)D",
             (void*)nativeGetDouble },
+    { "nativeCopyLongs", "(JIII[JI[B)I",
+            (void*)nativeCopyLongs },
+    { "nativeCopyInts", "(JIII[II[B)I",
+            (void*)nativeCopyInts },
+    { "nativeCopyDoubles", "(JIII[DI[B)I",
+            (void*)nativeCopyDoubles },
     { "nativeCopyStringToBuffer", "(JIILandroid/database/CharArrayBuffer;)V",
             (void*)nativeCopyStringToBuffer },
+    { "nativeCopyStringUtf8", "(JII[BII)I",
+            (void*)nativeCopyStringUtf8 },
+    { "nativeCopyStringUtf8Direct", "(JIILjava/nio/ByteBuffer;II)I",
+            (void*)nativeCopyStringUtf8Direct },
+    { "nativeCopyStringChars", "(JII[CI)I",
+            (void*)nativeCopyStringChars },
     { "nativePutBlob", "(J[BII)Z",
             (void*)nativePutBlob },
     { "nativePutString", "(JLjava/lang/String;II)Z",
@@ -830,6 +830,159 @@ static jlong nativeExecuteForCursorWindow(JNIEnv* env, jclass clazz,
     return result;
 }
 
+// Must match the FIELD_TYPE constants in android.database.Cursor.
+enum {
+    FIELD_TYPE_NULL = 0,
+    FIELD_TYPE_INTEGER = 1,
+    FIELD_TYPE_FLOAT = 2,
+    FIELD_TYPE_STRING = 3,
+    FIELD_TYPE_BLOB = 4,
+};
+
+// Steps the statement, retrying while the database is locked.
+// Returns SQLITE_ROW, SQLITE_DONE, or another code after throwing an exception.
+static int stepWithRetry(JNIEnv* env, SQLiteConnection* connection, sqlite3_stmt* statement) {
+    int retryCount = 0;
+    int err;
+    for (;;) {
+        err = sqlite3_step(statement);
+        if (err != SQLITE_LOCKED && err != SQLITE_BUSY) {
+            break;
+        }
+        // The table is locked, retry
+        LOG_WINDOW("Database locked, retrying");
+        if (retryCount > 50) {
+            ALOGE("Bailing on database busy retry");
+            throw_sqlite3_exception(env, connection->db, "retrycount exceeded");
+            return err;
+        }
+        // Sleep to give the thread holding the lock a chance to finish
+        usleep(1000);
+        retryCount++;
+    }
+    if (err != SQLITE_ROW && err != SQLITE_DONE) {
+        throw_sqlite3_exception(env, connection->db);
+    }
+    return err;
+}
+
+// Copies the current row of the statement into the buffers, storing column i
+// at index (offset + i * stride).  Integers and floats that are not of the
+// column's type are stored as 0, and the object of a column that is neither a
+// string nor a blob is set to null.  Returns false if an exception was thrown.
+static bool copyRowToBuffers(JNIEnv* env, sqlite3_stmt* statement, int numColumns,
+        int offset, int stride, jint* types, jlong* longs, jdouble* doubles,
+        jobjectArray objectsArray) {
+    for (int i = 0; i < numColumns; i++) {
+        const int index = offset + i * stride;
+        jobject object = NULL;
+        jlong longValue = 0;
+        jdouble doubleValue = 0;
+        int type = sqlite3_column_type(statement, i);
+        if (type == SQLITE_TEXT) {
+            const jchar* text = static_cast<const jchar*>(sqlite3_column_text16(statement, i));
+            size_t length = sqlite3_column_bytes16(statement, i) / sizeof(jchar);
+            object = env->NewString(text, length);
+            types[index] = FIELD_TYPE_STRING;
+        } else if (type == SQLITE_INTEGER) {
+            longValue = sqlite3_column_int64(statement, i);
+            types[index] = FIELD_TYPE_INTEGER;
+        } else if (type == SQLITE_FLOAT) {
+            doubleValue = sqlite3_column_double(statement, i);
+            types[index] = FIELD_TYPE_FLOAT;
+        } else if (type == SQLITE_BLOB) {
+            const void* blob = sqlite3_column_blob(statement, i);
+            size_t size = sqlite3_column_bytes(statement, i);
+            jbyteArray byteArray = env->NewByteArray(size);
+            if (byteArray) {
+                env->SetByteArrayRegion(byteArray, 0, size, static_cast<const jbyte*>(blob));
+            }
+            object = byteArray;
+            types[index] = FIELD_TYPE_BLOB;
+        } else {
+            types[index] = FIELD_TYPE_NULL;
+        }
+        longs[index] = longValue;
+        doubles[index] = doubleValue;
+
+        if (env->ExceptionCheck()) {
+            if (object) {
+                env->DeleteLocalRef(object);
+            }
+            return false;
+        }
+        // Also clears the value left at this index by a previous row.
+        env->SetObjectArrayElement(objectsArray, index, object);
+        if (object) {
+            env->DeleteLocalRef(object);
+        }
+    }
+    return true;
+}
+
+static jboolean nativeStepRow(JNIEnv* env, jclass clazz,
+        jlong connectionPtr, jlong statementPtr, jintArray typesArray,
+        jlongArray longsArray, jdoubleArray doublesArray, jobjectArray objectsArray) {
+    SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+
+    if (stepWithRetry(env, connection, statement) != SQLITE_ROW) {
+        return false;
+    }
+
+    int numColumns = sqlite3_column_count(statement);
+    if (env->GetArrayLength(typesArray) < numColumns) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "The row buffer is smaller than the number of columns.");
+        return false;
+    }
+    jint* types = env->GetIntArrayElements(typesArray, NULL);
+    jlong* longs = env->GetLongArrayElements(longsArray, NULL);
+    jdouble* doubles = env->GetDoubleArrayElements(doublesArray, NULL);
+    bool ok = copyRowToBuffers(env, statement, numColumns, 0, 1,
+            types, longs, doubles, objectsArray);
+    env->ReleaseDoubleArrayElements(doublesArray, doubles, 0);
+    env->ReleaseLongArrayElements(longsArray, longs, 0);
+    env->ReleaseIntArrayElements(typesArray, types, 0);
+    return ok;
+}
+
+// Steps through up to maxRows rows, storing column c of row r at index
+// (c * maxRows + r) of the buffers.  Returns the number of rows copied, which is
+// less than maxRows once the statement is done.
+static jint nativeStepRows(JNIEnv* env, jclass clazz,
+        jlong connectionPtr, jlong statementPtr, jint maxRows, jintArray typesArray,
+        jlongArray longsArray, jdoubleArray doublesArray, jobjectArray objectsArray) {
+    SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+
+    int numColumns = sqlite3_column_count(statement);
+    if (env->GetArrayLength(typesArray) < numColumns * maxRows) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "The row buffer is smaller than the number of cells.");
+        return 0;
+    }
+    jint* types = env->GetIntArrayElements(typesArray, NULL);
+    jlong* longs = env->GetLongArrayElements(longsArray, NULL);
+    jdouble* doubles = env->GetDoubleArrayElements(doublesArray, NULL);
+    int rows = 0;
+    while (rows < maxRows) {
+        if (stepWithRetry(env, connection, statement) != SQLITE_ROW) {
+            break;
+        }
+        if (!copyRowToBuffers(env, statement, numColumns, rows, maxRows,
+                types, longs, doubles, objectsArray)) {
+            break;
+        }
+        rows += 1;
+    }
+    LOG_WINDOW("Copied %d rows into column buffers", rows);
+    env->ReleaseDoubleArrayElements(doublesArray, doubles, 0);
+    env->ReleaseLongArrayElements(longsArray, longs, 0);
+    env->ReleaseIntArrayElements(typesArray, types, 0);
+    return rows;
+}
+
 static jint nativeGetDbLookaside(JNIEnv* env, jobject clazz, jlong connectionPtr) {
     SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
 
@@ -913,6 +1066,10 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeExecuteForLastInsertedRowId },
     { "nativeExecuteForCursorWindow", "(JJJIIZ)J",
             (void*)nativeExecuteForCursorWindow },
+    { "nativeStepRow", "(JJ[I[J[D[Ljava/lang/Object;)Z",
+            (void*)nativeStepRow },
+    { "nativeStepRows", "(JJI[I[J[D[Ljava/lang/Object;)I",
+            (void*)nativeStepRows },
     { "nativeGetDbLookaside", "(J)I",
             (void*)nativeGetDbLookaside },
     { "nativeCancel", "(J)V",
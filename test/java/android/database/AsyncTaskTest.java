@@ -4,6 +4,14 @@ import android.os.AsyncTask;
 import junit.framework.TestCase;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class AsyncTaskTest extends TestCase {
@@ -49,4 +57,216 @@ public class AsyncTaskTest extends TestCase {
         System.out.println("Background task is finished");
     }
 
+    public void testBlockingExecutorThroughput() throws Exception {
+        runBlockingTasks(AsyncTask.THREAD_POOL_EXECUTOR, "THREAD_POOL_EXECUTOR");
+        long blocking = runBlockingTasks(AsyncTask.BLOCKING_EXECUTOR, "BLOCKING_EXECUTOR");
+        if (blocking < 0) {
+            fail("BLOCKING_EXECUTOR rejected tasks");
+        }
+    }
+
+    public void testKeyedSerialExecutor() throws Exception {
+        final AsyncTask.KeyedSerialExecutor executor =
+                new AsyncTask.KeyedSerialExecutor(AsyncTask.BLOCKING_EXECUTOR);
+        final ArrayList<String> order = new ArrayList<String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                record(order, "a1", done);
+            }
+        });
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                record(order, "a2", done);
+            }
+        });
+        executor.forKey("b").execute(new Runnable() {
+            @Override
+            public void run() {
+                record(order, "b1", done);
+            }
+        });
+        executor.execute("b", new Runnable() {
+            @Override
+            public void run() {
+                record(order, "b2", done);
+            }
+        });
+
+        // Key "b" must not wait for the blocked task of key "a".
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!contains(order, "b2") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, executor.getQueueLength("a"));
+        assertEquals(1, executor.getStartedTaskCount("a"));
+        assertTrue(executor.getMaxWaitMillis("a") <= executor.getTotalWaitMillis("a"));
+        release.countDown();
+
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            fail("Tasks did not finish: " + order);
+        }
+        synchronized (order) {
+            assertTrue(order.indexOf("a1") < order.indexOf("a2"));
+            assertTrue(order.indexOf("b1") < order.indexOf("b2"));
+            assertTrue(order.indexOf("b2") < order.indexOf("a1"));
+        }
+        // Keys are forgotten once they have nothing left to run.
+        deadline = System.currentTimeMillis() + 5000;
+        while (executor.getStartedTaskCount("a") != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, executor.getQueueLength("a"));
+        assertEquals(0, executor.getStartedTaskCount("a"));
+    }
+
+    public void testKeyedSerialExecutorRejection() throws Exception {
+        final AtomicBoolean reject = new AtomicBoolean();
+        final AsyncTask.KeyedSerialExecutor executor =
+                new AsyncTask.KeyedSerialExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable r) {
+                        if (reject.get()) {
+                            throw new RejectedExecutionException();
+                        }
+                        new Thread(r).start();
+                    }
+                });
+        final ArrayList<String> order = new ArrayList<String>();
+
+        // A rejected submission does not run later.
+        reject.set(true);
+        try {
+            executor.execute("a", new Runnable() {
+                @Override
+                public void run() {
+                    record(order, "rejected", null);
+                }
+            });
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(0, executor.getQueueLength("a"));
+        reject.set(false);
+        final CountDownLatch first = new CountDownLatch(1);
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                record(order, "a1", first);
+            }
+        });
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        // A rejection while scheduling the next queued task does not stall the key.
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                record(order, "a2", blocked);
+            }
+        });
+        final FutureTask<Void> dropped = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                record(order, "dropped", null);
+            }
+        }, null);
+        executor.execute("a", dropped);
+        assertEquals(1, executor.getQueueLength("a"));
+        reject.set(true);
+        release.countDown();
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getQueueLength("a") != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, executor.getQueueLength("a"));
+        // Whoever waits for the dropped task is woken up.
+        try {
+            dropped.get(5, TimeUnit.SECONDS);
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+        }
+
+        reject.set(false);
+        final CountDownLatch last = new CountDownLatch(1);
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                record(order, "a3", last);
+            }
+        });
+        assertTrue(last.await(5, TimeUnit.SECONDS));
+        synchronized (order) {
+            assertFalse(order.contains("rejected"));
+            assertFalse(order.contains("dropped"));
+            assertEquals("a3", order.get(order.size() - 1));
+        }
+    }
+
+    private static boolean contains(ArrayList<String> order, String name) {
+        synchronized (order) {
+            return order.contains(name);
+        }
+    }
+
+    private static void record(ArrayList<String> order, String name, CountDownLatch done) {
+        synchronized (order) {
+            order.add(name);
+        }
+        if (done != null) {
+            done.countDown();
+        }
+    }
+
+    // Runs tasks that sleep to simulate blocking I/O and returns the elapsed time,
+    // or -1 if the executor rejected any of them.
+    private long runBlockingTasks(Executor executor, String name) throws Exception {
+        final int tasks = 500;
+        final CountDownLatch done = new CountDownLatch(tasks);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                done.countDown();
+            }
+        };
+
+        int rejected = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejected++;
+                done.countDown();
+            }
+        }
+        if (!done.await(60, TimeUnit.SECONDS)) {
+            fail(name + " did not finish its tasks");
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(name + ": " + (tasks - rejected) + " blocking tasks in "
+                + elapsed + "ms, " + rejected + " rejected");
+        return rejected == 0 ? elapsed : -1;
+    }
 }
@@ -12,6 +12,9 @@ import android.content.pm.PackageInfo;
 import android.content.Context;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class CursorTest extends TestCase {
 
@@ -77,4 +80,154 @@ public class CursorTest extends TestCase {
         mc2.close();
         mc.close();
     }
+
+    public void testCursorWindowPool() {
+        final int size = 64 * 1024;
+        CursorWindow.setWindowPoolMaxBytes(2 * size);
+        try {
+            // Empty the pool of windows left by other tests.
+            CursorWindow.setWindowPoolMaxBytes(0);
+            CursorWindow.setWindowPoolMaxBytes(2 * size);
+            assertEquals(0, CursorWindow.getWindowPoolRetainedBytes());
+
+            CursorWindow w1 = new CursorWindow("w1", size);
+            CursorWindow w2 = new CursorWindow("w2", size - 100);
+            CursorWindow w3 = new CursorWindow("w3", size);
+            assertTrue(w1.setNumColumns(1));
+            assertTrue(w1.allocRow());
+            assertTrue(w1.putLong(42, 0, 0));
+            w1.close();
+            w2.close();
+            // Over the limit, so this one is freed.
+            w3.close();
+            assertEquals(2 * size, CursorWindow.getWindowPoolRetainedBytes());
+
+            long hits = CursorWindow.getWindowPoolHitCount();
+            CursorWindow reused = new CursorWindow("reused", size);
+            assertEquals(hits + 1, CursorWindow.getWindowPoolHitCount());
+            assertEquals(size, CursorWindow.getWindowPoolRetainedBytes());
+            // A reused window starts out empty.
+            assertEquals(0, reused.getNumRows());
+            reused.close();
+
+            long misses = CursorWindow.getWindowPoolMissCount();
+            new CursorWindow("other size", 2 * size).close();
+            assertEquals(misses + 1, CursorWindow.getWindowPoolMissCount());
+        } finally {
+            CursorWindow.setWindowPoolMaxBytes(4 * 1024 * 1024);
+        }
+    }
+
+    public void testCursorWindowStringCopy() {
+        CursorWindow window = new CursorWindow("strings");
+        try {
+            assertTrue(window.setNumColumns(1));
+            final String text = "caf\u00e9 \u4e2d";
+            assertTrue(window.allocRow());
+            assertTrue(window.putString(text, 0, 0));
+            assertTrue(window.allocRow());
+            assertTrue(window.putNull(1, 0));
+            assertTrue(window.allocRow());
+            assertTrue(window.putLong(-42, 2, 0));
+            assertTrue(window.allocRow());
+            assertTrue(window.putString("", 3, 0));
+
+            final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = new byte[64];
+            assertEquals(utf8.length, window.copyStringUtf8(0, 0, bytes, 2));
+            assertEquals(text, new String(bytes, 2, utf8.length,
+                    StandardCharsets.UTF_8));
+
+            // Too small: the length is reported and nothing is copied.
+            byte[] small = new byte[4];
+            assertEquals(utf8.length, window.copyStringUtf8(0, 0, small, 0));
+            assertEquals(0, small[0]);
+
+            char[] chars = new char[16];
+            assertEquals(text.length(), window.copyStringChars(0, 0, chars, 1));
+            assertEquals(text, new String(chars, 1, text.length()));
+
+            assertEquals(-1, window.copyStringUtf8(1, 0, bytes, 0));
+            assertEquals(-1, window.copyStringChars(1, 0, chars, 0));
+            assertEquals(3, window.copyStringChars(2, 0, chars, 0));
+            assertEquals("-42", new String(chars, 0, 3));
+            assertEquals(0, window.copyStringUtf8(3, 0, bytes, 0));
+
+            for (ByteBuffer buffer : new ByteBuffer[] {
+                    ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64) }) {
+                buffer.position(3);
+                assertEquals(utf8.length, window.copyStringUtf8(0, 0, buffer));
+                assertEquals(3 + utf8.length, buffer.position());
+                buffer.flip();
+                buffer.position(3);
+                byte[] copied = new byte[utf8.length];
+                buffer.get(copied);
+                assertTrue(Arrays.equals(utf8, copied));
+
+                buffer.clear();
+                buffer.limit(4);
+                assertEquals(utf8.length, window.copyStringUtf8(0, 0, buffer));
+                assertEquals(0, buffer.position());
+            }
+        } finally {
+            window.close();
+        }
+    }
+
+    public void testCursorWindowBulkCopy() {
+        CursorWindow window = new CursorWindow("bulk");
+        try {
+            window.setStartPosition(10);
+            assertTrue(window.setNumColumns(2));
+            for (int i = 0; i < 100; i++) {
+                assertTrue(window.allocRow());
+                final int row = 10 + i;
+                if (i % 10 == 0) {
+                    assertTrue(window.putNull(row, 0));
+                } else if (i % 10 == 1) {
+                    assertTrue(window.putDouble(i + 0.5, row, 0));
+                } else if (i % 10 == 2) {
+                    assertTrue(window.putString(Integer.toString(i), row, 0));
+                } else {
+                    assertTrue(window.putLong(i, row, 0));
+                }
+                assertTrue(window.putBlob(new byte[] { 1 }, row, 1));
+            }
+
+            long[] longs = new long[120];
+            byte[] types = new byte[120];
+            // The copy stops at the end of the window.
+            assertEquals(90, window.copyLongs(20, 0, 200, longs, 5, types));
+            for (int i = 10; i < 100; i++) {
+                assertEquals(window.getLong(10 + i, 0), longs[i - 5]);
+                assertEquals(window.getType(10 + i, 0), types[i - 5]);
+            }
+
+            int[] ints = new int[100];
+            assertEquals(100, window.copyInts(10, 0, 100, ints, 0, null));
+            assertEquals(0, ints[0]);
+            assertEquals(1, ints[1]);
+            assertEquals(2, ints[2]);
+            assertEquals(99, ints[99]);
+
+            double[] doubles = new double[100];
+            assertEquals(100, window.copyDoubles(10, 0, 100, doubles, 0, null));
+            assertEquals(1.5, doubles[1]);
+            assertEquals(3.0, doubles[3]);
+
+            assertEquals(0, window.copyLongs(110, 0, 10, longs, 0, null));
+            try {
+                window.copyLongs(10, 1, 10, longs, 0, null);
+                fail("Expected SQLiteException");
+            } catch (android.database.sqlite.SQLiteException expected) {
+            }
+            try {
+                window.copyLongs(10, 0, 10, longs, 115, null);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            window.close();
+        }
+    }
 }
@@ -0,0 +1,474 @@
+package android.database;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.LooperMetrics;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Printer;
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class LooperTest extends TestCase {
+
+    private Looper mLooper;
+    private Thread mThread;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final CountDownLatch prepared = new CountDownLatch(1);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Looper.prepare();
+                mLooper = Looper.myLooper();
+                prepared.countDown();
+                Looper.loop();
+            }
+        }, "LooperTest");
+        mThread.start();
+        prepared.await();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLooper.quit();
+        mThread.join(1000);
+        super.tearDown();
+    }
+
+    public void testIdleLooperWakesOnPost() throws Exception {
+        final int iterations = 200;
+        final long[] received = new long[1];
+        final Handler handler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                synchronized (received) {
+                    received[0] = System.nanoTime();
+                    received.notifyAll();
+                }
+            }
+        };
+
+        final long avgMicros = measureWakeLatencyMicros(new Runnable() {
+            @Override
+            public void run() {
+                handler.sendEmptyMessage(0);
+            }
+        }, received, iterations);
+        System.out.println("Average wake-up latency: " + avgMicros + "us, "
+                + measureIdleCpuMillis(mThread) + "ms CPU per " + IDLE_MILLIS + "ms idle");
+        if (avgMicros > 50000) {
+            fail("Idle looper took too long to wake up: " + avgMicros + "us");
+        }
+
+        // Compare with the sleep-polling loop that next() used before.
+        for (int interval : new int[] { 0, 1 }) {
+            runSleepPollBaseline(interval, iterations);
+        }
+    }
+
+    // How long the CPU use of an idle loop is measured for.
+    private static final int IDLE_MILLIS = 200;
+
+    // Posts a message with the given runnable once the poll thread has gone idle, and
+    // returns the average time until the thread records it in received[0].
+    private static long measureWakeLatencyMicros(Runnable post, long[] received,
+            int iterations) throws Exception {
+        long totalLatency = 0;
+        for (int i = 0; i < iterations; i++) {
+            // Let the thread go idle before posting so that every message has to wake it.
+            Thread.sleep(1);
+            synchronized (received) {
+                received[0] = 0;
+                final long start = System.nanoTime();
+                post.run();
+                while (received[0] == 0) {
+                    received.wait(1000);
+                }
+                totalLatency += received[0] - start;
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMicros(totalLatency / iterations);
+    }
+
+    // Stands in for the loop that next() ran before it blocked: the thread checks for
+    // work and sleeps for the poll interval when there is none.  An interval of 0 is
+    // the old empty-queue path, which did not sleep at all.
+    private static void runSleepPollBaseline(final int intervalMillis, int iterations)
+            throws Exception {
+        final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+        final AtomicBoolean quit = new AtomicBoolean();
+        final long[] received = new long[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!quit.get()) {
+                    if (queue.poll() != null) {
+                        synchronized (received) {
+                            received[0] = System.nanoTime();
+                            received.notifyAll();
+                        }
+                    } else if (intervalMillis > 0) {
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+        }, "SleepPollBaseline");
+        thread.start();
+        try {
+            final long avgMicros = measureWakeLatencyMicros(new Runnable() {
+                @Override
+                public void run() {
+                    queue.add(Boolean.TRUE);
+                }
+            }, received, iterations);
+            System.out.println("Sleep-poll baseline, " + intervalMillis + "ms interval: "
+                    + "average wake-up latency " + avgMicros + "us, "
+                    + measureIdleCpuMillis(thread) + "ms CPU per " + IDLE_MILLIS + "ms idle");
+        } finally {
+            quit.set(true);
+            thread.join(1000);
+        }
+    }
+
+    // Returns the CPU time the thread uses while the caller sleeps for IDLE_MILLIS,
+    // or -1 if the VM cannot measure it.
+    private static long measureIdleCpuMillis(Thread thread) throws InterruptedException {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadCpuTimeSupported()) {
+            return -1;
+        }
+        final long before = bean.getThreadCpuTime(thread.getId());
+        Thread.sleep(IDLE_MILLIS);
+        return TimeUnit.NANOSECONDS.toMillis(bean.getThreadCpuTime(thread.getId()) - before);
+    }
+
+    public void testIdleLooperDoesNotSpin() throws Exception {
+        // Let the looper block in next() with an empty queue.
+        Thread.sleep(50);
+        if (mThread.getState() != Thread.State.WAITING) {
+            fail("Idle looper thread is not parked: " + mThread.getState());
+        }
+    }
+
+    public void testQuitWakesIdleLooper() throws Exception {
+        Thread.sleep(50);
+        mLooper.quitSafely();
+        mThread.join(1000);
+        if (mThread.isAlive()) {
+            fail("Looper did not exit after quitSafely()");
+        }
+    }
+
+    public void testLockFreeEnqueuePreservesOrder() throws Exception {
+        mLooper.getQueue().setLockFreeEnqueueEnabled(true);
+        final int count = 1000;
+        final int[] next = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what != next[0]) {
+                    fail("Expected message " + next[0] + " but got " + msg.what);
+                }
+                if (++next[0] == count) {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            handler.sendEmptyMessage(i);
+        }
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            fail("Only " + next[0] + " of " + count + " messages were delivered");
+        }
+    }
+
+    public void testEnqueueContention() throws Exception {
+        final int[] producerCounts = { 1, 4, 16 };
+        for (int producers : producerCounts) {
+            long locked = runProducers(producers, false);
+            long lockFree = runProducers(producers, true);
+            System.out.println(producers + " producers: locked enqueue " + locked
+                    + "ms, lock-free enqueue " + lockFree + "ms");
+        }
+    }
+
+    public void testDelayedMessagesDeliveredInOrder() throws Exception {
+        final int count = 2000;
+        final ArrayList<Long> delivered = new ArrayList<Long>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                delivered.add((Long) msg.obj);
+                if (delivered.size() == count) {
+                    done.countDown();
+                }
+            }
+        };
+
+        final long base = SystemClock.uptimeMillis() + 100;
+        final Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            long when = base + random.nextInt(200);
+            handler.sendMessageAtTime(handler.obtainMessage(0, Long.valueOf(when)), when);
+        }
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            fail("Only " + delivered.size() + " of " + count + " messages were delivered");
+        }
+        for (int i = 1; i < count; i++) {
+            if (delivered.get(i) < delivered.get(i - 1)) {
+                fail("Message " + i + " was delivered out of order");
+            }
+        }
+    }
+
+    public void testRemoveMessages() throws Exception {
+        final Object token = new Object();
+        final Handler handler = new Handler(mLooper);
+        final long when = SystemClock.uptimeMillis() + 10000;
+        for (int i = 0; i < 100; i++) {
+            handler.sendMessageAtTime(handler.obtainMessage(i % 3, i % 2 == 0 ? token : null), when);
+        }
+
+        assertTrue(handler.hasMessages(1));
+        assertTrue(handler.hasMessages(2, token));
+        handler.removeMessages(1);
+        assertFalse(handler.hasMessages(1));
+        handler.removeMessages(2, token);
+        assertFalse(handler.hasMessages(2, token));
+        assertTrue(handler.hasMessages(2));
+        assertTrue(handler.hasMessages(0));
+        handler.removeCallbacksAndMessages(null);
+        assertFalse(handler.hasMessages(0));
+        assertFalse(handler.hasMessages(2));
+    }
+
+    public void testSyncBarrierStallsSynchronousMessages() throws Exception {
+        final MessageQueue queue = mLooper.getQueue();
+        final ArrayList<Integer> delivered = new ArrayList<Integer>();
+        final CountDownLatch asyncDone = new CountDownLatch(1);
+        final CountDownLatch allDone = new CountDownLatch(1);
+        final Handler.Callback callback = new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                synchronized (delivered) {
+                    delivered.add(msg.what);
+                }
+                if (msg.what == 2) {
+                    asyncDone.countDown();
+                } else if (msg.what == 1) {
+                    allDone.countDown();
+                }
+                return true;
+            }
+        };
+        final Handler sync = new Handler(mLooper, callback, false);
+        final Handler async = new Handler(mLooper, callback, true);
+
+        final int token = queue.postSyncBarrier();
+        sync.sendEmptyMessage(1);
+        async.sendEmptyMessage(2);
+        if (!asyncDone.await(5, TimeUnit.SECONDS)) {
+            fail("Asynchronous message was stalled by the barrier");
+        }
+        Thread.sleep(50);
+        synchronized (delivered) {
+            assertFalse(delivered.contains(1));
+        }
+
+        queue.removeSyncBarrier(token);
+        if (!allDone.await(5, TimeUnit.SECONDS)) {
+            fail("Synchronous message was not delivered after removing the barrier");
+        }
+    }
+
+    public void testMessagePoolReusesRecycledMessages() throws Exception {
+        final int capacity = Message.getPoolCapacity();
+        try {
+            Message.setPoolCapacity(256);
+            assertTrue(Message.getPoolCapacity() >= 256);
+            // Warm the pool, then check that the steady state does not allocate.
+            Message.obtain().recycle();
+            final long hits = Message.getPoolHitCount();
+            final long misses = Message.getPoolMissCount();
+            for (int i = 0; i < 10000; i++) {
+                Message.obtain().recycle();
+            }
+            assertEquals(10000, Message.getPoolHitCount() - hits);
+            assertEquals(0, Message.getPoolMissCount() - misses);
+
+            // Shrinking takes effect as pooled messages are obtained.
+            Message.setPoolCapacity(0);
+            while (Message.getPoolSize() > 0) {
+                Message.obtain();
+            }
+            Message.obtain().recycle();
+            final long missesWithoutPool = Message.getPoolMissCount();
+            Message.obtain().recycle();
+            assertEquals(1, Message.getPoolMissCount() - missesWithoutPool);
+        } finally {
+            Message.setPoolCapacity(capacity);
+        }
+    }
+
+    public void testMetricsRecordDispatch() throws Exception {
+        final LooperMetrics metrics = new LooperMetrics();
+        mLooper.setMetrics(metrics);
+        final CountDownLatch done = new CountDownLatch(10);
+        final Handler handler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            handler.sendEmptyMessage(i % 2);
+        }
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            fail("Messages were not delivered");
+        }
+        // The last dispatch is recorded after handleMessage() returns.
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getQueueDepth().getCount() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        mLooper.setMetrics(null);
+
+        final LooperMetrics.Entry[] entries = metrics.getEntries();
+        assertEquals(2, entries.length);
+        for (LooperMetrics.Entry entry : entries) {
+            assertSame(handler.getClass(), entry.getHandlerClass());
+            assertEquals(5, entry.getDispatchTime().getCount());
+            assertEquals(5, entry.getWaitTime().getCount());
+        }
+        assertEquals(10, metrics.getQueueDepth().getCount());
+
+        final StringBuilder dump = new StringBuilder();
+        mLooper.setMetrics(metrics);
+        mLooper.dump(new Printer() {
+            @Override
+            public void println(String x) {
+                dump.append(x).append('\n');
+            }
+        }, "");
+        assertTrue(dump.toString().contains("Dispatch statistics"));
+    }
+
+    public void testBatchDispatchPreservesOrder() throws Exception {
+        mLooper.getQueue().setBatchDispatchEnabled(true);
+        checkBatchDispatchOrder();
+    }
+
+    public void testBatchDispatchWithLockFreeEnqueuePreservesOrder() throws Exception {
+        // Messages posted through the lock-free inbox must also cut into the batch.
+        mLooper.getQueue().setLockFreeEnqueueEnabled(true);
+        mLooper.getQueue().setBatchDispatchEnabled(true);
+        checkBatchDispatchOrder();
+    }
+
+    private void checkBatchDispatchOrder() throws Exception {
+        final ArrayList<Integer> delivered = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                delivered.add(msg.what);
+                if (msg.what == 2) {
+                    // Both of these affect messages that are already part of the batch.
+                    sendMessageAtFrontOfQueue(obtainMessage(100));
+                    removeMessages(5);
+                } else if (msg.what == 9) {
+                    done.countDown();
+                }
+            }
+        };
+
+        // Post everything while the looper is busy so that it all lands in one batch.
+        final CountDownLatch posted = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    posted.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        });
+        final long when = SystemClock.uptimeMillis();
+        for (int i = 0; i < 10; i++) {
+            handler.sendMessageAtTime(handler.obtainMessage(i), when);
+        }
+        posted.countDown();
+
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            fail("Messages were not delivered: " + delivered);
+        }
+        assertEquals("[0, 1, 2, 100, 3, 4, 6, 7, 8, 9]", delivered.toString());
+    }
+
+    private long runProducers(int producers, boolean lockFree) throws Exception {
+        final int messagesPerProducer = 20000;
+        final int total = producers * messagesPerProducer;
+        mLooper.getQueue().setLockFreeEnqueueEnabled(lockFree);
+
+        final AtomicInteger received = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (received.incrementAndGet() == total) {
+                    done.countDown();
+                }
+            }
+        };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < messagesPerProducer; j++) {
+                        handler.sendEmptyMessage(j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (!done.await(30, TimeUnit.SECONDS)) {
+            fail("Only " + received.get() + " of " + total + " messages were delivered");
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+}
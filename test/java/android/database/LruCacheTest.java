@@ -0,0 +1,216 @@
+package android.database;
+
+import android.util.ConcurrentLruCache;
+import android.util.LruCache;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class LruCacheTest extends TestCase {
+
+    private static final int KEYS = 1000;
+    private static final int READS_PER_THREAD = 500000;
+
+    public void testConcurrentCacheSizeAccounting() {
+        final List<String> evicted = new ArrayList<String>();
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+
+            @Override
+            protected void entryRemoved(boolean wasEvicted, String key, String oldValue,
+                    String newValue) {
+                if (wasEvicted) {
+                    evicted.add(key);
+                }
+            }
+        };
+        cache.put("a", "aaa");
+        cache.put("b", "bbb");
+        cache.put("c", "ccc");
+        assertEquals(9, cache.size());
+        assertEquals("aaa", cache.get("a"));
+
+        // "b" is the least recently used entry once the read of "a" is applied.
+        cache.put("d", "dd");
+        assertEquals(8, cache.size());
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+        assertNull(cache.get("b"));
+
+        assertEquals("ccc", cache.put("c", "c"));
+        assertEquals(6, cache.size());
+        assertEquals("aaa", cache.remove("a"));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertTrue(cache.snapshot().isEmpty());
+    }
+
+    public void testConcurrentCacheCreate() throws Exception {
+        final ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(
+                KEYS / 2) {
+            @Override
+            protected String create(Integer key) {
+                return "v" + key;
+            }
+        };
+        runReaders(4, 100000, new Reader() {
+            @Override
+            public Object read(int key) {
+                String value = cache.get(key);
+                assertEquals("v" + key, value);
+                return value;
+            }
+        });
+        assertEquals(KEYS / 2, cache.size());
+        assertEquals(KEYS / 2, cache.snapshot().size());
+        assertEquals(4 * 100000, cache.hitCount() + cache.missCount());
+    }
+
+    public void testReadThroughput() throws Exception {
+        for (int threads : new int[] { 1, 4, 16 }) {
+            final LruCache<Integer, Integer> locked = new LruCache<Integer, Integer>(KEYS);
+            final ConcurrentLruCache<Integer, Integer> concurrent =
+                    new ConcurrentLruCache<Integer, Integer>(KEYS);
+            for (int i = 0; i < KEYS; i++) {
+                locked.put(i, i);
+                concurrent.put(i, i);
+            }
+            long lockedNanos = runReaders(threads, READS_PER_THREAD, new Reader() {
+                @Override
+                public Object read(int key) {
+                    return locked.get(key);
+                }
+            });
+            long concurrentNanos = runReaders(threads, READS_PER_THREAD, new Reader() {
+                @Override
+                public Object read(int key) {
+                    return concurrent.get(key);
+                }
+            });
+            long reads = (long) threads * READS_PER_THREAD;
+            System.out.println(threads + " readers: LruCache "
+                    + (reads * 1000 / Math.max(lockedNanos / 1000, 1)) + " reads/ms"
+                    + ", ConcurrentLruCache "
+                    + (reads * 1000 / Math.max(concurrentNanos / 1000, 1)) + " reads/ms");
+            assertEquals(reads, concurrent.hitCount());
+            assertEquals(KEYS, concurrent.size());
+        }
+    }
+
+    public void testTinyLfuSizeAccounting() {
+        final List<String> evicted = new ArrayList<String>();
+        LruCache<String, String> cache = new LruCache<String, String>(10,
+                LruCache.POLICY_TINY_LFU) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+
+            @Override
+            protected void entryRemoved(boolean wasEvicted, String key, String oldValue,
+                    String newValue) {
+                if (wasEvicted) {
+                    evicted.add(key);
+                }
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            String key = "k" + (i % 7);
+            if (cache.get(key) == null) {
+                cache.put(key, i % 2 == 0 ? "xx" : "xxx");
+            }
+            assertNotNull(cache.get(key));
+            assertTrue(cache.size() <= 10);
+        }
+        int total = 0;
+        for (String value : cache.snapshot().values()) {
+            total += value.length();
+        }
+        assertEquals(total, cache.size());
+        assertFalse(evicted.isEmpty());
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertTrue(cache.snapshot().isEmpty());
+    }
+
+    public void testTinyLfuResistsScans() {
+        LruCache<Integer, Integer> lru = new LruCache<Integer, Integer>(100);
+        LruCache<Integer, Integer> tinyLfu = new LruCache<Integer, Integer>(100,
+                LruCache.POLICY_TINY_LFU);
+        int scanKey = 1000;
+        for (int round = 0; round < 200; round++) {
+            // A hot working set of 80 keys, followed by a scan of 50 keys seen only once.
+            for (int i = 0; i < 80; i++) {
+                access(lru, i);
+                access(tinyLfu, i);
+            }
+            for (int i = 0; i < 50; i++, scanKey++) {
+                access(lru, scanKey);
+                access(tinyLfu, scanKey);
+            }
+        }
+        System.out.println("LruCache: " + lru + ", TinyLFU: " + tinyLfu);
+        assertEquals(200 * 130, tinyLfu.hitCount() + tinyLfu.missCount());
+        assertTrue(tinyLfu.hitCount() > lru.hitCount());
+        // Most accesses to the working set should hit once its keys have been seen a few times.
+        assertTrue(tinyLfu.hitCount() > 200 * 80 / 2);
+    }
+
+    private static void access(LruCache<Integer, Integer> cache, int key) {
+        if (cache.get(key) == null) {
+            cache.put(key, key);
+        }
+    }
+
+    private interface Reader {
+        Object read(int key);
+    }
+
+    private static long runReaders(int threads, final int reads, final Reader reader)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong failures = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int key = seed;
+                        for (int i = 0; i < reads; i++) {
+                            key = (key * 1103515245 + 12345) & 0x7fffffff;
+                            if (reader.read(key % KEYS) == null) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - begin;
+        assertEquals(0, failures.get());
+        return elapsed;
+    }
+}
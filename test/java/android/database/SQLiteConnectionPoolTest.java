@@ -4,6 +4,7 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import android.database.sqlite.*;
 
 
@@ -255,6 +256,136 @@ public class SQLiteConnectionPoolTest extends TestCase {
             connPool.close();
     }
 
+    public void testSqliteConnectionPool_statementAffinity() throws Exception {
+        SQLiteDatabaseConfiguration config = new SQLiteDatabaseConfiguration(connectionURL,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        SQLiteConnectionPool connPool = SQLiteConnectionPool.open(config);
+        try {
+            // Open the reader connections so that the pool has a choice.
+            SQLiteConnection[] conn = new SQLiteConnection[3];
+            for (int i = 0; i < conn.length; i++) {
+                conn[i] = connPool.acquireConnection(null, 0, null);
+            }
+            for (int i = 0; i < conn.length; i++) {
+                connPool.releaseConnection(conn[i]);
+            }
+
+            final int statements = 20;
+            final int rounds = 10;
+            final int initialPrepareCount = connPool.getPrepareCount();
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < statements; i++) {
+                    String sql = "SELECT " + i;
+                    SQLiteConnection connection = connPool.acquireConnection(sql, 0, null);
+                    try {
+                        connection.prepare(sql, null);
+                    } finally {
+                        connPool.releaseConnection(connection);
+                    }
+                }
+            }
+
+            // Each statement is prepared once and then keeps going to the same connection.
+            assertEquals(statements, connPool.getPrepareCount() - initialPrepareCount);
+            assertEquals(statements * (rounds - 1), connPool.getAffinityHitCount());
+            assertEquals(statements, connPool.getAffinityMissCount());
+
+            // Only the primary connection's main database entry reports the counters.
+            ArrayList<SQLiteDebug.DbStats> dbStatsList = new ArrayList<SQLiteDebug.DbStats>();
+            connPool.collectDbStats(dbStatsList);
+            int withPrepareStats = 0;
+            for (SQLiteDebug.DbStats dbStats : dbStatsList) {
+                if (dbStats.prepareStats != null) {
+                    withPrepareStats++;
+                    assertEquals(connPool.getAffinityHitCount() + "/"
+                            + connPool.getAffinityMissCount() + "/"
+                            + connPool.getPrepareCount(), dbStats.prepareStats);
+                }
+            }
+            assertEquals(1, withPrepareStats);
+        } finally {
+            connPool.close();
+        }
+    }
+
+    public void testSqliteConnectionPool_adaptiveSizing() throws Exception {
+        SQLiteDatabaseConfiguration config = new SQLiteDatabaseConfiguration(connectionURL,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        config.maxAdaptiveConnectionPoolSize = 6;
+        config.connectionPoolGrowMillis = 10;
+        config.idleConnectionTimeoutMillis = 200;
+        final SQLiteConnectionPool connPool = SQLiteConnectionPool.open(config);
+        try {
+            // Take the primary connection and every reader of the default size pool.
+            SQLiteConnection[] conn = new SQLiteConnection[SQLiteGlobal.getWALConnectionPoolSize()];
+            for (int i = 0; i < conn.length; i++) {
+                conn[i] = connPool.acquireConnection(null, 0, null);
+            }
+
+            // Another request grows the pool instead of waiting for a release.
+            final SQLiteConnection[] extra = new SQLiteConnection[1];
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    extra[0] = connPool.acquireConnection(null, 0, null);
+                }
+            };
+            thread.start();
+            thread.join(5000);
+            assertNotNull("pool did not grow", extra[0]);
+            assertFalse(extra[0].isPrimaryConnection());
+
+            connPool.releaseConnection(extra[0]);
+            for (int i = 0; i < conn.length; i++) {
+                connPool.releaseConnection(conn[i]);
+            }
+
+            // Idle readers are closed after the timeout.
+            Thread.sleep(1000);
+            final StringBuilder dump = new StringBuilder();
+            connPool.dump(new android.util.Printer() {
+                @Override
+                public void println(String x) {
+                    dump.append(x).append('\n');
+                }
+            }, false);
+            assertTrue(dump.toString(), dump.toString().contains(
+                    "Available non-primary connections:\n    <none>"));
+        } finally {
+            connPool.close();
+        }
+    }
+
+    public void testSqliteConnectionPool_stats() throws Exception {
+        SQLiteDatabaseConfiguration config = new SQLiteDatabaseConfiguration(connectionURL,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        SQLiteConnectionPool connPool = SQLiteConnectionPool.open(config);
+        try {
+            SQLiteConnection reader = connPool.acquireConnection(null,
+                    SQLiteConnectionPool.CONNECTION_FLAG_INTERACTIVE, null);
+            Thread.sleep(20);
+            connPool.releaseConnection(reader);
+
+            SQLiteConnection primary = connPool.acquireConnection(null,
+                    SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY
+                            | SQLiteConnectionPool.CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY,
+                    null);
+            connPool.releaseConnection(primary);
+
+            SQLiteConnectionPoolStats stats = connPool.getStats();
+            assertEquals(1, stats.getWaitTime(false, true).getCount());
+            assertEquals(1, stats.getWaitTime(true, false).getCount());
+            assertEquals(0, stats.getWaitTime(false, false).getCount());
+            assertEquals(1, stats.getHoldTime(false).getCount());
+            assertTrue(stats.getHoldTime(false).getMax() >= 20000);
+            assertEquals(1, stats.getHoldTime(true).getCount());
+            assertEquals(0, stats.getQueueDepth().getCount());
+            assertEquals(1, stats.getPrimaryReadCount());
+        } finally {
+            connPool.close();
+        }
+    }
+
     private String getConnectionURL() {
         if (connectionURL == null) {
             String tmp = System.getProperty("java.io.tmpdir");
@@ -6,9 +6,22 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.database.sqlite.*;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
 import android.content.ContentValues;
 
@@ -690,4 +703,901 @@ public class SQLiteDatabaseTest extends TestCase {
 
         db.close();
     }
+
+    public void testSqliteDatabase_rawQueryOnReader() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int)");
+            db.execSQL("INSERT INTO test VALUES (1, 2)");
+
+            // Without write-ahead logging there are no non-primary connections.
+            try {
+                db.rawQueryOnReader("SELECT * FROM test", null, null);
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+            }
+
+            db.enableWriteAheadLogging();
+            Cursor c = db.rawQueryOnReader("SELECT col2 FROM test WHERE col1 = ?",
+                    new String[] { "1" }, null);
+            try {
+                assertTrue(c.moveToFirst());
+                assertEquals(2, c.getInt(0));
+            } finally {
+                c.close();
+            }
+
+            try {
+                db.rawQueryOnReader("DELETE FROM test", null, null);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+            }
+
+            // A transaction holds the primary connection.
+            db.beginTransaction();
+            try {
+                db.rawQueryOnReader("SELECT * FROM test", null, null);
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_writerLatencyUnderReaderLoad() throws Exception {
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.enableWriteAheadLogging();
+            db.execSQL("CREATE TABLE test (col1 int, col2 int)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < 500; i++) {
+                    db.execSQL("INSERT INTO test VALUES (?, ?)", new Object[] { i, i * 2 });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            long idle = measureWriterLatency(db, 0, false);
+            long fallback = measureWriterLatency(db, 8, false);
+            long onReader = measureWriterLatency(db, 8, true);
+            System.out.println("Average insert latency: no readers " + idle
+                    + "us, 8 readers with rawQuery " + fallback
+                    + "us, 8 readers with rawQueryOnReader " + onReader + "us");
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_bulkInsert() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int PRIMARY KEY, col2 int, col3 text)");
+
+            // Two column sets, with batches that do not divide the number of rows.
+            List<ContentValues> rows = new ArrayList<ContentValues>();
+            for (int i = 0; i < 25; i++) {
+                ContentValues cv = new ContentValues();
+                cv.put("col1", i);
+                cv.put("col2", i * 2);
+                if (i >= 10) {
+                    cv.put("col3", "row" + i);
+                }
+                rows.add(cv);
+            }
+            assertEquals(25, db.bulkInsert("test", rows, SQLiteDatabase.CONFLICT_NONE, 4));
+            assertEquals(25, DatabaseUtils.queryNumEntries(db, "test"));
+            assertEquals("row24", DatabaseUtils.stringForQuery(db,
+                    "SELECT col3 FROM test WHERE col1 = 24", null));
+            assertEquals(10, DatabaseUtils.longForQuery(db,
+                    "SELECT count(*) FROM test WHERE col3 IS NULL", null));
+
+            Object[][] columns = new Object[][] {
+                    { 100, 101, 102 }, { 1, 2, 3 }, { "a", null, "c" } };
+            assertEquals(3, db.bulkInsert("test", new String[] { "col1", "col2", "col3" },
+                    columns, SQLiteDatabase.CONFLICT_NONE, 100));
+            assertEquals(28, DatabaseUtils.queryNumEntries(db, "test"));
+
+            // A conflict rolls back the whole batch.
+            try {
+                db.bulkInsert("test", rows, SQLiteDatabase.CONFLICT_ABORT, 4);
+                fail("Expected SQLiteConstraintException");
+            } catch (SQLiteConstraintException expected) {
+            }
+            assertEquals(28, DatabaseUtils.queryNumEntries(db, "test"));
+
+            assertEquals(0, db.bulkInsert("test", rows, SQLiteDatabase.CONFLICT_IGNORE, 4));
+
+            try {
+                db.bulkInsert("test", rows, SQLiteDatabase.CONFLICT_NONE, 0);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                db.bulkInsert("test", new String[] { "col1", "col2", "col1" }, columns,
+                        SQLiteDatabase.CONFLICT_NONE, 100);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_sqlCache() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+
+            for (int i = 0; i < 10; i++) {
+                // Alternate the order in which the columns are added.
+                ContentValues cv = new ContentValues();
+                if (i % 2 == 0) {
+                    cv.put("col1", i);
+                    cv.put("col2", i * 2);
+                    cv.put("col3", "row" + i);
+                } else {
+                    cv.put("col3", "row" + i);
+                    cv.put("col2", i * 2);
+                    cv.put("col1", i);
+                }
+                assertTrue(db.insert("test", null, cv) > 0);
+            }
+            assertEquals(1, db.getSqlCacheMissCount());
+            assertEquals(9, db.getSqlCacheHitCount());
+            assertEquals(14, DatabaseUtils.longForQuery(db,
+                    "SELECT col2 FROM test WHERE col3 = 'row7'", null));
+
+            ContentValues cv = new ContentValues();
+            cv.put("col2", -1);
+            assertEquals(1, db.update("test", cv, "col1 = ?", new String[] { "3" }));
+            assertEquals(1, db.update("test", cv, "col1 = ?", new String[] { "4" }));
+            assertEquals(1, db.updateWithOnConflict("test", cv, "col1 = ?",
+                    new String[] { "5" }, SQLiteDatabase.CONFLICT_IGNORE));
+            assertEquals(3, DatabaseUtils.queryNumEntries(db, "test", "col2 = -1"));
+            assertEquals(3, db.getSqlCacheMissCount());
+            assertEquals(10, db.getSqlCacheHitCount());
+
+            assertEquals(1, db.delete("test", "col1 = ?", new String[] { "0" }));
+            assertEquals(1, db.delete("test", "col1 = ?", new String[] { "1" }));
+            assertEquals(8, db.delete("test", null, null));
+            assertEquals(5, db.getSqlCacheMissCount());
+            assertEquals(11, db.getSqlCacheHitCount());
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_bulkInsertBenchmark() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+
+            final int small = 10000;
+            long start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (ContentValues cv : generateRows(small)) {
+                    db.insert("test", null, cv);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long insertMillis = (System.nanoTime() - start) / 1000000;
+            System.out.println(small + " rows: insert() " + insertMillis + "ms, "
+                    + measureBulkInsert(db, small, 1) + ", "
+                    + measureBulkInsert(db, small, 100));
+
+            final int large = 1000000;
+            System.out.println(large + " rows: "
+                    + measureBulkInsert(db, large, 1) + ", "
+                    + measureBulkInsert(db, large, 100));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String measureBulkInsert(SQLiteDatabase db, int rows,
+            int maxRowsPerStatement) {
+        db.execSQL("DELETE FROM test");
+        long start = System.nanoTime();
+        assertEquals(rows, db.bulkInsert("test", generateRows(rows),
+                SQLiteDatabase.CONFLICT_NONE, maxRowsPerStatement));
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertEquals(rows, DatabaseUtils.queryNumEntries(db, "test"));
+        return "bulkInsert(" + maxRowsPerStatement + " rows/statement) " + millis + "ms";
+    }
+
+    // Returns the given number of rows, created as they are iterated.
+    private static Iterable<ContentValues> generateRows(final int count) {
+        return new Iterable<ContentValues>() {
+            @Override
+            public Iterator<ContentValues> iterator() {
+                return new Iterator<ContentValues>() {
+                    private int mNext;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mNext < count;
+                    }
+
+                    @Override
+                    public ContentValues next() {
+                        ContentValues cv = new ContentValues(3);
+                        cv.put("col1", mNext);
+                        cv.put("col2", mNext * 2);
+                        cv.put("col3", "row" + mNext);
+                        mNext++;
+                        return cv;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    public void testSqliteDatabase_rawQueryStreaming() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 real, col3 text, col4 blob)");
+            db.execSQL("INSERT INTO test VALUES (1, 1.5, 'one', x'0102')");
+            db.execSQL("INSERT INTO test VALUES (2, NULL, 'two', NULL)");
+            db.execSQL("INSERT INTO test VALUES (3, 3.5, NULL, NULL)");
+
+            Cursor c = db.rawQueryStreaming("SELECT * FROM test WHERE col1 >= ? ORDER BY col1",
+                    new String[] { "1" }, null);
+            try {
+                assertEquals(4, c.getColumnCount());
+                assertEquals(2, c.getColumnIndex("col3"));
+                // The count is exact before the first row is read.
+                assertEquals(3, c.getCount());
+
+                assertTrue(c.moveToFirst());
+                assertEquals(1, c.getInt(0));
+                assertEquals(1.5, c.getDouble(1));
+                assertEquals("one", c.getString(2));
+                assertEquals(Cursor.FIELD_TYPE_BLOB, c.getType(3));
+                assertEquals(2, c.getBlob(3).length);
+                assertEquals(3, c.getCount());
+                assertTrue(c.isFirst());
+                assertFalse(c.isLast());
+
+                try {
+                    c.moveToPrevious();
+                    fail("Expected IllegalStateException");
+                } catch (IllegalStateException expected) {
+                }
+            } finally {
+                c.close();
+            }
+
+            c = db.rawQueryStreaming("SELECT * FROM test WHERE col1 > ?",
+                    new String[] { "3" }, null);
+            try {
+                assertEquals(0, c.getCount());
+                assertFalse(c.moveToNext());
+            } finally {
+                c.close();
+            }
+
+            c = db.rawQueryStreaming("SELECT * FROM test ORDER BY col1", null, null);
+            try {
+                int rows = 0;
+                while (c.moveToNext()) {
+                    rows++;
+                    assertEquals(rows, c.getLong(0));
+                    assertEquals(rows == 3, c.isLast());
+                }
+                assertEquals(3, rows);
+                assertEquals(3, c.getCount());
+                assertTrue(c.isAfterLast());
+            } finally {
+                c.close();
+            }
+
+            // The thread that owns an open cursor can still read and write, with or
+            // without write-ahead logging.
+            for (boolean wal : new boolean[] { false, true }) {
+                if (wal) {
+                    db.enableWriteAheadLogging();
+                }
+                c = db.rawQueryStreaming("SELECT col1 FROM test WHERE col1 <= 3 ORDER BY col1",
+                        null, null);
+                try {
+                    assertTrue(c.moveToFirst());
+                    db.execSQL("INSERT INTO test VALUES (NULL, NULL, 'new', NULL)");
+                    ContentValues values = new ContentValues();
+                    values.put("col3", "new");
+                    assertTrue(db.insertOrThrow("test", null, values) > 0);
+                    assertEquals(2, DatabaseUtils.longForQuery(db,
+                            "SELECT col1 FROM test WHERE col1 = 2", null));
+                    assertTrue(c.moveToNext());
+                    assertEquals(2, c.getInt(0));
+                } finally {
+                    c.close();
+                }
+            }
+            assertEquals(7, DatabaseUtils.queryNumEntries(db, "test"));
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_streamingScanBenchmark() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+            final int rows = 1000000;
+            assertEquals(rows, db.bulkInsert("test", generateRows(rows),
+                    SQLiteDatabase.CONFLICT_NONE, 100));
+
+            final String sql = "SELECT col1, col2, col3 FROM test";
+            for (boolean streaming : new boolean[] { false, true }) {
+                long start = System.nanoTime();
+                Cursor c = streaming ? db.rawQueryStreaming(sql, null, null)
+                        : db.rawQuery(sql, null);
+                try {
+                    assertTrue(c.moveToFirst());
+                    long firstRowMicros = (System.nanoTime() - start) / 1000;
+                    long sum = 0;
+                    int count = 0;
+                    do {
+                        sum += c.getLong(0);
+                        count++;
+                    } while (c.moveToNext());
+                    long totalMillis = (System.nanoTime() - start) / 1000000;
+                    assertEquals(rows, count);
+                    assertEquals((long) rows * (rows - 1) / 2, sum);
+                    System.out.println((streaming ? "rawQueryStreaming" : "rawQuery")
+                            + " over " + rows + " rows: first row " + firstRowMicros
+                            + "us, total " + totalMillis + "ms");
+                } finally {
+                    c.close();
+                }
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_windowPrefetch() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.enableWriteAheadLogging();
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+            final int rows = 200000;
+            assertEquals(rows, db.bulkInsert("test", generateRows(rows),
+                    SQLiteDatabase.CONFLICT_NONE, 100));
+
+            final String sql = "SELECT col1, col2, col3 FROM test ORDER BY col1";
+            for (boolean prefetch : new boolean[] { false, true }) {
+                long start = System.nanoTime();
+                SQLiteCursor c = (SQLiteCursor) db.rawQuery(sql, null);
+                try {
+                    if (prefetch) {
+                        c.setWindowPrefetch(0.5f, null);
+                    }
+                    int count = 0;
+                    while (c.moveToNext()) {
+                        assertEquals(count, c.getInt(0));
+                        assertEquals("row" + count, c.getString(2));
+                        count++;
+                    }
+                    assertEquals(rows, count);
+                    System.out.println((prefetch ? "With" : "Without") + " prefetch: "
+                            + (System.nanoTime() - start) / 1000000 + "ms for " + rows + " rows");
+
+                    // Moving backwards still finds the rows, prefetched or not.
+                    assertTrue(c.moveToPosition(rows / 3));
+                    assertEquals(rows / 3, c.getInt(0));
+                } finally {
+                    c.close();
+                }
+            }
+
+            // Canceling the query is reported when the next window is needed.
+            CancellationSignal signal = new CancellationSignal();
+            SQLiteCursor c = (SQLiteCursor) db.rawQuery(sql, null, signal);
+            try {
+                c.setWindowPrefetch(0.5f, null);
+                assertTrue(c.moveToFirst());
+                signal.cancel();
+                try {
+                    while (c.moveToNext()) {
+                    }
+                    fail("Expected OperationCanceledException");
+                } catch (OperationCanceledException expected) {
+                }
+            } finally {
+                c.close();
+            }
+
+            // Canceling the query also stops a prefetch that is in flight, once the
+            // cursor needs the next window.
+            db.execSQL("CREATE TABLE slow AS SELECT col1, col2 FROM test WHERE col1 < 4000");
+            final String slowSql = "SELECT col1, (SELECT count(*) FROM slow b "
+                    + "WHERE b.col2 <= a.col2) FROM slow a ORDER BY col1";
+            final Thread[] prefetchThread = new Thread[1];
+            final Runnable[] prefetchTask = new Runnable[1];
+            final Executor executor = new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    prefetchTask[0] = r;
+                    prefetchThread[0] = new Thread(r);
+                    prefetchThread[0].start();
+                }
+            };
+            signal = new CancellationSignal();
+            c = (SQLiteCursor) db.rawQuery(slowSql, null, signal);
+            try {
+                // A small window leaves the rest of the rows to the prefetch.
+                c.setWindow(new CursorWindow("slow", 16 * 1024));
+                c.setWindowPrefetch(0.5f, executor);
+                assertTrue(c.moveToFirst());
+                assertTrue(c.moveToPosition(c.getWindow().getNumRows() - 1));
+                assertNotNull(prefetchThread[0]);
+
+                signal.cancel();
+                try {
+                    c.moveToNext();
+                    fail("Expected OperationCanceledException");
+                } catch (OperationCanceledException expected) {
+                }
+                prefetchThread[0].join(30000);
+                assertFalse(prefetchThread[0].isAlive());
+                assertTrue(prefetchTask[0] instanceof Future);
+                try {
+                    ((Future<?>) prefetchTask[0]).get();
+                    fail("Expected the prefetch to be canceled");
+                } catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof OperationCanceledException);
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_adaptiveWindowSize() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+            final int rows = 20000;
+            assertEquals(rows, db.bulkInsert("test", generateRows(rows),
+                    SQLiteDatabase.CONFLICT_NONE, 100));
+            final int ceiling = CursorWindow.getDefaultCursorWindowSize();
+
+            // A small result gets a small window.
+            final String smallSql = "SELECT col1 FROM test WHERE col1 < 10";
+            SQLiteCursor c = (SQLiteCursor) db.rawQuery(smallSql, null);
+            try {
+                assertEquals(10, c.getCount());
+                assertTrue(c.getWindow().getSize() < ceiling);
+            } finally {
+                c.close();
+            }
+
+            // A large result grows its windows as it is read.
+            final String largeSql = "SELECT col1, col2, col3 FROM test ORDER BY col1";
+            c = (SQLiteCursor) db.rawQuery(largeSql, null);
+            int firstSize;
+            try {
+                assertEquals(rows, c.getCount());
+                firstSize = c.getWindow().getSize();
+                assertTrue(c.getWindow().getNumRows() < rows);
+                int count = 0;
+                while (c.moveToNext()) {
+                    assertEquals(count, c.getInt(0));
+                    assertEquals("row" + count, c.getString(2));
+                    count++;
+                }
+                assertEquals(rows, count);
+                assertTrue(c.getWindow().getSize() > firstSize);
+                assertTrue(c.getWindow().getSize() <= ceiling);
+            } finally {
+                c.close();
+            }
+
+            // The next run of the same query starts at the size it ended with.
+            c = (SQLiteCursor) db.rawQuery(largeSql, null);
+            try {
+                assertEquals(rows, c.getCount());
+                assertTrue(c.getWindow().getSize() > firstSize);
+            } finally {
+                c.close();
+            }
+
+            // A row larger than the first window still fits.
+            db.execSQL("CREATE TABLE wide (data text)");
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < 64 * 1024; i++) {
+                value.append('x');
+            }
+            db.execSQL("INSERT INTO wide VALUES (?)", new Object[] { value.toString() });
+            c = (SQLiteCursor) db.rawQuery("SELECT data FROM wide", null);
+            try {
+                assertTrue(c.moveToFirst());
+                assertEquals(value.length(), c.getString(0).length());
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_queryColumnar() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+            final int rows = 50000;
+            assertEquals(rows, db.bulkInsert("test", generateRows(rows),
+                    SQLiteDatabase.CONFLICT_NONE, 100));
+            db.execSQL("INSERT INTO test VALUES (NULL, 1.5, NULL)");
+
+            SQLiteColumnarResult result = db.queryColumnar(
+                    "SELECT col1, col2, col3 FROM test ORDER BY rowid", null, null);
+            assertEquals(rows + 1, result.getRowCount());
+            assertEquals(3, result.getColumnCount());
+            assertEquals(2, result.getColumnIndex("col3"));
+
+            long[] col1 = result.getLongs(0);
+            for (int i = 0; i < rows; i++) {
+                assertEquals(i, col1[i]);
+            }
+            assertEquals(0, col1[rows]);
+            assertEquals(rows, result.getNulls(0).nextSetBit(0));
+            assertEquals(1, result.getNulls(0).cardinality());
+
+            // A column of mixed types is converted like a cursor would.
+            assertTrue(result.hasType(1, Cursor.FIELD_TYPE_FLOAT));
+            assertEquals(1, result.getLongs(1)[rows]);
+            assertEquals(1.5, result.getDoubles(1)[rows]);
+            assertEquals(4.0, result.getDoubles(1)[2]);
+
+            String[] col3 = result.getStrings(2);
+            assertEquals("row123", col3[123]);
+            assertNull(col3[rows]);
+            assertEquals(Cursor.FIELD_TYPE_NULL, result.getType(rows, 2));
+
+            assertEquals(0, db.queryColumnar("SELECT col1 FROM test WHERE col1 < 0",
+                    null, null).getRowCount());
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_columnarAggregationBenchmark() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+            final int rows = 1000000;
+            assertEquals(rows, db.bulkInsert("test", generateRows(rows),
+                    SQLiteDatabase.CONFLICT_NONE, 100));
+            final String sql = "SELECT col1, col2 FROM test";
+
+            long start = System.nanoTime();
+            long cursorSum = 0;
+            Cursor c = db.rawQuery(sql, null);
+            try {
+                while (c.moveToNext()) {
+                    cursorSum += c.getLong(0) + c.getLong(1);
+                }
+            } finally {
+                c.close();
+            }
+            long cursorMillis = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            long columnarSum = 0;
+            SQLiteColumnarResult result = db.queryColumnar(sql, null, null);
+            long[] col1 = result.getLongs(0);
+            long[] col2 = result.getLongs(1);
+            for (int i = 0; i < result.getRowCount(); i++) {
+                columnarSum += col1[i] + col2[i];
+            }
+            long columnarMillis = (System.nanoTime() - start) / 1000000;
+
+            assertEquals(cursorSum, columnarSum);
+            System.out.println("Sum over " + rows + " rows: " + cursorMillis + "ms with a cursor, "
+                    + columnarMillis + "ms columnar");
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_copyColumn() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+            final int rows = 20000;
+            assertEquals(rows, db.bulkInsert("test", generateRows(rows),
+                    SQLiteDatabase.CONFLICT_NONE, 100));
+
+            Cursor c = db.rawQuery("SELECT col1, col2 / 4.0, col3 FROM test ORDER BY col1",
+                    null);
+            try {
+                assertTrue(c.moveToPosition(5));
+                long[] longs = new long[rows];
+                byte[] types = new byte[rows];
+                assertEquals(rows, DatabaseUtils.cursorCopyLongColumn(c, 0, longs, types));
+                double[] doubles = new double[rows];
+                assertEquals(rows, DatabaseUtils.cursorCopyDoubleColumn(c, 1, doubles, null));
+                for (int i = 0; i < rows; i++) {
+                    assertEquals(i, longs[i]);
+                    assertEquals(Cursor.FIELD_TYPE_INTEGER, types[i]);
+                    assertEquals(i / 2.0, doubles[i]);
+                }
+                // The position is restored.
+                assertEquals(5, c.getPosition());
+            } finally {
+                c.close();
+            }
+
+            // Cursors without a window are read row by row.
+            MatrixCursor matrix = new MatrixCursor(new String[] { "a" });
+            matrix.addRow(new Object[] { 7 });
+            matrix.addRow(new Object[] { null });
+            long[] longs = new long[2];
+            byte[] types = new byte[2];
+            assertEquals(2, DatabaseUtils.cursorCopyLongColumn(matrix, 0, longs, types));
+            assertEquals(7, longs[0]);
+            assertEquals(Cursor.FIELD_TYPE_NULL, types[1]);
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_groupCommitWriter() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int PRIMARY KEY, col2 int)");
+            SQLiteGroupCommitWriter writer = new SQLiteGroupCommitWriter(db, 64);
+            try {
+                List<Future<Long>> inserts = new ArrayList<Future<Long>>();
+                for (int i = 0; i < 100; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put("col1", i);
+                    values.put("col2", i * 2);
+                    inserts.add(writer.insert("test", null, values));
+                }
+                // A duplicate key fails on its own without affecting the others.
+                ContentValues duplicate = new ContentValues();
+                duplicate.put("col1", 5);
+                duplicate.put("col2", 0);
+                Future<Long> failed = writer.insert("test", null, duplicate);
+                Future<Integer> updated = writer.update("test", duplicate, "col1 = ?",
+                        new String[] { "99" });
+                Future<Integer> deleted = writer.delete("test", "col1 >= ?",
+                        new String[] { "90" });
+                // An operation that throws an error fails on its own as well.
+                Future<Void> crashed = writer.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        throw new AssertionError("crash");
+                    }
+                });
+
+                for (int i = 0; i < inserts.size(); i++) {
+                    assertEquals(i + 1, inserts.get(i).get().longValue());
+                }
+                try {
+                    failed.get();
+                    fail("Expected ExecutionException");
+                } catch (ExecutionException expected) {
+                    assertTrue(expected.getCause() instanceof SQLiteConstraintException);
+                }
+                assertEquals(0, updated.get().intValue());
+                assertEquals(10, deleted.get().intValue());
+                try {
+                    crashed.get();
+                    fail("Expected ExecutionException");
+                } catch (ExecutionException expected) {
+                    assertTrue(expected.getCause() instanceof AssertionError);
+                }
+                assertTrue(writer.getBatchCount() <= writer.getOperationCount());
+            } finally {
+                writer.closeAndWait();
+            }
+
+            assertEquals(90, DatabaseUtils.queryNumEntries(db, "test"));
+            assertEquals(10, DatabaseUtils.longForQuery(db,
+                    "SELECT col2 FROM test WHERE col1 = 5", null));
+            try {
+                writer.execSQL("DELETE FROM test", null);
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_groupCommitBenchmark() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL("CREATE TABLE test (col1 int, col2 int)");
+            for (int threads : new int[] { 1, 8, 32 }) {
+                long direct = measureInsertRate(db, null, threads);
+                SQLiteGroupCommitWriter writer = new SQLiteGroupCommitWriter(db, 256);
+                long grouped;
+                try {
+                    grouped = measureInsertRate(db, writer, threads);
+                } finally {
+                    writer.closeAndWait();
+                }
+                System.out.println(threads + " writer threads: " + direct
+                        + " inserts/sec direct, " + grouped + " inserts/sec with group commit");
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testSqliteDatabase_asyncApi() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.enableWriteAheadLogging();
+            db.execSQL("CREATE TABLE test (col1 int, col2 int, col3 text)");
+            assertEquals(1000, db.bulkInsert("test", generateRows(1000),
+                    SQLiteDatabase.CONFLICT_NONE, 100));
+
+            ContentValues values = new ContentValues();
+            values.put("col1", 1000);
+            assertEquals(1001, db.insertAsync("test", null, values).get().longValue());
+            db.execSQLAsync("DELETE FROM test WHERE col1 = ?", new Object[] { 1000 }).get();
+
+            // Many independent reads in flight at once, reported through callbacks.
+            final int queries = 24;
+            final CountDownLatch latch = new CountDownLatch(queries);
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final int[] counts = new int[queries];
+            for (int i = 0; i < queries; i++) {
+                final int index = i;
+                SQLiteFuture<Cursor> future = db.rawQueryAsync(
+                        "SELECT col1 FROM test WHERE col1 % ? = 0",
+                        new String[] { String.valueOf(i + 1) }, null);
+                future.addCallback(new SQLiteFuture.Callback<Cursor>() {
+                    @Override
+                    public void onResult(Cursor result) {
+                        counts[index] = result.getCount();
+                        result.close();
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        error.compareAndSet(null, t);
+                        latch.countDown();
+                    }
+                }, null);
+            }
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+            assertNull(error.get());
+            for (int i = 0; i < queries; i++) {
+                assertEquals((999 / (i + 1)) + 1, counts[i]);
+            }
+
+            // Failures are reported through the future.
+            try {
+                db.rawQueryAsync("SELECT * FROM missing", null, null).get();
+                fail("Expected ExecutionException");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof SQLiteException);
+            }
+
+            // Canceling the future cancels a long-running query.
+            SQLiteFuture<Cursor> slow = db.rawQueryAsync(
+                    "SELECT count(*) FROM test a, test b, test c", null, null);
+            Thread.sleep(50);
+            assertTrue(slow.cancel(true));
+            try {
+                slow.get();
+                fail("Expected CancellationException");
+            } catch (CancellationException expected) {
+            }
+        } finally {
+            db.close();
+        }
+
+        try {
+            db.execSQLAsync("DELETE FROM test", null);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    // Returns the number of inserts per second made by the given number of threads,
+    // each waiting for its own inserts to be committed.
+    private static long measureInsertRate(final SQLiteDatabase db,
+            final SQLiteGroupCommitWriter writer, int threadCount) throws Exception {
+        final int insertsPerThread = 200;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < insertsPerThread; j++) {
+                            ContentValues values = new ContentValues();
+                            values.put("col1", j);
+                            values.put("col2", j);
+                            if (writer != null) {
+                                writer.insert("test", null, values).get();
+                            } else {
+                                db.insertOrThrow("test", null, values);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        return (long) threadCount * insertsPerThread * 1000000000L / Math.max(elapsed, 1);
+    }
+
+    // Returns the average latency in microseconds of inserts made while the given
+    // number of threads keep running a slow query.
+    private static long measureWriterLatency(final SQLiteDatabase db, int readers,
+            final boolean onReader) throws InterruptedException {
+        final String sql = "SELECT count(*) FROM test a, test b WHERE a.col1 < b.col2";
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[readers];
+        for (int i = 0; i < readers; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        Cursor c = onReader ? db.rawQueryOnReader(sql, null, null)
+                                : db.rawQuery(sql, null);
+                        try {
+                            c.moveToFirst();
+                        } finally {
+                            c.close();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            Thread.sleep(100);
+            final int inserts = 50;
+            long start = System.nanoTime();
+            for (int i = 0; i < inserts; i++) {
+                db.execSQL("INSERT INTO test VALUES (?, ?)", new Object[] { -1, -1 });
+            }
+            return (System.nanoTime() - start) / 1000 / inserts;
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            db.execSQL("DELETE FROM test WHERE col1 = -1");
+        }
+    }
 }